@@ -0,0 +1,352 @@
+package net.epsilonlabs.datamanagementefficient.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Build time annotation processor that generates an EntityMapper named [class name]_EntityMapper for every class with an @Id Field.
+ * The generated mapper reads and writes Fields directly instead of through reflection. Fields are visited in the same order as
+ * EntityDescriptor.getFields(): by name within each class, starting with the class itself and then each of its superclasses.
+ * A mapper is only generated when every stored Field and the empty constructor can be accessed from the class's package;
+ * other classes are reported with a note and keep using the ReflectiveEntityMapper at runtime.
+ * @author Tom Caputi
+ *
+ */
+@SupportedAnnotationTypes(EntityMapperProcessor.ID_ANNOTATION_NAME)
+public class EntityMapperProcessor extends AbstractProcessor {
+
+	public static final String ID_ANNOTATION_NAME = "net.epsilonlabs.datamanagementefficient.annotations.Id";
+	public static final String MAPPER_SUFFIX = "_EntityMapper";
+	public static final String LAZY_REFERENCE_NAME = "net.epsilonlabs.datamanagementefficient.user.LazyReference";
+
+	//identifiers for Field types, matching DataUtil.FIELD_TYPE...
+	private static final int FIELD_TYPE_INT = 0;
+	private static final int FIELD_TYPE_DOUBLE = 1;
+	private static final int FIELD_TYPE_FLOAT = 2;
+	private static final int FIELD_TYPE_LONG = 3;
+	private static final int FIELD_TYPE_STRING = 4;
+	private static final int FIELD_TYPE_BOOLEAN = 5;
+	private static final int FIELD_TYPE_NON_PRIMITIVE = 6;
+	private static final int FIELD_TYPE_COLLECTION = 7;
+	private static final int FIELD_TYPE_UNSUPPORTED = -1;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement idAnnotation = processingEnv.getElementUtils().getTypeElement(ID_ANNOTATION_NAME);
+		if(idAnnotation == null) return false;
+
+		Set<TypeElement> entityTypes = new HashSet<TypeElement>();
+		for(Element idField : roundEnv.getElementsAnnotatedWith(idAnnotation)){
+			if(idField.getKind() == ElementKind.FIELD) entityTypes.add((TypeElement) idField.getEnclosingElement());
+		}
+		//subclasses inherit the id field of their superclass, so they are storable as well
+		for(Element rootElement : roundEnv.getRootElements()){
+			for(TypeElement type : ElementFilter.typesIn(Collections.singletonList(rootElement))){
+				if(hasIdField(type, idAnnotation)) entityTypes.add(type);
+			}
+		}
+
+		for(TypeElement entityType : entityTypes){
+			generateMapper(entityType, idAnnotation);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the given type or one of its superclasses declares a Field marked with @Id.
+	 * @param type the type
+	 * @param idAnnotation the @Id annotation type
+	 * @return true if the type is storable
+	 */
+	private boolean hasIdField(TypeElement type, TypeElement idAnnotation){
+		for(VariableElement field : getStoredFields(type)){
+			if(isAnnotatedWith(field, idAnnotation)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Generates the mapper source file for a storable class, or reports a note if the class cannot be mapped directly.
+	 * @param entityType the storable class
+	 * @param idAnnotation the @Id annotation type
+	 */
+	private void generateMapper(TypeElement entityType, TypeElement idAnnotation){
+		String reason = getUnmappableReason(entityType);
+		List<VariableElement> fields = getStoredFields(entityType);
+		int[] fieldTypeIds = new int[fields.size()];
+		VariableElement idField = null;
+		for(int i=0; i<fields.size() && reason == null; i++){
+			VariableElement field = fields.get(i);
+			fieldTypeIds[i] = getFieldTypeId(field.asType());
+			if(fieldTypeIds[i] == FIELD_TYPE_UNSUPPORTED) reason = "field " + field.getSimpleName() + " has an unsupported type";
+			else if(!isAccessible(field, entityType)) reason = "field " + field.getSimpleName() + " is not accessible from its package";
+			else if(field.getModifiers().contains(Modifier.STATIC)) reason = "field " + field.getSimpleName() + " is static";
+			if(idField == null && isAnnotatedWith(field, idAnnotation)){
+				if(fieldTypeIds[i] != FIELD_TYPE_INT) reason = "the @Id field is not an int";
+				idField = field;
+			}
+		}
+		if(reason == null && idField == null) reason = "it has no @Id field";
+		if(reason != null){
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "No EntityMapper generated for " + entityType.getQualifiedName() + " because " + reason + "; reflection will be used instead.", entityType);
+			return;
+		}
+
+		String packageName = processingEnv.getElementUtils().getPackageOf(entityType).getQualifiedName().toString();
+		String entityName = entityType.getQualifiedName().toString();
+		String mapperName = entityType.getSimpleName() + MAPPER_SUFFIX;
+
+		StringBuilder source = new StringBuilder();
+		if(packageName.length() != 0) source.append("package ").append(packageName).append(";\n\n");
+		source.append("import android.database.Cursor;\n");
+		source.append("import android.database.sqlite.SQLiteStatement;\n");
+		source.append("import net.epsilonlabs.datamanagementefficient.library.DataUtil;\n");
+		source.append("import net.epsilonlabs.datamanagementefficient.library.EntityMapper;\n\n");
+		source.append("/**\n * Generated by EntityMapperProcessor. Do not modify.\n */\n");
+		source.append("public final class ").append(mapperName).append(" implements EntityMapper<").append(entityName).append("> {\n\n");
+
+		source.append("\t@Override\n\tpublic ").append(entityName).append(" newInstance() {\n");
+		source.append("\t\treturn new ").append(entityName).append("();\n\t}\n\n");
+
+		source.append("\t@Override\n\tpublic int getId(").append(entityName).append(" instance) {\n");
+		source.append("\t\treturn instance.").append(idField.getSimpleName()).append(";\n\t}\n\n");
+
+		source.append("\t@Override\n\tpublic void setId(").append(entityName).append(" instance, int id) {\n");
+		source.append("\t\tinstance.").append(idField.getSimpleName()).append(" = id;\n\t}\n\n");
+
+		source.append("\t@Override\n\tpublic void readColumns(").append(entityName).append(" instance, Cursor cursor, int[] columnIndexes, int defaultUpgradeValue) {\n");
+		for(int i=0; i<fields.size(); i++){
+			String name = "instance." + fields.get(i).getSimpleName();
+			String column = "columnIndexes[" + i + "]";
+			switch(fieldTypeIds[i]){
+			case FIELD_TYPE_INT:
+				source.append("\t\tif(cursor.isNull(").append(column).append(")) ").append(name).append(" = defaultUpgradeValue;\n");
+				source.append("\t\telse ").append(name).append(" = cursor.getInt(").append(column).append(");\n");
+				break;
+			case FIELD_TYPE_DOUBLE:
+				source.append("\t\tif(cursor.isNull(").append(column).append(")) ").append(name).append(" = defaultUpgradeValue;\n");
+				source.append("\t\telse ").append(name).append(" = cursor.getDouble(").append(column).append(");\n");
+				break;
+			case FIELD_TYPE_FLOAT:
+				source.append("\t\tif(cursor.isNull(").append(column).append(")) ").append(name).append(" = defaultUpgradeValue;\n");
+				source.append("\t\telse ").append(name).append(" = cursor.getFloat(").append(column).append(");\n");
+				break;
+			case FIELD_TYPE_LONG:
+				source.append("\t\tif(cursor.isNull(").append(column).append(")) ").append(name).append(" = defaultUpgradeValue;\n");
+				source.append("\t\telse ").append(name).append(" = cursor.getLong(").append(column).append(");\n");
+				break;
+			case FIELD_TYPE_STRING:
+				source.append("\t\t").append(name).append(" = cursor.getString(").append(column).append(");\n");
+				break;
+			case FIELD_TYPE_BOOLEAN:
+				source.append("\t\t").append(name).append(" = cursor.getInt(").append(column).append(") == 1;\n");
+				break;
+			}
+		}
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n\tpublic void bindColumns(").append(entityName).append(" instance, SQLiteStatement statement) {\n");
+		int index = 1;
+		for(int i=0; i<fields.size(); i++){
+			String name = "instance." + fields.get(i).getSimpleName();
+			switch(fieldTypeIds[i]){
+			case FIELD_TYPE_INT:
+			case FIELD_TYPE_LONG:
+				source.append("\t\tstatement.bindLong(").append(index++).append(", ").append(name).append(");\n");
+				break;
+			case FIELD_TYPE_DOUBLE:
+			case FIELD_TYPE_FLOAT:
+				source.append("\t\tstatement.bindDouble(").append(index++).append(", ").append(name).append(");\n");
+				break;
+			case FIELD_TYPE_STRING:
+				source.append("\t\tif(").append(name).append(" == null) statement.bindNull(").append(index).append(");\n");
+				source.append("\t\telse statement.bindString(").append(index++).append(", ").append(name).append(");\n");
+				break;
+			case FIELD_TYPE_BOOLEAN:
+				source.append("\t\tstatement.bindLong(").append(index++).append(", ").append(name).append(" ? 1 : 0);\n");
+				break;
+			case FIELD_TYPE_NON_PRIMITIVE:
+				if(processingEnv.getTypeUtils().erasure(fields.get(i).asType()).toString().equals(LAZY_REFERENCE_NAME)){
+					source.append("\t\tif(").append(name).append(" == null || ").append(name).append(".isNull()) statement.bindNull(").append(index).append(");\n");
+					source.append("\t\telse statement.bindLong(").append(index++).append(", ").append(name).append(".getId());\n");
+				}else{
+					source.append("\t\tif(").append(name).append(" == null) statement.bindNull(").append(index).append(");\n");
+					source.append("\t\telse statement.bindLong(").append(index++).append(", DataUtil.getId(").append(name).append("));\n");
+				}
+				break;
+			}
+		}
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n\tpublic void copyColumns(").append(entityName).append(" source, ").append(entityName).append(" destination) {\n");
+		for(int i=0; i<fields.size(); i++){
+			if(fieldTypeIds[i] == FIELD_TYPE_NON_PRIMITIVE || fieldTypeIds[i] == FIELD_TYPE_COLLECTION) continue;
+			String name = fields.get(i).getSimpleName().toString();
+			source.append("\t\tdestination.").append(name).append(" = source.").append(name).append(";\n");
+		}
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n\tpublic Object getReference(").append(entityName).append(" instance, int fieldIndex) {\n");
+		source.append("\t\tswitch(fieldIndex){\n");
+		for(int i=0; i<fields.size(); i++){
+			if(fieldTypeIds[i] != FIELD_TYPE_NON_PRIMITIVE && fieldTypeIds[i] != FIELD_TYPE_COLLECTION) continue;
+			source.append("\t\tcase ").append(i).append(":\n");
+			source.append("\t\t\treturn instance.").append(fields.get(i).getSimpleName()).append(";\n");
+		}
+		source.append("\t\tdefault:\n\t\t\tthrow new IllegalArgumentException(\"Field \" + fieldIndex + \" is not a reference\");\n");
+		source.append("\t\t}\n\t}\n\n");
+
+		source.append("\t@Override\n\t@SuppressWarnings(\"unchecked\")\n\tpublic void setReference(").append(entityName).append(" instance, int fieldIndex, Object value) {\n");
+		source.append("\t\tswitch(fieldIndex){\n");
+		for(int i=0; i<fields.size(); i++){
+			if(fieldTypeIds[i] != FIELD_TYPE_NON_PRIMITIVE && fieldTypeIds[i] != FIELD_TYPE_COLLECTION) continue;
+			source.append("\t\tcase ").append(i).append(":\n");
+			source.append("\t\t\tinstance.").append(fields.get(i).getSimpleName()).append(" = (").append(fields.get(i).asType()).append(") value;\n");
+			source.append("\t\t\tbreak;\n");
+		}
+		source.append("\t\tdefault:\n\t\t\tthrow new IllegalArgumentException(\"Field \" + fieldIndex + \" is not a reference\");\n");
+		source.append("\t\t}\n\t}\n");
+		source.append("}\n");
+
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName.length() == 0 ? mapperName : packageName + "." + mapperName, entityType);
+			Writer writer = file.openWriter();
+			try {
+				writer.write(source.toString());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + mapperName + ": " + e.getMessage(), entityType);
+		}
+	}
+
+	/**
+	 * Returns the reason a class cannot have a generated mapper, or null if it can. Only top level, non-abstract classes with a
+	 * non-private empty constructor can be mapped.
+	 * @param entityType the storable class
+	 * @return the reason, or null
+	 */
+	private String getUnmappableReason(TypeElement entityType){
+		if(!(entityType.getEnclosingElement() instanceof PackageElement)) return "it is not a top level class";
+		if(entityType.getModifiers().contains(Modifier.ABSTRACT)) return "it is abstract";
+		if(entityType.getModifiers().contains(Modifier.PRIVATE)) return "it is private";
+		List<ExecutableElement> constructors = ElementFilter.constructorsIn(entityType.getEnclosedElements());
+		for(ExecutableElement constructor : constructors){
+			if(constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) return null;
+		}
+		return "it has no accessible empty constructor";
+	}
+
+	/**
+	 * Gets the stored Fields of a class and its superclasses in the order used by EntityDescriptor: non-final Fields sorted by name
+	 * within each class, starting with the class itself.
+	 * @param type the class
+	 * @return the stored Fields
+	 */
+	private List<VariableElement> getStoredFields(TypeElement type){
+		List<VariableElement> fields = new ArrayList<VariableElement>();
+		TypeElement currentType = type;
+		while(currentType != null && !currentType.getQualifiedName().contentEquals("java.lang.Object")){
+			List<VariableElement> declaredFields = new ArrayList<VariableElement>();
+			for(VariableElement field : ElementFilter.fieldsIn(currentType.getEnclosedElements())){
+				if(!field.getModifiers().contains(Modifier.FINAL)) declaredFields.add(field);
+			}
+			Collections.sort(declaredFields, new Comparator<VariableElement>() {
+				@Override
+				public int compare(VariableElement lhs, VariableElement rhs) {
+					return lhs.getSimpleName().toString().compareTo(rhs.getSimpleName().toString());
+				}
+			});
+			fields.addAll(declaredFields);
+			TypeMirror superclass = currentType.getSuperclass();
+			if(superclass.getKind() != TypeKind.DECLARED) break;
+			currentType = (TypeElement) ((DeclaredType) superclass).asElement();
+		}
+		return fields;
+	}
+
+	/**
+	 * Returns the type of data a Field contains, using the same rules as DataUtil.getFieldTypeId().
+	 * @param type the type of the Field
+	 * @return the Field type as an int, or FIELD_TYPE_UNSUPPORTED
+	 */
+	private int getFieldTypeId(TypeMirror type){
+		switch(type.getKind()){
+		case INT:
+			return FIELD_TYPE_INT;
+		case DOUBLE:
+			return FIELD_TYPE_DOUBLE;
+		case FLOAT:
+			return FIELD_TYPE_FLOAT;
+		case LONG:
+			return FIELD_TYPE_LONG;
+		case BOOLEAN:
+			return FIELD_TYPE_BOOLEAN;
+		case DECLARED:
+			if(type.toString().equals("java.lang.String")) return FIELD_TYPE_STRING;
+			TypeMirror collectionType = processingEnv.getTypeUtils().erasure(processingEnv.getElementUtils().getTypeElement("java.util.Collection").asType());
+			if(processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type), collectionType)) return FIELD_TYPE_COLLECTION;
+			return FIELD_TYPE_NON_PRIMITIVE;
+		default:
+			return FIELD_TYPE_UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * Returns true if a Field can be read and written directly by a mapper in the package of the given class.
+	 * @param field the Field
+	 * @param entityType the storable class
+	 * @return true if the Field is accessible
+	 */
+	private boolean isAccessible(VariableElement field, TypeElement entityType){
+		Set<Modifier> modifiers = field.getModifiers();
+		if(modifiers.contains(Modifier.PRIVATE)) return false;
+		if(modifiers.contains(Modifier.PUBLIC)) return true;
+		PackageElement fieldPackage = processingEnv.getElementUtils().getPackageOf(field);
+		PackageElement entityPackage = processingEnv.getElementUtils().getPackageOf(entityType);
+		return fieldPackage.getQualifiedName().contentEquals(entityPackage.getQualifiedName());
+	}
+
+	/**
+	 * Returns true if an element is marked with the given annotation.
+	 * @param element the element
+	 * @param annotation the annotation type
+	 * @return true if the element has the annotation
+	 */
+	private boolean isAnnotatedWith(Element element, TypeElement annotation){
+		for(javax.lang.model.element.AnnotationMirror mirror : element.getAnnotationMirrors()){
+			if(mirror.getAnnotationType().asElement().equals(annotation)) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,8 @@
+package net.epsilonlabs.datamanagementefficient.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.RUNTIME)  
+public @interface Unique {
+}
@@ -1,14 +1,29 @@
 package net.epsilonlabs.datamanagementefficient.directive;
 
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
 public class CreateDirective extends Directive {
 	
 	private Object instance;
+	private Map<Field, Object> values;
 
 	public CreateDirective(Object instance) {
 		this.instance = instance;
+		this.values = new HashMap<Field, Object>();
 	}
 
 	public Object getInstance() {
 		return instance;
 	}
+
+	/**
+	 * Returns the values that override the instance's own Field values when the row is written. These are the values of
+	 * UpdateDirectives that have been merged into this CreateDirective.
+	 * @return a map of Fields to their overriding values
+	 */
+	public Map<Field, Object> getValues() {
+		return values;
+	}
 }
@@ -0,0 +1,5 @@
+package net.epsilonlabs.datamanagementefficient.exception;
+
+public class DeadlineExceededException extends RuntimeException {
+	private static final long serialVersionUID = 4913570267839124176L;
+}
@@ -0,0 +1,5 @@
+package net.epsilonlabs.datamanagementefficient.exception;
+
+public class IdNumbersExhaustedException extends RuntimeException {
+	private static final long serialVersionUID = 6203958172645019387L;
+}
@@ -0,0 +1,5 @@
+package net.epsilonlabs.datamanagementefficient.exception;
+
+public class IndexedFieldInvalidException extends RuntimeException {
+	private static final long serialVersionUID = 3819274650192837465L;
+}
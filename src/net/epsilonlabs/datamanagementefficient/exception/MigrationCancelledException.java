@@ -0,0 +1,5 @@
+package net.epsilonlabs.datamanagementefficient.exception;
+
+public class MigrationCancelledException extends RuntimeException {
+	private static final long serialVersionUID = -6215873920145487312L;
+}
@@ -1,26 +1,56 @@
 package net.epsilonlabs.datamanagementefficient.library;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
-import java.util.Map;
-
-import android.util.SparseArray;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * The Cache class is used to store objects in a map based on their class and id number. The cache uses weak
- * references to ensure that it does not get too large.
+ * The Cache class is used to store objects in a map based on their class and id number. The cache uses soft
+ * references so that the garbage collector may reclaim objects under memory pressure, and may additionally be given a global
+ * and a per-class capacity. When a capacity is exceeded the least recently used objects are evicted. Entries whose objects
+ * have been collected are pruned as they are discovered. Hits, misses, evictions and loads are counted (see getStats()).
+ * Objects may be pinned while they have changes that are not yet committed (see pin()). A pinned object is held strongly and is never
+ * evicted, because the database does not hold its current state yet; the capacities are enforced again once it is unpinned.
+ * Each entry may also hold a snapshot, a copy of its object that is shared by every read of the entry (see getSnapshot()). The cached
+ * object itself is never handed out, so changes made to a snapshot never reach the cache.
+ * The Cache may be used by several threads at once. Each class has its own lock, so threads working with different classes
+ * never wait for each other.
  * @author Tom Caputi
  *
  */
 public class Cache {
 
-	private Map<Class<?>, SparseArray<SoftReference<Object>>> cache; //The actual map that stores all the cached Objects
+	private ConcurrentHashMap<Class<?>, ClassCache> cache; //The actual map that stores all the cached Objects, each class locked by its own ClassCache
+	private ConcurrentHashMap<Class<?>, Integer> classCapacities; //holds a map of Classes to their maximum number of cached objects
+	private ReferenceQueue<Object> collectedQueue; //receives the entries whose objects have been collected
+	private volatile int capacity; //the maximum number of cached objects of all classes, or 0 for no limit
+	private AtomicInteger size = new AtomicInteger(); //the number of entries in the cache
+	private AtomicLong tick = new AtomicLong(); //incremented on every access, used to find the least recently used entry across classes
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+	private AtomicLong evictionCount = new AtomicLong();
+	private AtomicLong loadCount = new AtomicLong();
 
 	/**
-	 * Instantiates the cache map
+	 * Instantiates the cache map with no capacity limit
 	 */
 	public Cache(){
-		this.cache = new HashMap<Class<?>, SparseArray<SoftReference<Object>>>();
+		this(0);
+	}
+
+	/**
+	 * Instantiates the cache map with a global capacity.
+	 * @param capacity the maximum number of cached objects, or 0 for no limit
+	 */
+	public Cache(int capacity){
+		this.cache = new ConcurrentHashMap<Class<?>, ClassCache>();
+		this.classCapacities = new ConcurrentHashMap<Class<?>, Integer>();
+		this.collectedQueue = new ReferenceQueue<Object>();
+		this.capacity = capacity;
 	}
 
 	/**
@@ -31,23 +61,119 @@ public class Cache {
 	 */
 	@SuppressWarnings("unchecked")
 	public <T> T get(Class<T> cls, int id){
-		SparseArray<SoftReference<Object>> classCache = cache.get(cls);
-		if(classCache == null || classCache.get(id) == null) return null;
-		return (T) classCache.get(id).get();
-		
+		pruneCollected();
+		ClassCache classCache = cache.get(cls);
+		Object obj = null;
+		if(classCache != null){
+			synchronized(classCache){
+				CacheEntry entry = classCache.getEntry(id);
+				obj = entry == null ? null : entry.get();
+				if(obj != null) entry.lastAccess = tick.incrementAndGet();
+				else if(entry != null) removeEntry(entry);
+			}
+		}
+		if(obj == null){
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return (T) obj;
 	}
 
 	/**
-	 * Places an object into the cache. Replaces existing objects with the same class and id number.
+	 * Gets the snapshot of a cached object based on its class and id number (see put(Object, Object)). If the entry has no snapshot
+	 * yet, the object is copied once and the copy is kept as the entry's snapshot, so later reads of the entry are not copied again.
+	 * An entry is replaced whenever its object changes, so a snapshot always shows the state the object had when it was cached.
+	 * Snapshots are shared by every reader and must not be modified.
+	 * @param cls the class of the object
+	 * @param id the id number of the object
+	 * @return the snapshot, or null if there is no such object
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getSnapshot(Class<T> cls, int id){
+		T obj = get(cls, id);
+		if(obj == null) return null;
+		ClassCache classCache = cache.get(cls);
+		synchronized(classCache){
+			CacheEntry entry = classCache.getEntry(id);
+			Object snapshot = entry == null || entry.get() != obj ? null : entry.getSnapshot();
+			if(snapshot != null) return (T) snapshot;
+		}
+		//the copy is made without holding the lock, cached objects are never modified
+		T snapshot = DataUtil.copy(obj);
+		synchronized(classCache){
+			CacheEntry entry = classCache.getEntry(id);
+			//an entry replaced in the meantime has a newer object, so the copy is only returned to this reader
+			if(entry == null || entry.get() != obj) return snapshot;
+			Object existingSnapshot = entry.getSnapshot();
+			if(existingSnapshot != null) return (T) existingSnapshot;
+			entry.snapshot = new SoftReference<Object>(snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Places an object into the cache. Replaces existing objects with the same class and id number. If this exceeds the
+	 * capacity of the object's class or of the cache, the least recently used objects that are not pinned are evicted. If the
+	 * object's id number is pinned, the object is pinned in place of the one it replaces.
 	 * @param obj the object to be placed into the cache
 	 */
 	public void put(Object obj){
+		put(obj, null);
+	}
+
+	/**
+	 * Places an object into the cache together with its snapshot, a copy of the object already made for the read that loaded it
+	 * (see getSnapshot()).
+	 * @param obj the object to be placed into the cache
+	 * @param snapshot the copy of the object to be shared by reads, or null to make one on the first call of getSnapshot()
+	 */
+	public void put(Object obj, Object snapshot){
+		pruneCollected();
 		Class<?> cls = obj.getClass();
-		int id = DataUtil.getId(obj);
-		SparseArray<SoftReference<Object>> classCache = cache.get(cls);
-		if(classCache == null) classCache = new SparseArray<SoftReference<Object>>();
-		classCache.put(id, new SoftReference<Object>(obj));
-		cache.put(cls, classCache);
+		int id = EntityDescriptor.get(cls).getId(obj);
+		ClassCache classCache = getClassCache(cls);
+		synchronized(classCache){
+			CacheEntry entry = new CacheEntry(obj, cls, id, collectedQueue);
+			entry.lastAccess = tick.incrementAndGet();
+			if(snapshot != null) entry.snapshot = new SoftReference<Object>(snapshot);
+			CacheEntry replacedEntry = classCache.putEntry(entry);
+			if(replacedEntry == null) size.incrementAndGet();
+			else replacedEntry.removed = true;
+			enforceClassCapacity(classCache, cls);
+		}
+		enforceCapacity();
+	}
+
+	/**
+	 * Pins the object of a class and id number, so that it is held strongly and never evicted until it has been unpinned as many
+	 * times as it was pinned. Pins belong to the id number rather than to the cached object: an object put in the cache while its id
+	 * number is pinned is pinned as well, and an id number may be pinned while no object is cached for it.
+	 * @param cls the class of the object
+	 * @param id the id number of the object
+	 */
+	public void pin(Class<?> cls, int id){
+		ClassCache classCache = getClassCache(cls);
+		synchronized(classCache){
+			classCache.pin(id);
+		}
+	}
+
+	/**
+	 * Releases one pin of the object of a class and id number (see pin()). Once no pins are left the object may be evicted again, and
+	 * the capacities are enforced.
+	 * @param cls the class of the object
+	 * @param id the id number of the object
+	 */
+	public void unpin(Class<?> cls, int id){
+		ClassCache classCache = getClassCache(cls);
+		synchronized(classCache){
+			CacheEntry entry = classCache.unpin(id);
+			if(entry == null) return;
+			entry.lastAccess = tick.incrementAndGet();
+			enforceClassCapacity(classCache, cls);
+		}
+		enforceCapacity();
 	}
 
 	/**
@@ -57,10 +183,269 @@ public class Cache {
 	 * @return true if an object existed and was successfully removed
 	 */
 	public boolean remove(Class<?> cls, int id){
-		SparseArray<SoftReference<Object>> classCache = cache.get(cls);
+		ClassCache classCache = cache.get(cls);
 		if(classCache == null) return false;
-		if(classCache.get(id) == null || classCache.get(id).get() == null) return false;
-		classCache.remove(id);
-		return true;
+		synchronized(classCache){
+			CacheEntry entry = classCache.removeEntry(id);
+			if(entry == null) return false;
+			entry.removed = true;
+			size.decrementAndGet();
+			return entry.get() != null;
+		}
+	}
+
+	/**
+	 * Removes all objects from the cache. The statistics and the pins are not reset.
+	 */
+	public void clear(){
+		for(ClassCache classCache : cache.values()){
+			synchronized(classCache){
+				size.addAndGet(-classCache.size());
+				classCache.clear();
+			}
+		}
+		while(collectedQueue.poll() != null);
+	}
+
+	/**
+	 * Returns the number of entries in the cache. Entries whose objects have been collected but not yet pruned are included.
+	 * @return the number of entries
+	 */
+	public int size(){
+		pruneCollected();
+		return size.get();
+	}
+
+	/**
+	 * Sets the maximum number of objects of all classes that may be cached. Least recently used objects that are not pinned are
+	 * evicted immediately if the cache is already larger.
+	 * @param capacity the maximum number of cached objects, or 0 for no limit
+	 */
+	public void setCapacity(int capacity){
+		this.capacity = capacity;
+		enforceCapacity();
+	}
+
+	/**
+	 * Sets the maximum number of objects of a given class that may be cached. Least recently used objects of the class that are not
+	 * pinned are evicted immediately if more are already cached.
+	 * @param cls the class
+	 * @param capacity the maximum number of cached objects of the class, or 0 for no limit
+	 */
+	public void setCapacity(Class<?> cls, int capacity){
+		if(capacity <= 0){
+			classCapacities.remove(cls);
+			return;
+		}
+		classCapacities.put(cls, capacity);
+		ClassCache classCache = cache.get(cls);
+		if(classCache == null) return;
+		synchronized(classCache){
+			enforceClassCapacity(classCache, cls);
+		}
+	}
+
+	/**
+	 * Records that an object was loaded from the database because it was not in the cache.
+	 */
+	public void recordLoad(){
+		loadCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns a snapshot of the cache's statistics.
+	 * @return the CacheStats
+	 */
+	public CacheStats getStats(){
+		return new CacheStats(hitCount.get(), missCount.get(), evictionCount.get(), loadCount.get(), size());
+	}
+
+	/**
+	 * Returns the entries of a class, creating them if the class has none yet.
+	 * @param cls the class
+	 * @return the ClassCache of the class
+	 */
+	private ClassCache getClassCache(Class<?> cls){
+		ClassCache classCache = cache.get(cls);
+		if(classCache != null) return classCache;
+		classCache = new ClassCache();
+		ClassCache existingClassCache = cache.putIfAbsent(cls, classCache);
+		return existingClassCache == null ? classCache : existingClassCache;
+	}
+
+	/**
+	 * Evicts the least recently used entries of a class that are not pinned until the class is within its capacity. Must be called
+	 * while holding the lock of the ClassCache.
+	 * @param classCache the entries of the class
+	 * @param cls the class
+	 */
+	private void enforceClassCapacity(ClassCache classCache, Class<?> cls){
+		Integer classCapacity = classCapacities.get(cls);
+		if(classCapacity == null || classCapacity <= 0) return;
+		while(classCache.size() > classCapacity){
+			CacheEntry eldest = classCache.getEldestUnpinned();
+			if(eldest == null) return;
+			evict(eldest);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries that are not pinned until the cache is within its global capacity. Only one class is
+	 * locked at a time, so a thread evicting never waits for a lock while holding another.
+	 */
+	private void enforceCapacity(){
+		while(capacity > 0 && size.get() > capacity){
+			CacheEntry leastRecentlyUsed = findLeastRecentlyUsed();
+			if(leastRecentlyUsed == null) return;
+			evict(leastRecentlyUsed);
+		}
+	}
+
+	/**
+	 * Returns the least recently used entry of all classes that is not pinned. The entries of each class that are not pinned are
+	 * kept in access order, so only the eldest entry of each class needs to be compared.
+	 * @return the least recently used entry, or null if every cached entry is pinned
+	 */
+	private CacheEntry findLeastRecentlyUsed(){
+		CacheEntry leastRecentlyUsed = null;
+		for(ClassCache classCache : cache.values()){
+			synchronized(classCache){
+				CacheEntry eldest = classCache.getEldestUnpinned();
+				if(eldest == null) continue;
+				if(leastRecentlyUsed == null || eldest.lastAccess < leastRecentlyUsed.lastAccess) leastRecentlyUsed = eldest;
+			}
+		}
+		return leastRecentlyUsed;
+	}
+
+	/**
+	 * Evicts an entry from the cache and counts the eviction.
+	 * @param entry the entry to be evicted
+	 */
+	private void evict(CacheEntry entry){
+		if(removeEntry(entry)) evictionCount.incrementAndGet();
+	}
+
+	/**
+	 * Removes an entry from the cache if it is still the entry stored for its class and id number.
+	 * @param entry the entry to be removed
+	 * @return true if the entry was removed by this call
+	 */
+	private boolean removeEntry(CacheEntry entry){
+		ClassCache classCache = cache.get(entry.cls);
+		synchronized(classCache){
+			if(entry.removed) return false;
+			entry.removed = true;
+			classCache.removeEntry(entry.id);
+			size.decrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * Removes the entries whose objects have been reclaimed by the garbage collector.
+	 */
+	private void pruneCollected(){
+		Object collected;
+		while((collected = collectedQueue.poll()) != null){
+			removeEntry((CacheEntry) collected);
+		}
+	}
+
+	/**
+	 * The entries of one class. Entries that are not pinned are kept in access order so the least recently used can be evicted;
+	 * pinned entries are kept apart, so finding an entry to evict never has to pass over them. Every method must be called while
+	 * holding the lock of the ClassCache.
+	 */
+	private static class ClassCache {
+
+		private final LinkedHashMap<Integer, CacheEntry> unpinnedEntries = new LinkedHashMap<Integer, CacheEntry>(16, 0.75f, true);
+		private final HashMap<Integer, CacheEntry> pinnedEntries = new HashMap<Integer, CacheEntry>();
+		private final HashMap<Integer, Integer> pinCounts = new HashMap<Integer, Integer>(); //the number of pins of each pinned id number
+
+		private CacheEntry getEntry(int id){
+			CacheEntry entry = unpinnedEntries.get(id);
+			return entry != null ? entry : pinnedEntries.get(id);
+		}
+
+		private CacheEntry putEntry(CacheEntry entry){
+			CacheEntry replacedEntry = removeEntry(entry.id);
+			if(pinCounts.containsKey(entry.id)){
+				entry.pinnedObject = entry.get();
+				pinnedEntries.put(entry.id, entry);
+			}else{
+				unpinnedEntries.put(entry.id, entry);
+			}
+			return replacedEntry;
+		}
+
+		private CacheEntry removeEntry(int id){
+			CacheEntry entry = unpinnedEntries.remove(id);
+			return entry != null ? entry : pinnedEntries.remove(id);
+		}
+
+		private CacheEntry getEldestUnpinned(){
+			return unpinnedEntries.isEmpty() ? null : unpinnedEntries.values().iterator().next();
+		}
+
+		private void pin(int id){
+			Integer count = pinCounts.get(id);
+			pinCounts.put(id, count == null ? 1 : count + 1);
+			if(count != null) return;
+			CacheEntry entry = unpinnedEntries.remove(id);
+			if(entry == null) return;
+			entry.pinnedObject = entry.get();
+			pinnedEntries.put(id, entry);
+		}
+
+		//returns the entry that was unpinned by this call, or null if the id number is still pinned or has no entry
+		private CacheEntry unpin(int id){
+			Integer count = pinCounts.get(id);
+			if(count == null) return null;
+			if(count > 1){
+				pinCounts.put(id, count - 1);
+				return null;
+			}
+			pinCounts.remove(id);
+			CacheEntry entry = pinnedEntries.remove(id);
+			if(entry == null) return null;
+			entry.pinnedObject = null;
+			unpinnedEntries.put(id, entry);
+			return entry;
+		}
+
+		private int size(){
+			return unpinnedEntries.size() + pinnedEntries.size();
+		}
+
+		private void clear(){
+			for(CacheEntry entry : unpinnedEntries.values()) entry.removed = true;
+			for(CacheEntry entry : pinnedEntries.values()) entry.removed = true;
+			unpinnedEntries.clear();
+			pinnedEntries.clear();
+		}
+	}
+
+	/**
+	 * A soft reference to a cached object that remembers the object's class and id number so it can be pruned once collected.
+	 */
+	private static class CacheEntry extends SoftReference<Object> {
+
+		private final Class<?> cls;
+		private final int id;
+		private long lastAccess; //only read and written while the entry's class is locked
+		private boolean removed; //true once the entry has been removed from or replaced in the cache, guarded like lastAccess
+		private Object pinnedObject; //holds the object strongly while it is pinned, guarded like lastAccess
+		private SoftReference<Object> snapshot; //the copy of the object shared by reads, or null if none has been made, guarded like lastAccess
+
+		private CacheEntry(Object obj, Class<?> cls, int id, ReferenceQueue<Object> queue){
+			super(obj, queue);
+			this.cls = cls;
+			this.id = id;
+		}
+
+		private Object getSnapshot(){
+			return snapshot == null ? null : snapshot.get();
+		}
 	}
 }
@@ -0,0 +1,78 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+/**
+ * A snapshot of the statistics of a Cache at the time it was taken.
+ * @author Tom Caputi
+ *
+ */
+public class CacheStats {
+
+	private final long hitCount;
+	private final long missCount;
+	private final long evictionCount;
+	private final long loadCount;
+	private final int size;
+
+	public CacheStats(long hitCount, long missCount, long evictionCount, long loadCount, int size) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.loadCount = loadCount;
+		this.size = size;
+	}
+
+	/**
+	 * Getter for the number of lookups that found a cached object
+	 * @return the hit count
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Getter for the number of lookups that did not find a cached object
+	 * @return the miss count
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Getter for the number of objects evicted because a capacity was exceeded
+	 * @return the eviction count
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Getter for the number of objects loaded from the database into the cache
+	 * @return the load count
+	 */
+	public long getLoadCount() {
+		return loadCount;
+	}
+
+	/**
+	 * Getter for the number of cached objects
+	 * @return the size of the cache
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the fraction of lookups that found a cached object.
+	 * @return the hit rate, or 0 if there have been no lookups
+	 */
+	public double getHitRate() {
+		long requestCount = hitCount + missCount;
+		if(requestCount == 0) return 0;
+		return (double) hitCount / requestCount;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats [hitCount=" + hitCount + ", missCount=" + missCount + ", evictionCount=" + evictionCount + ", loadCount=" + loadCount + ", size=" + size + "]";
+	}
+}
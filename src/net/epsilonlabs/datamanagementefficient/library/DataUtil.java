@@ -3,14 +3,11 @@ package net.epsilonlabs.datamanagementefficient.library;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.Queue;
 
-import net.epsilonlabs.datamanagementefficient.annotations.Id;
-import net.epsilonlabs.datamanagementefficient.exception.IdFieldDoesNotExistException;
-import net.epsilonlabs.datamanagementefficient.exception.IdFieldIsInaccessibleException;
-import net.epsilonlabs.datamanagementefficient.exception.IdFieldIsNotIntException;
+import net.epsilonlabs.datamanagementefficient.exception.FieldDoesNotExistException;
 import net.epsilonlabs.datamanagementefficient.exception.InstanceCloneFailedException;
+import net.epsilonlabs.datamanagementefficient.exception.MisMatchedFieldValueTypeException;
+import net.epsilonlabs.datamanagementefficient.user.LazyReference;
 
 /**
  * This class contains values and methods that are used by several classes in this library. All variables and methods are public and static.
@@ -49,42 +46,25 @@ public class DataUtil {
 	 * @return The field type as an int
 	 */
 	public static int getFieldTypeId(Field field){
-		if(field.getType().getName().equals("int")) return FIELD_TYPE_INT;
-		else if(field.getType().getName().equals("double")) return FIELD_TYPE_DOUBLE;
-		else if(field.getType().getName().equals("float")) return FIELD_TYPE_FLOAT;
-		else if(field.getType().getName().equals("long")) return FIELD_TYPE_LONG;
-		else if(field.getType().getName().equals("java.lang.String")) return FIELD_TYPE_STRING;
-		else if(field.getType().getName().equals("boolean")) return FIELD_TYPE_BOOLEAN;
-		else if(Collection.class.isAssignableFrom(field.getType())) return FIELD_TYPE_COLLECTION;
+		Class<?> type = field.getType();
+		if(type == int.class) return FIELD_TYPE_INT;
+		else if(type == double.class) return FIELD_TYPE_DOUBLE;
+		else if(type == float.class) return FIELD_TYPE_FLOAT;
+		else if(type == long.class) return FIELD_TYPE_LONG;
+		else if(type == String.class) return FIELD_TYPE_STRING;
+		else if(type == boolean.class) return FIELD_TYPE_BOOLEAN;
+		else if(Collection.class.isAssignableFrom(type)) return FIELD_TYPE_COLLECTION;
 		else return FIELD_TYPE_NON_PRIMITIVE;
 	}
 	
 	/**
 	 * Gets the fields of a given class that will be stored. Includes all Fields of superclasses of the given class. Final fields are nor stored.
-	 * Before they are returned, they are set to be accessible.
+	 * The Fields are already set to be accessible. The returned array is shared by all callers (see EntityDescriptor) and must not be modified.
 	 * @param cls the class
 	 * @return a Field[] holding all of the Fields contained by the class and its superclasses. 
 	 */
 	public static Field[] getFields(Class<?> cls){
-		LinkedList<Field> fieldList = getFields(cls, new LinkedList<Field>());
-		Field[] fieldArray = (Field[]) fieldList.toArray(new Field[fieldList.size()]);
-		Field.setAccessible(fieldArray, true);
-		return fieldArray;
-	}
-	
-	/**
-	 * Helper method used by getAll(Class<?> cls) to recursively get all fields of a given class and its superclasses.
-	 * @param cls the class
-	 * @param fields the current list of Fields that have been collected
-	 * @return a LinkedList of all the Fields in the given class and its superclasses
-	 */
-	private static LinkedList<Field> getFields(Class<?> cls, LinkedList<Field> fields){
-		for (Field field: cls.getDeclaredFields()) {
-			if (!java.lang.reflect.Modifier.isFinal(field.getModifiers())) fields.add(field);
-	    }
-
-		if (cls.getSuperclass() != null && cls.getSuperclass() != java.lang.Object.class) fields = getFields(cls.getSuperclass(), fields);
-	    return fields;
+		return EntityDescriptor.get(cls).getFields();
 	}
 
 	/**
@@ -93,16 +73,7 @@ public class DataUtil {
 	 * @return the id field of the class
 	 */
 	public static Field getIdField(Class<?> cls){
-		for(Field field : getFields(cls)){
-			if(field.getAnnotation(Id.class) != null){
-				if(field.getType().getName().equals("int")){
-					field.setAccessible(true);
-					return field;
-				}
-				throw new IdFieldIsNotIntException();
-			}
-		}
-		throw new IdFieldDoesNotExistException();
+		return EntityDescriptor.get(cls).getIdField();
 	}
 	
 	/**
@@ -111,13 +82,69 @@ public class DataUtil {
 	 * @return the id number
 	 */
 	public static int getId(Object obj){
-		Class<?> cls = obj.getClass();
-		Field idField = getIdField(cls);
-		idField.setAccessible(true);
-		try {
-			return idField.getInt(obj);
-		}catch (IllegalAccessException e) {
-			throw new IdFieldIsInaccessibleException();
+		return EntityDescriptor.get(obj.getClass()).getId(obj);
+	}
+
+	/**
+	 * Returns the stored Field of a class with a given name.
+	 * @param cls the class
+	 * @param fieldName the name of the Field
+	 * @return the Field
+	 */
+	public static Field getField(Class<?> cls, String fieldName){
+		Field field = null;
+		for(Field containedField : getFields(cls)){
+			if(containedField.getName().equals(fieldName)) field = containedField;
+		}
+		if(field == null) throw new FieldDoesNotExistException();
+		return field;
+	}
+
+	/**
+	 * Returns the name of the column that stores a field of a class. A reference is stored in a column holding the id number of the
+	 * referenced object, and a collection has no column.
+	 * @param cls the class
+	 * @param fieldName the name of the field
+	 * @return the column name
+	 * @throws MisMatchedFieldValueTypeException if the field is a collection
+	 */
+	public static String getColumnName(Class<?> cls, String fieldName){
+		EntityDescriptor descriptor = EntityDescriptor.get(cls);
+		String columnName = descriptor.getColumnName(descriptor.indexOf(getField(cls, fieldName)));
+		if(columnName == null) throw new MisMatchedFieldValueTypeException();
+		return columnName;
+	}
+
+	/**
+	 * Converts a value to the String form used to bind it as an SQL argument compared against the column of a given Field. The value
+	 * must be an Integer, Double, Float, Long, String or Boolean matching the type of the Field.
+	 * @param field the Field
+	 * @param value the value
+	 * @return the value as a bindable String
+	 */
+	public static String toSQLArgument(Field field, Object value){
+		switch(getFieldTypeId(field)){
+		case FIELD_TYPE_INT:
+			if(!(value instanceof Integer)) throw new MisMatchedFieldValueTypeException();
+			return String.valueOf(value);
+		case FIELD_TYPE_DOUBLE:
+			if(!(value instanceof Double)) throw new MisMatchedFieldValueTypeException();
+			return String.valueOf(value);
+		case FIELD_TYPE_FLOAT:
+			if(!(value instanceof Float)) throw new MisMatchedFieldValueTypeException();
+			//floats are stored widened to double, so 0.1f must be compared as 0.10000000149011612 rather than 0.1
+			return String.valueOf(((Float) value).doubleValue());
+		case FIELD_TYPE_LONG:
+			if(!(value instanceof Long)) throw new MisMatchedFieldValueTypeException();
+			return String.valueOf(value);
+		case FIELD_TYPE_STRING:
+			if(!(value instanceof String)) throw new MisMatchedFieldValueTypeException();
+			return (String) value;
+		case FIELD_TYPE_BOOLEAN:
+			if(!(value instanceof Boolean)) throw new MisMatchedFieldValueTypeException();
+			return (Boolean) value ? "1" : "0";
+		default:
+			throw new MisMatchedFieldValueTypeException();
 		}
 	}
 
@@ -137,7 +164,7 @@ public class DataUtil {
 	 * @return the name of the table that is holding the given class 
 	 */
 	public static String getTableName(Class<?> cls){
-		return cls.getCanonicalName().replace(".", "_");
+		return EntityDescriptor.get(cls).getTableName();
 	}
 	
 	/**
@@ -159,54 +186,49 @@ public class DataUtil {
 	private static <T> T copy(T instance, Cache previosulyClonedObjects){
 		if(instance == null) return null;
 		try{
-			Queue<Field> nonPrimitveFieldQueue = new LinkedList<Field>();
-			Queue<Field> nonPrimitveCollectionFieldQueue = new LinkedList<Field>();
-
 			Class<T> instanceType = (Class<T>) instance.getClass();
-			Field[] typeFields = DataUtil.getFields(instanceType);
+			EntityDescriptor descriptor = EntityDescriptor.get(instanceType);
+			EntityMapper<T> mapper = descriptor.getMapper();
+			int fieldCount = descriptor.getFields().length;
 
-			Object previouslyClonedObject = previosulyClonedObjects.get(instanceType, DataUtil.getId(instance));
+			Object previouslyClonedObject = previosulyClonedObjects.get(instanceType, mapper.getId(instance));
 			if(previouslyClonedObject != null) return (T) previouslyClonedObject;
 
-			T newInstance = instanceType.newInstance();
-
-			for(Field typeField : typeFields){
-				switch(DataUtil.getFieldTypeId(typeField)){
-				case DataUtil.FIELD_TYPE_INT:
-				case DataUtil.FIELD_TYPE_DOUBLE:
-				case DataUtil.FIELD_TYPE_FLOAT:
-				case DataUtil.FIELD_TYPE_LONG:
-				case DataUtil.FIELD_TYPE_STRING:
-				case DataUtil.FIELD_TYPE_BOOLEAN:
-					typeField.set(newInstance, typeField.get(instance));
-					break;
-				case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
-					nonPrimitveFieldQueue.offer(typeField);
-
-					break;
-				case DataUtil.FIELD_TYPE_COLLECTION:
-					nonPrimitveCollectionFieldQueue.offer(typeField);
-
-				}
-			}
+			T newInstance = mapper.newInstance();
+			mapper.copyColumns(instance, newInstance);
 
 			previosulyClonedObjects.put(newInstance);
 
-			for(Field typeField : nonPrimitveFieldQueue){
-				typeField.set(newInstance, copy(typeField.get(instance), previosulyClonedObjects));
+			for(int i=0; i<fieldCount; i++){
+				if(descriptor.getFieldTypeId(i) != DataUtil.FIELD_TYPE_NON_PRIMITIVE) continue;
+				Object reference = mapper.getReference(instance, i);
+				if(reference instanceof LazyReference){
+					//a deferred reference stays deferred in the copy
+					LazyReference<Object> lazyReference = (LazyReference<Object>) reference;
+					LazyReference<Object> referenceCopy = lazyReference.deferredCopy();
+					if(referenceCopy == null) referenceCopy = new LazyReference<Object>(copy(lazyReference.peek(), previosulyClonedObjects));
+					mapper.setReference(newInstance, i, referenceCopy);
+				}else{
+					mapper.setReference(newInstance, i, copy(reference, previosulyClonedObjects));
+				}
 			}
 
-			for(Field typeField : nonPrimitveCollectionFieldQueue){
-				if(typeField.get(instance) == null){
-					typeField.set(newInstance, null);
+			for(int i=0; i<fieldCount; i++){
+				if(descriptor.getFieldTypeId(i) != DataUtil.FIELD_TYPE_COLLECTION) continue;
+				Collection<?> collection = (Collection<?>) mapper.getReference(instance, i);
+				//checked once, as another thread may load the list at any time
+				Collection<?> deferredCopy = collection instanceof LazyArrayList ? ((LazyArrayList<?>) collection).deferredCopy() : null;
+				if(collection == null){
+					mapper.setReference(newInstance, i, null);
+				}else if(deferredCopy != null){
+					mapper.setReference(newInstance, i, deferredCopy);
 				}else{
-					Collection<Object> newCollection = (Collection<Object>) typeField.getType().newInstance();
-					for (Object containedObj : (Collection<?>) typeField.get(instance)) {
+					Collection<Object> newCollection = (Collection<Object>) descriptor.getFields()[i].getType().newInstance();
+					for (Object containedObj : collection) {
 						newCollection.add(copy(containedObj, previosulyClonedObjects));
 					}
-					typeField.set(newInstance, newCollection);
+					mapper.setReference(newInstance, i, newCollection);
 				}
-				break;
 			}
 			return newInstance;
 		}catch (Exception e) {
@@ -0,0 +1,144 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.epsilonlabs.datamanagementefficient.user.DatabaseCallback;
+import net.epsilonlabs.datamanagementefficient.user.DatabaseFuture;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * The DatabaseExecutor runs the calls of AsyncDataManager on its own threads: a single writer thread, because SQLite allows a single
+ * writer, and a pool of reader threads. Each runs its queued calls in order of priority, and calls of the same priority in the order
+ * they were submitted. A read waits for the writes submitted before it at the same or a more urgent priority, so it sees them, but
+ * never for less urgent writes, so an interactive read is not held up by a queue of background writes. A read that is waiting for
+ * writes is not queued on the reader threads until they have finished, so it never occupies a reader thread another read could use.
+ * @author Tom Caputi
+ *
+ */
+public class DatabaseExecutor {
+
+	public static final int PRIORITY_LEVELS = 3;
+	private ThreadPoolExecutor writer;
+	private ThreadPoolExecutor readers;
+	private ScheduledExecutorService deadlineTimer; //expires tasks whose deadline has passed
+	private Handler handler; //posts callbacks to the main thread
+	private AtomicLong sequence = new AtomicLong(); //numbers tasks in the order they are submitted
+	private DatabaseTask<?>[] lastWrites = new DatabaseTask<?>[PRIORITY_LEVELS]; //the last write submitted at each priority, guarded by this executor
+
+	/**
+	 * Constructor. Starts the threads as they are first needed.
+	 * @param readThreads the number of reader threads
+	 */
+	public DatabaseExecutor(int readThreads){
+		this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new DatabaseThreadFactory("DataManagement writer"));
+		this.readers = new ThreadPoolExecutor(readThreads, readThreads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new DatabaseThreadFactory("DataManagement reader"));
+		this.deadlineTimer = Executors.newSingleThreadScheduledExecutor(new DatabaseThreadFactory("DataManagement deadlines"));
+		this.handler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Queues a call that changes the database or the pending changes on the writer thread.
+	 * @param callable the call
+	 * @param priority the priority, from 0 (most urgent) to PRIORITY_LEVELS - 1
+	 * @param callback receives the result on the main thread, or null
+	 * @return the DatabaseFuture of the result
+	 */
+	public <T> DatabaseFuture<T> submitWrite(Callable<T> callable, int priority, DatabaseCallback<T> callback){
+		DatabaseTask<T> task;
+		synchronized(this){
+			task = newTask(callable, priority, callback);
+			lastWrites[priority] = task;
+			//queued while locked so that tasks of the same priority reach the queue in the order of their sequence numbers
+			writer.execute(task);
+		}
+		return task;
+	}
+
+	/**
+	 * Queues a call that only reads the database on a reader thread. The call is queued once the writes submitted before it at the
+	 * same or a more urgent priority have finished.
+	 * @param callable the call
+	 * @param priority the priority, from 0 (most urgent) to PRIORITY_LEVELS - 1
+	 * @param callback receives the result on the main thread, or null
+	 * @return the DatabaseFuture of the result
+	 */
+	public <T> DatabaseFuture<T> submitRead(Callable<T> callable, int priority, DatabaseCallback<T> callback){
+		final DatabaseTask<T> task;
+		List<DatabaseTask<?>> prerequisites = new ArrayList<DatabaseTask<?>>();
+		synchronized(this){
+			task = newTask(callable, priority, callback);
+			for(int i=0; i<=priority; i++){
+				if(lastWrites[i] != null && !lastWrites[i].isDone()) prerequisites.add(lastWrites[i]);
+			}
+		}
+		//counts the unfinished prerequisites, plus one released below once all of them have been registered
+		final AtomicInteger remaining = new AtomicInteger(prerequisites.size() + 1);
+		Runnable release = new Runnable() {
+			@Override
+			public void run() {
+				if(remaining.decrementAndGet() == 0) readers.execute(task);
+			}
+		};
+		for(DatabaseTask<?> prerequisite : prerequisites) prerequisite.whenFinished(release);
+		release.run();
+		return task;
+	}
+
+	/**
+	 * Sets the number of reader threads.
+	 * @param readThreads the number of reader threads
+	 */
+	public void setReadThreads(int readThreads){
+		if(readThreads > readers.getMaximumPoolSize()){
+			readers.setMaximumPoolSize(readThreads);
+			readers.setCorePoolSize(readThreads);
+		}else{
+			readers.setCorePoolSize(readThreads);
+			readers.setMaximumPoolSize(readThreads);
+		}
+	}
+
+	/**
+	 * Creates a task and attaches its callback.
+	 * @param callable the call
+	 * @param priority the priority
+	 * @param callback receives the result on the main thread, or null
+	 * @return the task
+	 */
+	private <T> DatabaseTask<T> newTask(Callable<T> callable, int priority, DatabaseCallback<T> callback){
+		if(priority < 0 || priority >= PRIORITY_LEVELS) throw new IllegalArgumentException("Invalid priority: " + priority);
+		DatabaseTask<T> task = new DatabaseTask<T>(callable, priority, sequence.getAndIncrement(), handler, deadlineTimer);
+		if(callback != null) task.addCallback(callback);
+		return task;
+	}
+
+	/**
+	 * Creates the daemon threads of the executor, so that they never keep the process alive.
+	 */
+	private static class DatabaseThreadFactory implements ThreadFactory {
+
+		private String name;
+
+		private DatabaseThreadFactory(String name){
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.epsilonlabs.datamanagementefficient.exception.DeadlineExceededException;
+import net.epsilonlabs.datamanagementefficient.user.DatabaseCallback;
+import net.epsilonlabs.datamanagementefficient.user.DatabaseFuture;
+import android.os.Handler;
+
+/**
+ * A DatabaseTask is a call queued on a DatabaseExecutor together with the DatabaseFuture of its result. Tasks are ordered by
+ * priority and then by the order they were submitted in. Other code can be run as soon as a task finishes (see whenFinished()), which
+ * the DatabaseExecutor uses to queue a task only once the tasks it depends on have finished.
+ * @author Tom Caputi
+ *
+ * @param <T> the type of the result
+ */
+public class DatabaseTask<T> implements DatabaseFuture<T>, Runnable, Comparable<DatabaseTask<?>> {
+
+	private static final int PENDING = 0;
+	private static final int RUNNING = 1;
+	private static final int SUCCEEDED = 2;
+	private static final int FAILED = 3;
+	private static final int CANCELLED = 4;
+	private Callable<T> callable;
+	private int priority; //lower values run first
+	private long sequence; //orders tasks of the same priority by submission
+	private Handler handler; //posts callbacks to the main thread
+	private ScheduledExecutorService deadlineTimer; //expires tasks whose deadline has passed
+	private AtomicInteger state = new AtomicInteger(PENDING);
+	private CountDownLatch finished = new CountDownLatch(1);
+	private T result;
+	private Throwable failure;
+	private List<DatabaseCallback<T>> callbacks = new ArrayList<DatabaseCallback<T>>(); //guarded by this task
+	private List<Runnable> finishListeners = new ArrayList<Runnable>(); //run when the task finishes, guarded by this task
+	private volatile ScheduledFuture<?> expiry; //the scheduled expiry of the deadline, or null if none was set
+
+	/**
+	 * Constructor.
+	 * @param callable the call
+	 * @param priority the priority, lower values run first
+	 * @param sequence the position of the task among those submitted
+	 * @param handler posts callbacks to the main thread
+	 * @param deadlineTimer expires tasks whose deadline has passed
+	 */
+	public DatabaseTask(Callable<T> callable, int priority, long sequence, Handler handler, ScheduledExecutorService deadlineTimer){
+		this.callable = callable;
+		this.priority = priority;
+		this.sequence = sequence;
+		this.handler = handler;
+		this.deadlineTimer = deadlineTimer;
+	}
+
+	@Override
+	public void run() {
+		if(!state.compareAndSet(PENDING, RUNNING)) return;
+		T callResult;
+		try{
+			callResult = callable.call();
+		}catch(Throwable t){
+			finish(FAILED, null, t);
+			return;
+		}
+		finish(SUCCEEDED, callResult, null);
+	}
+
+	@Override
+	public int compareTo(DatabaseTask<?> another) {
+		if(priority != another.priority) return priority < another.priority ? -1 : 1;
+		if(sequence == another.sequence) return 0;
+		return sequence < another.sequence ? -1 : 1;
+	}
+
+	/**
+	 * Cancels the task if it has not started yet. A task that has started always runs to the end.
+	 * @param mayInterruptIfRunning ignored, running tasks are never interrupted
+	 * @return true if the task was cancelled
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(CANCELLED, null, null);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return state.get() == CANCELLED;
+	}
+
+	@Override
+	public boolean isDone() {
+		return state.get() >= SUCCEEDED;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		finished.await();
+		return report();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!finished.await(timeout, unit)) throw new TimeoutException();
+		return report();
+	}
+
+	@Override
+	public DatabaseFuture<T> expireAfter(long millis) {
+		if(state.get() != PENDING) return this;
+		expiry = deadlineTimer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				finish(FAILED, null, new DeadlineExceededException());
+			}
+		}, millis, TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	@Override
+	public DatabaseFuture<T> addCallback(DatabaseCallback<T> callback) {
+		T finishedResult;
+		synchronized(this){
+			if(state.get() < SUCCEEDED){
+				callbacks.add(callback);
+				return this;
+			}
+			if(state.get() != SUCCEEDED) return this;
+			finishedResult = result;
+		}
+		post(callback, finishedResult);
+		return this;
+	}
+
+	/**
+	 * Runs a Runnable once the task has finished, whether it succeeded, failed or was cancelled. If the task has already finished the
+	 * Runnable is run at once on the calling thread, otherwise it is run on the thread that finishes the task.
+	 * @param listener the Runnable
+	 */
+	public void whenFinished(Runnable listener){
+		synchronized(this){
+			if(state.get() < SUCCEEDED){
+				finishListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Finishes the task and notifies the callbacks if it succeeded. A task that is cancelled or expires must still be pending; a task
+	 * that succeeds or fails must be running.
+	 * @param finalState SUCCEEDED, FAILED or CANCELLED
+	 * @param callResult the result of the call if it succeeded
+	 * @param callFailure the exception thrown by the call if it failed
+	 * @return true if the task was finished by this call
+	 */
+	private boolean finish(int finalState, T callResult, Throwable callFailure){
+		List<DatabaseCallback<T>> finishedCallbacks;
+		List<Runnable> finishedListeners;
+		synchronized(this){
+			int expectedState = finalState == CANCELLED || callFailure instanceof DeadlineExceededException ? PENDING : RUNNING;
+			if(!state.compareAndSet(expectedState, finalState)) return false;
+			result = callResult;
+			failure = callFailure;
+			finishedCallbacks = callbacks;
+			callbacks = null;
+			finishedListeners = finishListeners;
+			finishListeners = null;
+		}
+		finished.countDown();
+		ScheduledFuture<?> scheduledExpiry = expiry;
+		if(scheduledExpiry != null) scheduledExpiry.cancel(false);
+		for(Runnable listener : finishedListeners) listener.run();
+		if(finalState == SUCCEEDED){
+			for(DatabaseCallback<T> callback : finishedCallbacks) post(callback, callResult);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the result of a finished task.
+	 * @return the result
+	 * @throws ExecutionException if the task failed
+	 */
+	private T report() throws ExecutionException {
+		switch(state.get()){
+		case CANCELLED:
+			throw new CancellationException();
+		case FAILED:
+			throw new ExecutionException(failure);
+		default:
+			return result;
+		}
+	}
+
+	/**
+	 * Posts a result to a callback on the main thread.
+	 * @param callback the callback
+	 * @param callResult the result
+	 */
+	private void post(final DatabaseCallback<T> callback, final T callResult){
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				callback.onCallback(callResult);
+			}
+		});
+	}
+}
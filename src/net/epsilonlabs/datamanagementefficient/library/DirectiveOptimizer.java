@@ -0,0 +1,178 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import net.epsilonlabs.datamanagementefficient.directive.CreateDirective;
+import net.epsilonlabs.datamanagementefficient.directive.CreateReferenceDirective;
+import net.epsilonlabs.datamanagementefficient.directive.DeleteDirective;
+import net.epsilonlabs.datamanagementefficient.directive.DeleteReferenceDirective;
+import net.epsilonlabs.datamanagementefficient.directive.Directive;
+import net.epsilonlabs.datamanagementefficient.directive.UpdateDirective;
+
+/**
+ * The DirectiveOptimizer reduces a queue of pending Directives to the smallest equivalent queue before it is committed. Updates to a
+ * row that is created in the same queue are folded into its CreateDirective, successive updates to the same row are merged, and rows
+ * or references that are created and then deleted in the same queue are dropped entirely. The surviving Directives are then grouped
+ * by the table they act on so that consecutive Directives reuse the same compiled statements.
+ * @author Tom Caputi
+ *
+ */
+public class DirectiveOptimizer {
+
+	/**
+	 * Private constructor. The optimizer only has static methods.
+	 */
+	private DirectiveOptimizer(){}
+
+	/**
+	 * Optimizes a queue of Directives in place. Directives acting on the same row or reference keep their relative order.
+	 * @param directives the queue of Directives to be optimized
+	 */
+	public static void optimize(Queue<Directive> directives){
+		if(directives.size() < 2) return;
+		List<Directive> directiveList = new ArrayList<Directive>(directives);
+		boolean[] removed = new boolean[directiveList.size()];
+
+		Map<String, Integer> creates = new HashMap<String, Integer>(); //rows created in this queue, by row key
+		Map<String, Integer> updates = new HashMap<String, Integer>(); //the first update of each row not created in this queue, by row key
+		Map<String, Integer> referenceCreates = new HashMap<String, Integer>(); //references created in this queue and not yet deleted, by reference key
+		Map<String, List<Integer>> referenceCreatesByParent = new HashMap<String, List<Integer>>(); //the indexes of references created in this queue, by the row key of their parent
+
+		for(int i=0; i<directiveList.size(); i++){
+			Directive directive = directiveList.get(i);
+			if(directive instanceof CreateDirective){
+				Object instance = ((CreateDirective)directive).getInstance();
+				creates.put(getRowKey(instance.getClass(), DataUtil.getId(instance)), i);
+			}else if(directive instanceof UpdateDirective){
+				UpdateDirective ud = (UpdateDirective)directive;
+				String rowKey = getRowKey(ud.getCls(), ud.getRowId());
+				Integer createIndex = creates.get(rowKey);
+				Integer updateIndex = updates.get(rowKey);
+				if(createIndex != null){
+					((CreateDirective)directiveList.get(createIndex)).getValues().putAll(ud.getValues());
+					removed[i] = true;
+				}else if(updateIndex != null){
+					((UpdateDirective)directiveList.get(updateIndex)).getValues().putAll(ud.getValues());
+					removed[i] = true;
+				}else{
+					updates.put(rowKey, i);
+				}
+			}else if(directive instanceof DeleteDirective){
+				DeleteDirective dd = (DeleteDirective)directive;
+				String rowKey = getRowKey(dd.getCls(), dd.getRowId());
+				Integer updateIndex = updates.remove(rowKey);
+				if(updateIndex != null) removed[updateIndex] = true;
+				Integer createIndex = creates.remove(rowKey);
+				if(createIndex != null){
+					//the row never reaches the database, so neither do the references it owns
+					removed[createIndex] = true;
+					removed[i] = true;
+					List<Integer> ownedReferences = referenceCreatesByParent.remove(rowKey);
+					if(ownedReferences != null){
+						for(int referenceIndex : ownedReferences){
+							removed[referenceIndex] = true;
+							referenceCreates.remove(getReferenceKey((CreateReferenceDirective)directiveList.get(referenceIndex)));
+						}
+					}
+				}
+			}else if(directive instanceof CreateReferenceDirective){
+				CreateReferenceDirective crd = (CreateReferenceDirective)directive;
+				String referenceKey = getReferenceKey(crd);
+				if(referenceCreates.containsKey(referenceKey)){
+					removed[i] = true;
+				}else{
+					referenceCreates.put(referenceKey, i);
+					//references of a new row are queued before its CreateDirective, so they are tracked for every parent
+					String parentKey = getRowKey(crd.getParentType(), crd.getParentId());
+					List<Integer> ownedReferences = referenceCreatesByParent.get(parentKey);
+					if(ownedReferences == null){
+						ownedReferences = new ArrayList<Integer>();
+						referenceCreatesByParent.put(parentKey, ownedReferences);
+					}
+					ownedReferences.add(i);
+				}
+			}else if(directive instanceof DeleteReferenceDirective){
+				DeleteReferenceDirective drd = (DeleteReferenceDirective)directive;
+				Integer createIndex = referenceCreates.remove(getReferenceKey(drd.getParentType(), drd.getChildName(), drd.getParentId(), drd.getChildId()));
+				if(createIndex != null){
+					removed[createIndex] = true;
+					removed[i] = true;
+				}
+			}
+		}
+
+		//stable grouping by table keeps the order of Directives acting on the same row or reference
+		Map<String, List<Directive>> directivesByTable = new LinkedHashMap<String, List<Directive>>();
+		for(int i=0; i<directiveList.size(); i++){
+			if(removed[i]) continue;
+			Directive directive = directiveList.get(i);
+			String tableName = getTableName(directive);
+			List<Directive> tableDirectives = directivesByTable.get(tableName);
+			if(tableDirectives == null){
+				tableDirectives = new ArrayList<Directive>();
+				directivesByTable.put(tableName, tableDirectives);
+			}
+			tableDirectives.add(directive);
+		}
+
+		directives.clear();
+		for(List<Directive> tableDirectives : directivesByTable.values()){
+			directives.addAll(tableDirectives);
+		}
+	}
+
+	/**
+	 * Returns the name of the table a Directive acts on.
+	 * @param directive the Directive
+	 * @return the table name
+	 */
+	private static String getTableName(Directive directive){
+		if(directive instanceof CreateDirective) return DataUtil.getTableName(((CreateDirective)directive).getInstance().getClass());
+		else if(directive instanceof UpdateDirective) return DataUtil.getTableName(((UpdateDirective)directive).getCls());
+		else if(directive instanceof DeleteDirective) return DataUtil.getTableName(((DeleteDirective)directive).getCls());
+		else if(directive instanceof CreateReferenceDirective){
+			CreateReferenceDirective crd = (CreateReferenceDirective)directive;
+			return DataUtil.getTableName(crd.getParentType()) + "_" + crd.getChildName();
+		}else if(directive instanceof DeleteReferenceDirective){
+			DeleteReferenceDirective drd = (DeleteReferenceDirective)directive;
+			return DataUtil.getTableName(drd.getParentType()) + "_" + drd.getChildName();
+		}
+		return "";
+	}
+
+	/**
+	 * Returns a key identifying a single row of a storable class.
+	 * @param cls the class
+	 * @param rowId the id of the row
+	 * @return the row key
+	 */
+	private static String getRowKey(Class<?> cls, int rowId){
+		return cls.getName() + "#" + rowId;
+	}
+
+	/**
+	 * Returns a key identifying a single reference row created by a CreateReferenceDirective.
+	 * @param crd the CreateReferenceDirective
+	 * @return the reference key
+	 */
+	private static String getReferenceKey(CreateReferenceDirective crd){
+		return getReferenceKey(crd.getParentType(), crd.getChildName(), crd.getParentId(), crd.getChildId());
+	}
+
+	/**
+	 * Returns a key identifying a single reference row.
+	 * @param parentType the class of the parent
+	 * @param childName the name of the collection Field
+	 * @param parentId the id of the parent
+	 * @param childId the id of the child
+	 * @return the reference key
+	 */
+	private static String getReferenceKey(Class<?> parentType, String childName, int parentId, int childId){
+		return parentType.getName() + "#" + childName + "#" + parentId + "#" + childId;
+	}
+}
@@ -0,0 +1,397 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.epsilonlabs.datamanagementefficient.annotations.CompositeIndex;
+import net.epsilonlabs.datamanagementefficient.annotations.CompositeIndexes;
+import net.epsilonlabs.datamanagementefficient.annotations.Id;
+import net.epsilonlabs.datamanagementefficient.annotations.Indexed;
+import net.epsilonlabs.datamanagementefficient.annotations.Lazy;
+import net.epsilonlabs.datamanagementefficient.annotations.Unique;
+import net.epsilonlabs.datamanagementefficient.exception.IdFieldDoesNotExistException;
+import net.epsilonlabs.datamanagementefficient.exception.IdFieldIsNotIntException;
+import net.epsilonlabs.datamanagementefficient.exception.IndexedFieldInvalidException;
+import net.epsilonlabs.datamanagementefficient.user.LazyReference;
+import android.database.Cursor;
+
+/**
+ * The EntityDescriptor holds all of the reflected information about a storable class: its stored Fields in order, the type id and
+ * column name of each Field, its id Field and its table name. Descriptors are computed once per class and kept in a registry, so
+ * the class hierarchy is only walked the first time a class is used.
+ * @author Tom Caputi
+ *
+ */
+public class EntityDescriptor {
+
+	public static final String INDEX_PREFIX = "idx_";
+	public static final String UNIQUE_INDEX_PREFIX = "uidx_";
+	private static final Map<Class<?>, EntityDescriptor> registry = new ConcurrentHashMap<Class<?>, EntityDescriptor>(); //holds a map of Classes to their descriptors
+
+	private final Class<?> type;
+	private final String tableName;
+	private final Field[] fields; //all stored Fields of the class and its superclasses, already set to be accessible
+	private final int[] fieldTypeIds; //the DataUtil.FIELD_TYPE... id of each Field
+	private final String[] columnNames; //the column name of each Field, or null for collection Fields
+	private final Class<?>[] storedCollectionClasses; //the class stored within each collection Field, or null for other Fields
+	private final Class<?>[] referencedClasses; //the class referenced by each non-primitive Field, or null for other Fields
+	private final boolean[] lazyReferences; //true for each non-primitive Field declared as a LazyReference
+	private final boolean[] lazyByDefault; //true for each Field that is loaded lazily unless a FetchPlan says otherwise
+	private final int[] parameterIndexes; //the insert SQL parameter index of each Field, or -1 for collection Fields
+	private final Field idField; //the Field marked with @Id, or null if there is none
+	private final String insertSQL; //the SQL that inserts a full row with every column bound as a parameter
+	private final Map<String, String> indexSQL; //holds a map of the names of the declared indexes to the SQL that creates them
+	private EntityMapper<?> mapper; //the mapper used to move values in and out of instances, looked up on first use
+
+	/**
+	 * Returns the descriptor of a given class, computing it if the class has not been described before.
+	 * @param cls the class
+	 * @return the descriptor of the class
+	 */
+	public static EntityDescriptor get(Class<?> cls){
+		EntityDescriptor descriptor = registry.get(cls);
+		if(descriptor == null){
+			descriptor = new EntityDescriptor(cls);
+			registry.put(cls, descriptor);
+		}
+		return descriptor;
+	}
+
+	/**
+	 * Private constructor for use by get(Class). Reflects over the class and its superclasses.
+	 * @param cls the class to be described
+	 */
+	private EntityDescriptor(Class<?> cls){
+		this.type = cls;
+		this.tableName = cls.getCanonicalName().replace(".", "_");
+
+		//Fields are ordered by name within each class so that the order matches the order used by generated mappers
+		ArrayList<Field> fieldList = new ArrayList<Field>();
+		Class<?> currentClass = cls;
+		while(currentClass != null && currentClass != Object.class){
+			ArrayList<Field> declaredFieldList = new ArrayList<Field>();
+			for(Field field : currentClass.getDeclaredFields()){
+				if(!Modifier.isFinal(field.getModifiers()) && !field.isSynthetic()) declaredFieldList.add(field);
+			}
+			Collections.sort(declaredFieldList, new Comparator<Field>() {
+				@Override
+				public int compare(Field lhs, Field rhs) {
+					return lhs.getName().compareTo(rhs.getName());
+				}
+			});
+			fieldList.addAll(declaredFieldList);
+			currentClass = currentClass.getSuperclass();
+		}
+		this.fields = fieldList.toArray(new Field[fieldList.size()]);
+		Field.setAccessible(fields, true);
+
+		this.fieldTypeIds = new int[fields.length];
+		this.columnNames = new String[fields.length];
+		this.storedCollectionClasses = new Class<?>[fields.length];
+		this.referencedClasses = new Class<?>[fields.length];
+		this.lazyReferences = new boolean[fields.length];
+		this.lazyByDefault = new boolean[fields.length];
+		Field foundIdField = null;
+		for(int i=0; i<fields.length; i++){
+			fieldTypeIds[i] = DataUtil.getFieldTypeId(fields[i]);
+			switch(fieldTypeIds[i]){
+			case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
+				columnNames[i] = fields[i].getName() + "_ref";
+				if(fields[i].getType() == LazyReference.class){
+					ParameterizedType referenceType = (ParameterizedType) fields[i].getGenericType();
+					referencedClasses[i] = (Class<?>) referenceType.getActualTypeArguments()[0];
+					lazyReferences[i] = true;
+					lazyByDefault[i] = true;
+				}else{
+					referencedClasses[i] = fields[i].getType();
+				}
+				break;
+			case DataUtil.FIELD_TYPE_COLLECTION:
+				ParameterizedType listType = (ParameterizedType) fields[i].getGenericType();
+				storedCollectionClasses[i] = (Class<?>) listType.getActualTypeArguments()[0];
+				lazyByDefault[i] = fields[i].getAnnotation(Lazy.class) != null && canBeDeferred(i);
+				break;
+			default:
+				columnNames[i] = fields[i].getName();
+				break;
+			}
+			if(foundIdField == null && fields[i].getAnnotation(Id.class) != null) foundIdField = fields[i];
+		}
+		this.idField = foundIdField;
+
+		this.parameterIndexes = new int[fields.length];
+		int parameterIndex = 1;
+		String SQLInsertColumns = "";
+		String SQLInsertValues = "";
+		for(int i=0; i<fields.length; i++){
+			if(columnNames[i] == null){
+				parameterIndexes[i] = -1;
+				continue;
+			}
+			parameterIndexes[i] = parameterIndex++;
+			if(SQLInsertColumns.length() != 0){
+				SQLInsertColumns += ", ";
+				SQLInsertValues += ", ";
+			}
+			SQLInsertColumns += columnNames[i];
+			SQLInsertValues += "?";
+		}
+		this.insertSQL = "INSERT INTO " + tableName + " (" + SQLInsertColumns + ") VALUES (" + SQLInsertValues + ");";
+
+		this.indexSQL = new LinkedHashMap<String, String>();
+		for(int i=0; i<fields.length; i++){
+			boolean unique = fields[i].getAnnotation(Unique.class) != null;
+			if(!unique && fields[i].getAnnotation(Indexed.class) == null) continue;
+			if(columnNames[i] == null) throw new IndexedFieldInvalidException();
+			addIndex(new String[]{columnNames[i]}, unique);
+		}
+		CompositeIndex compositeIndex = cls.getAnnotation(CompositeIndex.class);
+		if(compositeIndex != null) addCompositeIndex(compositeIndex);
+		CompositeIndexes compositeIndexes = cls.getAnnotation(CompositeIndexes.class);
+		if(compositeIndexes != null){
+			for(CompositeIndex containedIndex : compositeIndexes.value()) addCompositeIndex(containedIndex);
+		}
+	}
+
+	/**
+	 * Adds the index declared by a @CompositeIndex annotation to indexSQL.
+	 * @param compositeIndex the annotation
+	 */
+	private void addCompositeIndex(CompositeIndex compositeIndex){
+		String[] fieldNames = compositeIndex.value();
+		if(fieldNames.length == 0) throw new IndexedFieldInvalidException();
+		String[] indexColumns = new String[fieldNames.length];
+		for(int i=0; i<fieldNames.length; i++){
+			for(int j=0; j<fields.length; j++){
+				if(fields[j].getName().equals(fieldNames[i])) indexColumns[i] = columnNames[j];
+			}
+			if(indexColumns[i] == null) throw new IndexedFieldInvalidException();
+		}
+		addIndex(indexColumns, compositeIndex.unique());
+	}
+
+	/**
+	 * Adds an index over some columns to indexSQL. The name of the index records its table, columns and uniqueness, so any change
+	 * to its declaration gives it a new name.
+	 * @param indexColumns the indexed column names, in order
+	 * @param unique true if the index is unique
+	 */
+	private void addIndex(String[] indexColumns, boolean unique){
+		String indexName = (unique ? UNIQUE_INDEX_PREFIX : INDEX_PREFIX) + tableName;
+		String columnList = "";
+		for(int i=0; i<indexColumns.length; i++){
+			indexName += "_" + indexColumns[i];
+			if(i != 0) columnList += ", ";
+			columnList += indexColumns[i];
+		}
+		indexSQL.put(indexName, "CREATE " + (unique ? "UNIQUE " : "") + "INDEX IF NOT EXISTS " + indexName + " ON " + tableName + " (" + columnList + ");");
+	}
+
+	/**
+	 * Getter for the described class
+	 * @return the class
+	 */
+	public Class<?> getType(){
+		return type;
+	}
+
+	/**
+	 * Getter for the name of the table holding the described class
+	 * @return the table name
+	 */
+	public String getTableName(){
+		return tableName;
+	}
+
+	/**
+	 * Returns the stored Fields of the described class and its superclasses. The returned array is shared and must not be modified.
+	 * @return a Field[] of all stored Fields
+	 */
+	public Field[] getFields(){
+		return fields;
+	}
+
+	/**
+	 * Returns the index of a Field in getFields().
+	 * @param field the Field
+	 * @return the index of the Field, or -1 if it is not stored
+	 */
+	public int indexOf(Field field){
+		for(int i=0; i<fields.length; i++){
+			if(fields[i].equals(field)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the type id of the Field at a given index (See DataUtil.FIELD_TYPE... variables).
+	 * @param index the index of the Field in getFields()
+	 * @return the Field type as an int
+	 */
+	public int getFieldTypeId(int index){
+		return fieldTypeIds[index];
+	}
+
+	/**
+	 * Returns the name of the column that stores the Field at a given index.
+	 * @param index the index of the Field in getFields()
+	 * @return the column name, or null if the Field is a collection
+	 */
+	public String getColumnName(int index){
+		return columnNames[index];
+	}
+
+	/**
+	 * Returns the class stored within the collection Field at a given index.
+	 * @param index the index of the Field in getFields()
+	 * @return the stored class, or null if the Field is not a collection
+	 */
+	public Class<?> getStoredClassOfCollection(int index){
+		return storedCollectionClasses[index];
+	}
+
+	/**
+	 * Returns the class referenced by the non-primitive Field at a given index. For a LazyReference Field this is the class of the
+	 * object it holds.
+	 * @param index the index of the Field in getFields()
+	 * @return the referenced class, or null if the Field is not non-primitive
+	 */
+	public Class<?> getReferencedClass(int index){
+		return referencedClasses[index];
+	}
+
+	/**
+	 * Returns true if the non-primitive Field at a given index is declared as a LazyReference.
+	 * @param index the index of the Field in getFields()
+	 * @return true if the Field holds a LazyReference
+	 */
+	public boolean isLazyReference(int index){
+		return lazyReferences[index];
+	}
+
+	/**
+	 * Returns true if the Field at a given index can be loaded lazily. This is the case for LazyReference Fields and for collection
+	 * Fields that can hold a LazyArrayList.
+	 * @param index the index of the Field in getFields()
+	 * @return true if the Field can be loaded lazily
+	 */
+	public boolean canBeDeferred(int index){
+		if(fieldTypeIds[index] == DataUtil.FIELD_TYPE_COLLECTION) return fields[index].getType().isAssignableFrom(LazyArrayList.class);
+		return lazyReferences[index];
+	}
+
+	/**
+	 * Returns true if the Field at a given index is loaded lazily when no FetchPlan says otherwise: LazyReference Fields and
+	 * collection Fields marked with @Lazy.
+	 * @param index the index of the Field in getFields()
+	 * @return true if the Field is lazy by default
+	 */
+	public boolean isLazyByDefault(int index){
+		return lazyByDefault[index];
+	}
+
+	/**
+	 * Returns the name of the reference table that stores the collection Field at a given index.
+	 * @param index the index of the Field in getFields()
+	 * @return the reference table name
+	 */
+	public String getReferenceTableName(int index){
+		return tableName + "_" + fields[index].getName();
+	}
+
+	/**
+	 * Returns the SQL that inserts a full row into the table of the described class. Every non-collection Field is bound as a parameter,
+	 * in Field index order (see EntityMapper.bindColumns()).
+	 * @return the insert SQL
+	 */
+	public String getInsertSQL(){
+		return insertSQL;
+	}
+
+	/**
+	 * Returns the indexes declared on the described class with @Indexed, @Unique, @CompositeIndex and @CompositeIndexes. Every index
+	 * name starts with INDEX_PREFIX or UNIQUE_INDEX_PREFIX followed by the table name. The returned map is shared and must not be
+	 * modified.
+	 * @return a map of index names to the SQL that creates each index if it does not exist
+	 */
+	public Map<String, String> getIndexSQL(){
+		return indexSQL;
+	}
+
+	/**
+	 * Returns the insert SQL parameter that the Field at a given index is bound to.
+	 * @param index the index of the Field in getFields()
+	 * @return the 1-based parameter index, or -1 if the Field is a collection
+	 */
+	public int getParameterIndex(int index){
+		return parameterIndexes[index];
+	}
+
+	/**
+	 * Returns the Cursor column index of each Field, by Field index. Collection Fields are given -1.
+	 * @param cursor a Cursor over the table of the described class
+	 * @return the column indexes
+	 */
+	public int[] getColumnIndexes(Cursor cursor){
+		int[] columnIndexes = new int[fields.length];
+		for(int i=0; i<fields.length; i++){
+			if(columnNames[i] == null) columnIndexes[i] = -1;
+			else columnIndexes[i] = cursor.getColumnIndex(columnNames[i]);
+		}
+		return columnIndexes;
+	}
+
+	/**
+	 * Returns the EntityMapper of the described class. A generated mapper named [class name]_EntityMapper is used if one exists,
+	 * otherwise a ReflectiveEntityMapper is created.
+	 * @return the mapper
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> EntityMapper<T> getMapper(){
+		if(mapper == null){
+			EntityMapper<?> foundMapper;
+			try {
+				foundMapper = (EntityMapper<?>) Class.forName(type.getName() + "_EntityMapper", true, type.getClassLoader()).newInstance();
+			} catch (Exception e) {
+				foundMapper = new ReflectiveEntityMapper<Object>(this);
+			}
+			mapper = foundMapper;
+		}
+		return (EntityMapper<T>) mapper;
+	}
+
+	/**
+	 * Returns the Field marked with the @Id annotation.
+	 * @return the id Field
+	 */
+	public Field getIdField(){
+		if(idField == null) throw new IdFieldDoesNotExistException();
+		if(idField.getType() != int.class) throw new IdFieldIsNotIntException();
+		return idField;
+	}
+
+	/**
+	 * Returns the id number of an instance of the described class.
+	 * @param obj the instance
+	 * @return the id number
+	 */
+	public int getId(Object obj){
+		return getMapper().getId(obj);
+	}
+
+	/**
+	 * Sets the id number of an instance of the described class.
+	 * @param obj the instance
+	 * @param id the id number
+	 */
+	public void setId(Object obj, int id){
+		getMapper().setId(obj, id);
+	}
+}
@@ -0,0 +1,77 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * An EntityMapper moves values between instances of a storable class, database rows and copies of those instances. Fields are
+ * addressed by their index in EntityDescriptor.getFields(). The annotation processor in the processor source folder generates a
+ * mapper named [class name]_EntityMapper for every storable class whose Fields it can access directly; classes without a generated
+ * mapper use the ReflectiveEntityMapper.
+ * @author Tom Caputi
+ *
+ * @param <T> the storable class
+ */
+public interface EntityMapper<T> {
+
+	/**
+	 * Creates a new, empty instance of the storable class using its empty constructor.
+	 * @return the new instance
+	 */
+	public T newInstance();
+
+	/**
+	 * Returns the id number of an instance.
+	 * @param instance the instance
+	 * @return the id number
+	 */
+	public int getId(T instance);
+
+	/**
+	 * Sets the id number of an instance.
+	 * @param instance the instance
+	 * @param id the id number
+	 */
+	public void setId(T instance, int id);
+
+	/**
+	 * Reads all primitive and String Fields of an instance from a Cursor positioned at the instance's row. Null numerical columns are
+	 * given the default upgrade value.
+	 * @param instance the instance to be filled
+	 * @param cursor the Cursor
+	 * @param columnIndexes the Cursor column index of each Field, by Field index
+	 * @param defaultUpgradeValue the value given to numerical Fields whose column is null
+	 */
+	public void readColumns(T instance, Cursor cursor, int[] columnIndexes, int defaultUpgradeValue);
+
+	/**
+	 * Binds all non-collection Fields of an instance to a statement, starting at parameter 1 and in Field index order. Non-primitive
+	 * Fields are bound as the id number of the referenced object, or null.
+	 * @param instance the instance
+	 * @param statement the compiled statement
+	 */
+	public void bindColumns(T instance, SQLiteStatement statement);
+
+	/**
+	 * Copies all primitive and String Fields from one instance to another.
+	 * @param source the instance to copy from
+	 * @param destination the instance to copy to
+	 */
+	public void copyColumns(T source, T destination);
+
+	/**
+	 * Returns the value of a non-primitive or collection Field.
+	 * @param instance the instance
+	 * @param fieldIndex the index of the Field
+	 * @return the referenced object or collection
+	 */
+	public Object getReference(T instance, int fieldIndex);
+
+	/**
+	 * Sets the value of a non-primitive or collection Field.
+	 * @param instance the instance
+	 * @param fieldIndex the index of the Field
+	 * @param value the referenced object or collection
+	 */
+	public void setReference(T instance, int fieldIndex, Object value);
+}
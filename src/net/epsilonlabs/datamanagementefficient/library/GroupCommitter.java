@@ -0,0 +1,187 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+/**
+ * The GroupCommitter commits the pending changes of a PersistenceContext on a background thread once enough of them have built up:
+ * when a number of Directives are pending, when their estimated size reaches a number of bytes, or when the oldest of them has waited
+ * for a given time. Threads that need their changes written ask for a flush and wait for it, so changes made by many threads at
+ * once are written together in one transaction instead of one transaction each.
+ * @author Tom Caputi
+ *
+ */
+public class GroupCommitter {
+
+	private PersistenceContext pc;
+	private int maxDirectives; //the number of pending Directives that starts a flush, or 0 for no limit
+	private long maxBytes; //the estimated size of the pending Directives that starts a flush, or 0 for no limit
+	private long maxDelayMillis; //the time the oldest pending Directive may wait before a flush starts, or 0 for no limit
+	private Thread thread;
+	private boolean running = false; //all of the following are guarded by this GroupCommitter
+	private boolean flushRequested = false; //true if a thread is waiting for the next flush or asked for one
+	private boolean syncRequested = false; //true if a thread waiting for the next flush needs it to be synced
+	private long startedFlushes = 0; //the number of flushes started so far
+	private long completedFlushes = 0; //the number of flushes completed so far, whether or not they succeeded
+	private long lastSucceededFlush = 0; //the number of the last flush that succeeded
+	private RuntimeException lastFailure; //the exception thrown by the last flush that failed
+
+	/**
+	 * Constructor.
+	 * @param pc the PersistenceContext whose changes are committed
+	 * @param maxDirectives the number of pending Directives that starts a flush, or 0 for no limit
+	 * @param maxBytes the estimated size of the pending Directives that starts a flush, or 0 for no limit
+	 * @param maxDelayMillis the time the oldest pending Directive may wait before a flush starts, or 0 for no limit
+	 */
+	public GroupCommitter(PersistenceContext pc, int maxDirectives, long maxBytes, long maxDelayMillis){
+		this.pc = pc;
+		this.maxDirectives = maxDirectives;
+		this.maxBytes = maxBytes;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Starts the background thread.
+	 */
+	public synchronized void start(){
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushUntilStopped();
+			}
+		}, "DataManagement group commit");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the background thread, waiting for a flush in progress to finish. Changes still pending are left for the caller to commit.
+	 */
+	public void stop(){
+		Thread stoppedThread;
+		synchronized(this){
+			running = false;
+			notifyAll();
+			stoppedThread = thread;
+		}
+		if(stoppedThread == null) return;
+		boolean interrupted = false;
+		while(true){
+			try{
+				stoppedThread.join();
+				break;
+			}catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Called after changes have been queued. Wakes the background thread if a limit has been reached.
+	 */
+	public synchronized void changed(){
+		if(isLimitReached()) notifyAll();
+	}
+
+	/**
+	 * Asks for the pending changes to be flushed without waiting for them.
+	 */
+	public synchronized void requestFlush(){
+		flushRequested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every change queued before this call has been committed. Threads calling this at the same time share one flush.
+	 * @param synced true if the flush must be synced to storage (see PersistenceManager.commit(Queue, boolean))
+	 */
+	public void commit(boolean synced){
+		synchronized(this){
+			//a flush that has already started may have drained the queue before this thread's changes were added
+			long targetFlush = startedFlushes + 1;
+			flushRequested = true;
+			if(synced) syncRequested = true;
+			notifyAll();
+			boolean interrupted = false;
+			while(running && completedFlushes < targetFlush){
+				try{
+					wait();
+				}catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(completedFlushes >= targetFlush){
+				//a failed flush leaves its changes pending, so a later flush that succeeded has written them
+				if(lastSucceededFlush < targetFlush) throw lastFailure;
+				return;
+			}
+		}
+		//stopped before the flush, so the changes are committed by this thread
+		pc.commit(synced);
+	}
+
+	/**
+	 * Runs on the background thread. Flushes whenever a flush is asked for or a limit is reached, until stopped.
+	 */
+	private void flushUntilStopped(){
+		while(true){
+			boolean synced;
+			long flush;
+			synchronized(this){
+				while(running && !flushRequested && !isLimitReached()){
+					long oldestPendingTime = pc.getOldestPendingTime();
+					try{
+						if(maxDelayMillis <= 0 || oldestPendingTime == 0) wait();
+						else wait(Math.max(1, oldestPendingTime + maxDelayMillis - System.currentTimeMillis()));
+					}catch(InterruptedException e){
+						return;
+					}
+				}
+				if(!running) return;
+				synced = syncRequested;
+				flushRequested = false;
+				syncRequested = false;
+				flush = ++startedFlushes;
+			}
+			RuntimeException failure = null;
+			try{
+				pc.commit(synced);
+			}catch(RuntimeException e){
+				failure = e;
+			}
+			synchronized(this){
+				completedFlushes = flush;
+				if(failure == null) lastSucceededFlush = flush;
+				else lastFailure = failure;
+				notifyAll();
+			}
+			//a failed flush is not retried until more changes are queued or a flush is asked for
+			if(failure != null) awaitChange();
+		}
+	}
+
+	/**
+	 * Waits until a flush is asked for or the number of pending Directives changes, so that a failing flush is not repeated in a loop.
+	 */
+	private synchronized void awaitChange(){
+		int failedCount = pc.getPendingCount();
+		while(running && !flushRequested && pc.getPendingCount() == failedCount){
+			try{
+				wait();
+			}catch(InterruptedException e){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the pending Directives have reached any of the limits.
+	 * @return true if a flush should start
+	 */
+	private boolean isLimitReached(){
+		if(maxDirectives > 0 && pc.getPendingCount() >= maxDirectives) return true;
+		if(maxBytes > 0 && pc.getPendingBytes() >= maxBytes) return true;
+		long oldestPendingTime = pc.getOldestPendingTime();
+		return maxDelayMillis > 0 && oldestPendingTime != 0 && System.currentTimeMillis() - oldestPendingTime >= maxDelayMillis;
+	}
+}
@@ -0,0 +1,314 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * A LazyArrayList is the deferred collection given to lazily loaded collection Fields. Its contents are read through a LazyResolver
+ * the first time the list is accessed in any way. It may be used for any collection Field declared as an ArrayList or one of its
+ * supertypes. The contents are loaded once even if several threads access a list at the same time, and a thread never sees a list
+ * that is only partly loaded. ArrayList implements the methods added in API level 24 (forEach, removeIf, replaceAll, sort and
+ * spliterator, which stream() uses) on its own storage, so they are overridden as well; older runtimes never call them. A list is
+ * serialized as a plain, loaded ArrayList.
+ * @author Tom Caputi
+ *
+ * @param <E> the class of the contained objects
+ */
+public class LazyArrayList<E> extends ArrayList<E> {
+
+	private static final long serialVersionUID = -4384019837712906113L;
+
+	private transient volatile LazyResolver resolver; //resolves the contents of the list, or null once they have been loaded
+	private Class<?> parentType;
+	private int fieldIndex;
+	private int parentId;
+
+	/**
+	 * Constructor for a deferred list.
+	 * @param resolver the LazyResolver that loads the contents of the list
+	 * @param parentType the Class of the object holding the list
+	 * @param fieldIndex the index of the collection Field in EntityDescriptor.getFields()
+	 * @param parentId the id number of the object holding the list
+	 */
+	public LazyArrayList(LazyResolver resolver, Class<?> parentType, int fieldIndex, int parentId){
+		this.resolver = resolver;
+		this.parentType = parentType;
+		this.fieldIndex = fieldIndex;
+		this.parentId = parentId;
+	}
+
+	/**
+	 * Returns true if the contents of the list have been loaded.
+	 * @return true if the list is loaded
+	 */
+	public boolean isLoaded(){
+		return resolver == null;
+	}
+
+	/**
+	 * Returns a new, still deferred list over the same collection, or null if this list has already been loaded.
+	 * @return the deferred copy, or null
+	 */
+	public LazyArrayList<E> deferredCopy(){
+		LazyResolver currentResolver = resolver;
+		if(currentResolver == null) return null;
+		return new LazyArrayList<E>(currentResolver, parentType, fieldIndex, parentId);
+	}
+
+	/**
+	 * Returns true if this list and the given list are both still deferred and refer to the same stored collection.
+	 * @param other the other list
+	 * @return true if both lists are the same unloaded collection
+	 */
+	public boolean isSameDeferredList(LazyArrayList<?> other){
+		return resolver != null && other.resolver != null && parentType == other.parentType && fieldIndex == other.fieldIndex && parentId == other.parentId;
+	}
+
+	/**
+	 * Loads the contents of the list if they have not been loaded yet. The resolver is only cleared once the contents have been added,
+	 * so a thread that finds the list loaded also sees all of its contents.
+	 */
+	@SuppressWarnings("unchecked")
+	private void load(){
+		if(resolver == null) return;
+		synchronized(this){
+			LazyResolver currentResolver = resolver;
+			if(currentResolver == null) return;
+			ArrayList<Object> contents = new ArrayList<Object>();
+			currentResolver.resolveCollection(parentType, fieldIndex, parentId, contents);
+			super.addAll((Collection<? extends E>) contents);
+			resolver = null;
+		}
+	}
+
+	@Override
+	public boolean add(E object) {
+		load();
+		return super.add(object);
+	}
+
+	@Override
+	public void add(int index, E object) {
+		load();
+		super.add(index, object);
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> collection) {
+		load();
+		return super.addAll(collection);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends E> collection) {
+		load();
+		return super.addAll(index, collection);
+	}
+
+	@Override
+	public void clear() {
+		synchronized(this){
+			resolver = null;
+			super.clear();
+		}
+	}
+
+	@Override
+	public Object clone() {
+		load();
+		return super.clone();
+	}
+
+	@Override
+	public boolean contains(Object object) {
+		load();
+		return super.contains(object);
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> collection) {
+		load();
+		return super.containsAll(collection);
+	}
+
+	@Override
+	public void ensureCapacity(int minimumCapacity) {
+		load();
+		super.ensureCapacity(minimumCapacity);
+	}
+
+	@Override
+	public E get(int index) {
+		load();
+		return super.get(index);
+	}
+
+	@Override
+	public int indexOf(Object object) {
+		load();
+		return super.indexOf(object);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		load();
+		return super.isEmpty();
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		load();
+		return super.iterator();
+	}
+
+	@Override
+	public int lastIndexOf(Object object) {
+		load();
+		return super.lastIndexOf(object);
+	}
+
+	@Override
+	public ListIterator<E> listIterator() {
+		load();
+		return super.listIterator();
+	}
+
+	@Override
+	public ListIterator<E> listIterator(int location) {
+		load();
+		return super.listIterator(location);
+	}
+
+	@Override
+	public E remove(int index) {
+		load();
+		return super.remove(index);
+	}
+
+	@Override
+	public boolean remove(Object object) {
+		load();
+		return super.remove(object);
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> collection) {
+		load();
+		return super.removeAll(collection);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> collection) {
+		load();
+		return super.retainAll(collection);
+	}
+
+	@Override
+	public E set(int index, E object) {
+		load();
+		return super.set(index, object);
+	}
+
+	@Override
+	public int size() {
+		load();
+		return super.size();
+	}
+
+	@Override
+	public List<E> subList(int start, int end) {
+		load();
+		return super.subList(start, end);
+	}
+
+	@Override
+	public Object[] toArray() {
+		load();
+		return super.toArray();
+	}
+
+	@Override
+	public <T> T[] toArray(T[] contents) {
+		load();
+		return super.toArray(contents);
+	}
+
+	@Override
+	public void trimToSize() {
+		load();
+		super.trimToSize();
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		load();
+		super.removeRange(fromIndex, toIndex);
+	}
+
+	@Override
+	public void forEach(Consumer<? super E> action) {
+		load();
+		super.forEach(action);
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super E> filter) {
+		load();
+		return super.removeIf(filter);
+	}
+
+	@Override
+	public void replaceAll(UnaryOperator<E> operator) {
+		load();
+		super.replaceAll(operator);
+	}
+
+	@Override
+	public void sort(Comparator<? super E> comparator) {
+		load();
+		super.sort(comparator);
+	}
+
+	@Override
+	public Spliterator<E> spliterator() {
+		load();
+		return super.spliterator();
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		load();
+		return super.equals(object);
+	}
+
+	@Override
+	public int hashCode() {
+		load();
+		return super.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		load();
+		return super.toString();
+	}
+
+	/**
+	 * Serializes the list as a plain ArrayList of its loaded contents. The resolver cannot be serialized, and ArrayList writes its
+	 * contents before a subclass could load them, so a deferred list would otherwise be read back empty and marked as loaded.
+	 * @return the ArrayList to be serialized in place of this list
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		load();
+		return new ArrayList<E>(this);
+	}
+}
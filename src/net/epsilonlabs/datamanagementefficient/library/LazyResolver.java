@@ -0,0 +1,29 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.util.Collection;
+
+/**
+ * A LazyResolver loads the contents of deferred references and collections the first time they are accessed. The
+ * PersistenceContext resolves them through its cache.
+ * @author Tom Caputi
+ *
+ */
+public interface LazyResolver {
+
+	/**
+	 * Returns the object referenced by a deferred reference.
+	 * @param type the Class of the object
+	 * @param id the id number of the object
+	 * @return the object, or null if it no longer exists
+	 */
+	public Object resolveReference(Class<?> type, int id);
+
+	/**
+	 * Adds the objects contained in a deferred collection to the given collection.
+	 * @param parentType the Class of the object that holds the collection
+	 * @param fieldIndex the index of the collection Field in EntityDescriptor.getFields()
+	 * @param parentId the id number of the object that holds the collection
+	 * @param collection the collection the contained objects are added to
+	 */
+	public void resolveCollection(Class<?> parentType, int fieldIndex, int parentId, Collection<Object> collection);
+}
@@ -0,0 +1,137 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.epsilonlabs.datamanagementefficient.exception.MigrationCancelledException;
+import net.epsilonlabs.datamanagementefficient.user.MigrationListener;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * The MigrationRunner prepares the tables of a set of classes on a background thread, so that table creation and upgrades do not
+ * happen inside the first call that uses each class. Tables are prepared one at a time: SQLite allows a single writer, so preparing
+ * several tables at once would only make them wait for each other. Other threads that use a class whose table is still being prepared
+ * wait for that table only (see PersistenceManager.prepare()). The listener is notified on the main thread.
+ * @author Tom Caputi
+ *
+ */
+public class MigrationRunner {
+
+	private static final long CANCEL_TIMEOUT_MILLIS = 2000; //the longest cancel() waits for the table being prepared to stop
+
+	private PersistenceManager pm;
+	private Class<?>[] classes;
+	private MigrationListener listener; //notified of the progress, or null
+	private Handler handler; //posts notifications to the main thread
+	private ExecutorService executor;
+	private volatile boolean cancelled = false;
+	private volatile int completedCount = 0; //the number of classes prepared so far
+
+	/**
+	 * Constructor.
+	 * @param pm the PersistenceManager that prepares the tables
+	 * @param classes the classes whose tables should be prepared
+	 * @param listener the listener notified of the progress, or null
+	 */
+	public MigrationRunner(PersistenceManager pm, Class<?>[] classes, MigrationListener listener){
+		this.pm = pm;
+		this.classes = classes.clone();
+		this.listener = listener;
+		this.handler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Starts preparing the tables on a background thread.
+	 */
+	public void start(){
+		executor = Executors.newSingleThreadExecutor();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				long startTime = System.nanoTime();
+				for(final Class<?> cls : classes){
+					if(cancelled) return;
+					long tableStartTime = System.nanoTime();
+					try{
+						pm.prepare(cls, MigrationRunner.this);
+					}catch(MigrationCancelledException e){
+						return;
+					}catch(final RuntimeException e){
+						notifyListener(new Runnable() {
+							@Override
+							public void run() {
+								listener.onMigrationFailed(cls, e);
+							}
+						});
+						continue;
+					}
+					final long tableTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tableStartTime);
+					final int completed = ++completedCount;
+					notifyListener(new Runnable() {
+						@Override
+						public void run() {
+							listener.onTableMigrated(cls, tableTime, completed, classes.length);
+						}
+					});
+				}
+				final long totalTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+				notifyListener(new Runnable() {
+					@Override
+					public void run() {
+						listener.onMigrationComplete(totalTime);
+					}
+				});
+			}
+		});
+		executor.shutdown();
+	}
+
+	/**
+	 * Stops preparing tables. A table being rebuilt stops after the chunk being copied and resumes the next time it is prepared, so
+	 * this usually returns quickly; it waits at most CANCEL_TIMEOUT_MILLIS for the runner to stop, since it is often called on the
+	 * main thread.
+	 */
+	public void cancel(){
+		cancelled = true;
+		if(executor == null) return;
+		try {
+			executor.awaitTermination(CANCEL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns whether this runner has been cancelled.
+	 * @return true if cancel() has been called
+	 */
+	public boolean isCancelled(){
+		return cancelled;
+	}
+
+	/**
+	 * Returns the number of classes whose tables have been prepared so far.
+	 * @return the number of prepared classes
+	 */
+	public int getCompletedCount(){
+		return completedCount;
+	}
+
+	/**
+	 * Returns the number of classes whose tables are prepared by this runner.
+	 * @return the number of classes
+	 */
+	public int getTotalCount(){
+		return classes.length;
+	}
+
+	/**
+	 * Posts a notification to the main thread if there is a listener.
+	 * @param notification the notification
+	 */
+	private void notifyListener(Runnable notification){
+		if(listener != null && !cancelled) handler.post(notification);
+	}
+}
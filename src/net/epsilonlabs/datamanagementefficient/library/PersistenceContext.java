@@ -3,10 +3,15 @@ package net.epsilonlabs.datamanagementefficient.library;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.epsilonlabs.datamanagementefficient.directive.CreateDirective;
 import net.epsilonlabs.datamanagementefficient.directive.CreateReferenceDirective;
@@ -14,33 +19,47 @@ import net.epsilonlabs.datamanagementefficient.directive.DeleteDirective;
 import net.epsilonlabs.datamanagementefficient.directive.DeleteReferenceDirective;
 import net.epsilonlabs.datamanagementefficient.directive.Directive;
 import net.epsilonlabs.datamanagementefficient.directive.UpdateDirective;
-import net.epsilonlabs.datamanagementefficient.exception.IdFieldIsInaccessibleException;
 import net.epsilonlabs.datamanagementefficient.exception.InaccessableObjectException;
+import net.epsilonlabs.datamanagementefficient.exception.UpdatedInstanceDoesNotExistException;
+import net.epsilonlabs.datamanagementefficient.user.FetchPlan;
+import net.epsilonlabs.datamanagementefficient.user.LazyReference;
 import android.database.Cursor;
 import android.util.SparseArray;
 
 /**
  * The PersistenceContext manages the cache of Objects (for faster querying) and creates a list of Directives that will
- * sync the database with the cached changes when DataManager.commit() is called.
+ * sync the database with the cached changes when DataManager.commit() is called. The PersistenceContext may be used by several threads
+ * at once. Changes are recorded one at a time, commits are applied one at a time, and reads only lock the classes they touch in the
+ * cache, so a read never waits for a change to be recorded or committed. Changes read the stored states of the objects they change
+ * and reserve id numbers before they are recorded, so that recording a change rarely has to wait for the database.
  * @author Tom Caputi
  *
  */
-public class PersistenceContext {
+public class PersistenceContext implements LazyResolver {
 
 	private Cache cache; //holds a map of objects that have been previously interacted with, stored by class and id number
 	private Queue<Directive> pendingDirectivesQueue; //holds a list of actions that the Persistence Manager must take when committing changes
-	private Map<Class<?>, Integer> nextIdMap; //holds a map of Classes to the next available id number for that Class
+	private ConcurrentHashMap<Class<?>, IdBlock> idBlocks; //holds a map of Classes to the block of id numbers currently handed out for that Class
 	private PersistenceManager pm; //manages database queries
+	private final Object changeLock = new Object(); //held while a change is turned into Directives, so the Directives of one change are never split by a commit
+	private ConcurrentHashMap<Class<?>, Long> changeCounts; //the number of Directives queued for each Class, changed while holding the changeLock
+	private final Object commitLock = new Object(); //held while the pending Directives are committed, so commits are applied in the order they were drained
+	private volatile boolean sharedReads = false; //true if reads return the snapshots shared by the cache instead of private copies (see Cache.getSnapshot())
+	private volatile int pendingCount = 0; //the number of Directives in the pendingDirectivesQueue, changed while holding the changeLock
+	private volatile long pendingBytes = 0; //the estimated size of the values held by the pending Directives, changed like pendingCount
+	private volatile long oldestPendingTime = 0; //the time the oldest pending Directive was queued, or 0 if none is pending
 
 	/**
-	 * Constructor. Instantiates the PersistenceManager, cache, pendingDirectivesQueue, and nextIdMap
+	 * Constructor. Instantiates the PersistenceManager, cache, pendingDirectivesQueue, and idBlocks
 	 * @param pm a PersistenceManager
 	 */
 	public PersistenceContext(PersistenceManager pm) {
 		this.pm = pm;
 		this.cache = new Cache();
-		this.pendingDirectivesQueue = new LinkedList<Directive>();
-		this.nextIdMap = new HashMap<Class<?>, Integer>();
+		this.pendingDirectivesQueue = new ConcurrentLinkedQueue<Directive>();
+		this.idBlocks = new ConcurrentHashMap<Class<?>, IdBlock>();
+		this.changeCounts = new ConcurrentHashMap<Class<?>, Long>();
+		pm.setLazyResolver(this);
 	}
 
 	/**
@@ -50,27 +69,80 @@ public class PersistenceContext {
 	 * @return the id number assigned to the new instance
 	 */
 	public int create(Object newInstance) {
-		if(newInstance == null) return 0;
-		Class<?> instanceType = newInstance.getClass();
-		Field idField = DataUtil.getIdField(instanceType);
-		Field[] instanceFields = DataUtil.getFields(instanceType);
-
-		Integer rowId = DataUtil.getId(newInstance);
-		if(rowId != 0) return rowId;
+		//reserving id numbers uses the database, so a used up block is replaced before the changeLock is taken
+		if(newInstance != null && DataUtil.getId(newInstance) == 0) replaceUsedUpIdBlock(newInstance.getClass());
+		synchronized(changeLock){
+			return createGraph(newInstance);
+		}
+	}
 
-		rowId = nextIdMap.get(instanceType);
-		if (rowId == null) {
-			rowId = pm.fetchMaxRowId(instanceType);
+	/**
+	 * Performs the functions of create on every object of a collection while holding the changeLock once. The objects are counted by
+	 * Class first, and a Class with at least PersistenceManager.ID_BLOCK_SIZE new objects is given a block of id numbers of exactly
+	 * that size, so that a large import reserves its id numbers with one query per Class. The blocks are reserved before the
+	 * changeLock is taken.
+	 * @param newInstances the instances to be saved to the database
+	 * @return the id numbers assigned to the new instances, in the order of the collection
+	 */
+	public int[] createAll(Collection<?> newInstances) {
+		int[] rowIds = new int[newInstances.size()];
+		Map<Class<?>, Integer> newCounts = new HashMap<Class<?>, Integer>();
+		for(Object newInstance : newInstances){
+			if(newInstance == null || DataUtil.getId(newInstance) != 0) continue;
+			Integer count = newCounts.get(newInstance.getClass());
+			newCounts.put(newInstance.getClass(), count == null ? 1 : count + 1);
 		}
-		nextIdMap.put(instanceType, rowId + 1);
-		try {
-			idField.setInt(newInstance, rowId);
-		} catch (IllegalAccessException e) {
-			throw new IdFieldIsInaccessibleException();
+		Map<Class<?>, Integer> reservedIds = new HashMap<Class<?>, Integer>(); //the next id number of each Class given its own block
+		for(Map.Entry<Class<?>, Integer> entry : newCounts.entrySet()){
+			if(entry.getValue() >= PersistenceManager.ID_BLOCK_SIZE) reservedIds.put(entry.getKey(), pm.reserveIds(entry.getKey(), entry.getValue()));
+			else replaceUsedUpIdBlock(entry.getKey());
 		}
 
-		for(Field field : instanceFields){
-			switch (DataUtil.getFieldTypeId(field)) {
+		synchronized(changeLock){
+			int i = 0;
+			for(Object newInstance : newInstances){
+				Integer nextId = newInstance == null ? null : reservedIds.get(newInstance.getClass());
+				if(nextId == null || DataUtil.getId(newInstance) != 0){
+					rowIds[i++] = createGraph(newInstance);
+				}else{
+					reservedIds.put(newInstance.getClass(), nextId + 1);
+					rowIds[i++] = createGraph(newInstance, nextId);
+				}
+			}
+		}
+		return rowIds;
+	}
+
+	/**
+	 * Helper method for create(Object newInstance). Recursively performs all the functions of create on the given instance and all of
+	 * its contained objects. Must be called while holding the changeLock.
+	 * @param newInstance the instance to be saved to the database
+	 * @return the id number assigned to the new instance
+	 */
+	private int createGraph(Object newInstance) {
+		if(newInstance == null) return 0;
+		int rowId = DataUtil.getId(newInstance);
+		if(rowId != 0) return rowId;
+		return createGraph(newInstance, allocateId(newInstance.getClass()));
+	}
+
+	/**
+	 * Helper method for createGraph(Object newInstance). Assigns a new instance the given id number and creates it and its contained
+	 * objects. Must be called while holding the changeLock.
+	 * @param newInstance the instance to be saved to the database, which must not have an id number yet
+	 * @param rowId the id number to assign
+	 * @return the id number assigned to the new instance
+	 */
+	private int createGraph(Object newInstance, int rowId) {
+		Class<?> instanceType = newInstance.getClass();
+		EntityDescriptor descriptor = EntityDescriptor.get(instanceType);
+		Field[] instanceFields = descriptor.getFields();
+
+		descriptor.setId(newInstance, rowId);
+
+		for(int i=0; i<instanceFields.length; i++){
+			Field field = instanceFields[i];
+			switch (descriptor.getFieldTypeId(i)) {
 			case DataUtil.FIELD_TYPE_INT:
 			case DataUtil.FIELD_TYPE_DOUBLE:
 			case DataUtil.FIELD_TYPE_FLOAT:
@@ -80,7 +152,13 @@ public class PersistenceContext {
 				break;
 			case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
 				try{
-					create(field.get(newInstance));
+					Object reference = field.get(newInstance);
+					if(reference instanceof LazyReference){
+						//a reference that was never loaded points to an object that is already stored
+						if(((LazyReference<?>) reference).isLoaded()) createGraph(((LazyReference<?>) reference).get());
+					}else{
+						createGraph(reference);
+					}
 				}catch(IllegalAccessException e){
 					throw new InaccessableObjectException();
 				}
@@ -89,11 +167,11 @@ public class PersistenceContext {
 				try{
 					if(field.get(newInstance) != null){
 						if(((Collection<?>)field.get(newInstance)).isEmpty()){
-							pendingDirectivesQueue.offer(new CreateReferenceDirective(instanceType, field.getName(), rowId, PersistenceManager.COLLECTION_EMPTY_VALUE));
+							queue(new CreateReferenceDirective(instanceType, field.getName(), rowId, PersistenceManager.COLLECTION_EMPTY_VALUE));
 						}else{
 							for(Object containedObject : (Collection<?>)field.get(newInstance)){
-								int containedObjId = create(containedObject);
-								pendingDirectivesQueue.offer(new CreateReferenceDirective(instanceType, field.getName(), rowId, containedObjId));
+								int containedObjId = createGraph(containedObject);
+								queue(new CreateReferenceDirective(instanceType, field.getName(), rowId, containedObjId));
 							}
 						}
 					}
@@ -105,40 +183,120 @@ public class PersistenceContext {
 		}
 
 		Object newInstanceCopy = DataUtil.copy(newInstance);
-		cache.put(newInstanceCopy);	
-		pendingDirectivesQueue.offer(new CreateDirective(newInstanceCopy));
+		//queued first so that the copy is pinned before it is cached and cannot be evicted before it is committed
+		queue(new CreateDirective(newInstanceCopy));
+		cache.put(newInstanceCopy);
 		return rowId;
 	}
 
+	/**
+	 * Returns the next available id number of a Class. Id numbers are handed out from an atomic counter over a block reserved in the
+	 * database (see PersistenceManager.reserveIds()), so the database is only used once every PersistenceManager.ID_BLOCK_SIZE id
+	 * numbers, and threads adding objects at the same time do not wait for each other.
+	 * @param cls the Class
+	 * @return the id number
+	 */
+	private int allocateId(Class<?> cls){
+		while(true){
+			IdBlock block = idBlocks.get(cls);
+			if(block != null){
+				int id = block.nextId.getAndIncrement();
+				if(id < block.endId) return id;
+			}
+			replaceIdBlock(cls, block);
+		}
+	}
+
+	/**
+	 * Reserves a new block of id numbers for a Class if it has none or its block is used up, so that the next allocateId() call does
+	 * not have to use the database. Called before the changeLock is taken.
+	 * @param cls the Class
+	 */
+	private void replaceUsedUpIdBlock(Class<?> cls){
+		IdBlock block = idBlocks.get(cls);
+		if(block == null || block.nextId.get() >= block.endId) replaceIdBlock(cls, block);
+	}
+
+	/**
+	 * Reserves a new block of id numbers for a Class in place of the given one, unless another thread has already replaced it.
+	 * @param cls the Class
+	 * @param block the block to be replaced, or null if the Class has none
+	 */
+	private void replaceIdBlock(Class<?> cls, IdBlock block){
+		synchronized(idBlocks){
+			//another thread may have replaced the used up block while this one waited
+			if(idBlocks.get(cls) == block){
+				int firstId = pm.reserveIds(cls, PersistenceManager.ID_BLOCK_SIZE);
+				idBlocks.put(cls, new IdBlock(firstId, firstId + PersistenceManager.ID_BLOCK_SIZE));
+			}
+		}
+	}
+
 	/**
 	 * Updates an existing object in the cache based on its Class and id number and adds the required Directives
-	 * to the pendingDirectivesQueue to update this object in the database when DataManager.commit() is called.
+	 * to the pendingDirectivesQueue to update this object in the database when DataManager.commit() is called. If the object is not
+	 * cached its stored state is read before the changeLock is taken (see prefetch()).
 	 * @param updatedInstance the instance to update. Must have the Class and id number of an existing object
-	 * in the database or changes wont take place
+	 * in the database or an UpdatedInstanceDoesNotExistException is thrown
 	 */
 	public void update(Object updatedInstance){
-		update(updatedInstance, new Cache());
+		Class<?> cls = updatedInstance.getClass();
+		long changeCount = getChangeCount(cls);
+		List<Object> storedInstances = prefetch(cls, Collections.singletonList(DataUtil.getId(updatedInstance)));
+		synchronized(changeLock){
+			cachePrefetched(cls, storedInstances, changeCount);
+			update(updatedInstance, new Cache());
+		}
+	}
+
+	/**
+	 * Performs the functions of update on every object of a collection while holding the changeLock once. The stored states of the
+	 * objects that are not cached are fetched a Class at a time with a few queries (see prefetch()) before the changeLock is taken,
+	 * instead of one query per object. An object contained by several of the updated objects is only updated once.
+	 * @param updatedInstances the instances to update
+	 */
+	public void updateAll(Collection<?> updatedInstances){
+		Map<Class<?>, List<Integer>> uncachedIds = new HashMap<Class<?>, List<Integer>>();
+		for(Object updatedInstance : updatedInstances){
+			addIfUncached(uncachedIds, updatedInstance.getClass(), DataUtil.getId(updatedInstance));
+		}
+		Map<Class<?>, Long> changeCounts = new HashMap<Class<?>, Long>();
+		Map<Class<?>, List<Object>> storedInstances = new HashMap<Class<?>, List<Object>>();
+		for(Map.Entry<Class<?>, List<Integer>> entry : uncachedIds.entrySet()){
+			changeCounts.put(entry.getKey(), getChangeCount(entry.getKey()));
+			storedInstances.put(entry.getKey(), prefetch(entry.getKey(), entry.getValue()));
+		}
+		synchronized(changeLock){
+			for(Map.Entry<Class<?>, List<Object>> entry : storedInstances.entrySet()){
+				cachePrefetched(entry.getKey(), entry.getValue(), changeCounts.get(entry.getKey()));
+			}
+			Cache previouslyUpdatedObjects = new Cache();
+			for(Object updatedInstance : updatedInstances) update(updatedInstance, previouslyUpdatedObjects);
+		}
 	}
 
 	/**
 	 * Helper method for update(Object instaceType). Recursively performs all the functions of update on the given instance 
-	 * and all of its contained objects.
+	 * and all of its contained objects. Must be called while holding the changeLock.
 	 * @param updatedInstance the instance to update
 	 * @param previosulyUpdatedObjects a map of all objects that have already been updated by this call of update(Object instaceType).
 	 */
 	private void update(Object updatedInstance, Cache previosulyUpdatedObjects){
 		Map<Field, Object> updateMap = new HashMap<Field, Object>();
 		Class<?> instanceType = updatedInstance.getClass();
-		Field[] instanceFields = DataUtil.getFields(instanceType);
-		int rowId = DataUtil.getId(updatedInstance);
+		EntityDescriptor descriptor = EntityDescriptor.get(instanceType);
+		Field[] instanceFields = descriptor.getFields();
+		int rowId = descriptor.getId(updatedInstance);
 
 		if(previosulyUpdatedObjects.get(instanceType, rowId) == null){
 			Object storedInstance = cache.get(instanceType, rowId);
 			if(storedInstance == null){
-				storedInstance = fetchToCache(instanceType, rowId);
+				storedInstance = fetchToCache(instanceType, rowId, null, false);
+				if(storedInstance == null) throw new UpdatedInstanceDoesNotExistException();
 			}
 
-			for(Field field : instanceFields){
+			for(int i=0; i<instanceFields.length; i++){
+				Field field = instanceFields[i];
 				Object storedValue = null;
 				Object updatedValue = null;
 				try{
@@ -148,7 +306,7 @@ public class PersistenceContext {
 					throw new InaccessableObjectException();
 				}
 
-				switch (DataUtil.getFieldTypeId(field)) {
+				switch (descriptor.getFieldTypeId(i)) {
 				case DataUtil.FIELD_TYPE_INT:
 				case DataUtil.FIELD_TYPE_DOUBLE:
 				case DataUtil.FIELD_TYPE_FLOAT:
@@ -158,29 +316,36 @@ public class PersistenceContext {
 					updateMap.put(field, updatedValue);
 					break;
 				case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
+					if(descriptor.isLazyReference(i)){
+						LazyReference<?> storedReference = (LazyReference<?>) storedValue;
+						LazyReference<?> updatedReference = (LazyReference<?>) updatedValue;
+						//a reference that was never loaded on either side has not changed
+						if(storedReference != null && updatedReference != null && !storedReference.isLoaded() && !updatedReference.isLoaded()
+								&& storedReference.getId() == updatedReference.getId()) break;
+						storedValue = storedReference == null ? null : storedReference.get();
+						updatedValue = updatedReference == null ? null : updatedReference.get();
+					}
 					if(storedValue == null && updatedValue != null){
 						//was null before, now has a value
-						updateMap.put(field, create(updatedValue)); 
+						updateMap.put(field, createGraph(updatedValue)); 
 					}else if(storedValue != null && updatedValue == null){
 						//had a value before, now is null
 						updateMap.put(field, null);
 						previosulyUpdatedObjects.put(updatedInstance);
-						delete(field.getType(), DataUtil.getId(storedValue), previosulyUpdatedObjects);
+						delete(descriptor.getReferencedClass(i), DataUtil.getId(storedValue), previosulyUpdatedObjects);
 					}else if(storedValue != null && updatedValue != null){
 						//value is being altered (wasn't and will not be null)
-						Field idField = DataUtil.getIdField(storedValue.getClass());
-						try {
-							idField.set(updatedValue, DataUtil.getId(storedValue));
-						} catch (Exception e) {
-							throw new IdFieldIsInaccessibleException();
-						}
+						EntityDescriptor.get(storedValue.getClass()).setId(updatedValue, DataUtil.getId(storedValue));
 						previosulyUpdatedObjects.put(updatedInstance);
 						update(updatedValue, previosulyUpdatedObjects);
 					}
 					break;
 				case DataUtil.FIELD_TYPE_COLLECTION:
-					Class<?> containedType = DataUtil.getStoredClassOfCollection(field);
+					Class<?> containedType = descriptor.getStoredClassOfCollection(i);
 
+					//a collection that was never loaded on either side has not changed
+					if(storedValue instanceof LazyArrayList && updatedValue instanceof LazyArrayList
+							&& ((LazyArrayList<?>) storedValue).isSameDeferredList((LazyArrayList<?>) updatedValue)) break;
 					if(storedValue == null) storedValue = new ArrayList<Object>();
 					if(updatedValue == null) updatedValue = new ArrayList<Object>();
 
@@ -193,13 +358,13 @@ public class PersistenceContext {
 						updatedObjectsMap.put(DataUtil.getId(updatedContainedObj), updatedContainedObj);
 					}
 
-					for(int i=0; i<storedObjectsMap.size(); i++) {
-						int key = storedObjectsMap.keyAt(i);
+					for(int j=0; j<storedObjectsMap.size(); j++) {
+						int key = storedObjectsMap.keyAt(j);
 						if(updatedObjectsMap.get(key) == null){
 							//check for objects that no longer exist, delete those (delete reference)
 							previosulyUpdatedObjects.put(updatedInstance);
 							delete(containedType, key, previosulyUpdatedObjects);
-							pendingDirectivesQueue.offer(new DeleteReferenceDirective(instanceType, field.getName(), rowId, key));
+							queue(new DeleteReferenceDirective(instanceType, field.getName(), rowId, key));
 						}else{
 							//check for objects that already exist, update those (don't change reference)
 							previosulyUpdatedObjects.put(updatedInstance);
@@ -207,24 +372,24 @@ public class PersistenceContext {
 						}
 					}
 
-					for(int i=0; i<updatedObjectsMap.size(); i++) {
-						int key = updatedObjectsMap.keyAt(i);
+					for(int j=0; j<updatedObjectsMap.size(); j++) {
+						int key = updatedObjectsMap.keyAt(j);
 						if(storedObjectsMap.get(key) == null){
 							//check for objects that do not exist yet, create those (add reference)
-							int childId = create(updatedObjectsMap.get(key));
-							pendingDirectivesQueue.offer(new CreateReferenceDirective(instanceType, field.getName(), rowId, childId));
+							int childId = createGraph(updatedObjectsMap.get(key));
+							queue(new CreateReferenceDirective(instanceType, field.getName(), rowId, childId));
 						}
 					}
 
 					if(((Collection<?>) updatedValue).isEmpty()){
-						pendingDirectivesQueue.offer(new CreateReferenceDirective(instanceType, field.getName(), rowId, PersistenceManager.COLLECTION_EMPTY_VALUE));
+						queue(new CreateReferenceDirective(instanceType, field.getName(), rowId, PersistenceManager.COLLECTION_EMPTY_VALUE));
 					}
 					break;
 				}
 			}
 
+			if(!updateMap.isEmpty()) queue(new UpdateDirective(instanceType, rowId, updateMap));
 			cache.put(DataUtil.copy(updatedInstance));
-			if(!updateMap.isEmpty()) pendingDirectivesQueue.offer(new UpdateDirective(instanceType, rowId, updateMap));
 		}
 	}
 	
@@ -235,12 +400,102 @@ public class PersistenceContext {
 	 * @param rowId the id number of the object to be deleted
 	 */
 	public void delete(Class<?> instanceType, int rowId){
-		delete(instanceType, rowId, new Cache());
+		long changeCount = getChangeCount(instanceType);
+		List<Object> storedInstances = prefetch(instanceType, Collections.singletonList(rowId));
+		synchronized(changeLock){
+			cachePrefetched(instanceType, storedInstances, changeCount);
+			delete(instanceType, rowId, new Cache());
+		}
+	}
+
+	/**
+	 * Performs the functions of delete on several objects of a Class while holding the changeLock once. The objects that are not
+	 * cached are fetched with a few queries (see prefetch()) before the changeLock is taken, instead of one query per object.
+	 * @param instanceType the Class of the objects to be deleted
+	 * @param rowIds the id numbers of the objects to be deleted
+	 */
+	public void deleteAll(Class<?> instanceType, int[] rowIds){
+		List<Integer> ids = new ArrayList<Integer>(rowIds.length);
+		for(int rowId : rowIds) ids.add(rowId);
+		long changeCount = getChangeCount(instanceType);
+		List<Object> storedInstances = prefetch(instanceType, ids);
+		synchronized(changeLock){
+			cachePrefetched(instanceType, storedInstances, changeCount);
+			Cache previouslyDeletedObjects = new Cache();
+			for(int rowId : rowIds) delete(instanceType, rowId, previouslyDeletedObjects);
+		}
+	}
+
+	/**
+	 * Adds an id number to the list of its Class in a map if the object is not in the cache.
+	 * @param uncachedIds the lists of id numbers, by Class
+	 * @param cls the Class of the object
+	 * @param rowId the id number of the object
+	 */
+	private void addIfUncached(Map<Class<?>, List<Integer>> uncachedIds, Class<?> cls, int rowId){
+		if(cache.get(cls, rowId) != null) return;
+		List<Integer> ids = uncachedIds.get(cls);
+		if(ids == null){
+			ids = new ArrayList<Integer>();
+			uncachedIds.put(cls, ids);
+		}
+		ids.add(rowId);
+	}
+
+	/**
+	 * Reads the stored states of the objects of a Class that are not cached, without storing them to the cache. Changes call this
+	 * before taking the changeLock, so that other changes do not wait for the database, and then store the objects with
+	 * cachePrefetched(). Contained objects that are not cached are still fetched while the changeLock is held.
+	 * @param cls the Class
+	 * @param rowIds the id numbers
+	 * @return the objects that were read, skipping id numbers that are cached or not in the database
+	 */
+	private List<Object> prefetch(Class<?> cls, List<Integer> rowIds){
+		List<Object> fetchedObjects = new ArrayList<Object>();
+		List<Integer> uncachedIds = new ArrayList<Integer>();
+		for(int rowId : rowIds){
+			if(cache.get(cls, rowId) == null) uncachedIds.add(rowId);
+		}
+		for(int start=0; start<uncachedIds.size(); start+=PersistenceManager.MAX_IDS_PER_QUERY){
+			Cursor cursor = getCursorByIds(cls, uncachedIds, start);
+			int[] positions = new int[cursor.getCount()];
+			for(int i=0; i<positions.length; i++) positions[i] = i;
+			if(positions.length > 0) fetchedObjects.addAll(pm.fetch(cls, cursor, positions));
+			cursor.close();
+		}
+		return fetchedObjects;
+	}
+
+	/**
+	 * Stores objects read by prefetch() to the cache, unless their Class has been changed since the given change count was taken: a
+	 * change made in the meantime may have made the stored states outdated, so they are then left to be fetched again while the
+	 * changeLock is held. Objects that have been cached in the meantime are kept. Must be called while holding the changeLock.
+	 * @param cls the Class of the objects
+	 * @param objects the objects read by prefetch()
+	 * @param changeCount the change count of the Class taken before prefetch() was called (see getChangeCount())
+	 */
+	private void cachePrefetched(Class<?> cls, List<Object> objects, long changeCount){
+		if(getChangeCount(cls) != changeCount) return;
+		for(Object obj : objects){
+			if(cache.get(cls, DataUtil.getId(obj)) != null) continue;
+			cache.put(obj);
+			cache.recordLoad();
+		}
+	}
+
+	/**
+	 * Returns the number of Directives that have been queued for a Class.
+	 * @param cls the Class
+	 * @return the number of Directives
+	 */
+	private long getChangeCount(Class<?> cls){
+		Long count = changeCounts.get(cls);
+		return count == null ? 0 : count;
 	}
 
 	/**
 	 * Helper method for delete(Class<?> instanceType, int rowId). Recursively performs all the functions of
-	 * delete on the specified instance and all of its contained objects.
+	 * delete on the specified instance and all of its contained objects. Must be called while holding the changeLock.
 	 * @param instanceType the Class of the object to be deleted
 	 * @param rowId the id number of the object to be deleted
 	 * @param previouslyDeletedObjects a map of all objects that have already been deleted by this call of
@@ -248,12 +503,14 @@ public class PersistenceContext {
 	 */
 	private void delete(Class<?> instanceType, int rowId, Cache previouslyDeletedObjects) {
 		if(previouslyDeletedObjects.get(instanceType, rowId) == null){
-			Field[] instanceFields = DataUtil.getFields(instanceType);		
+			EntityDescriptor descriptor = EntityDescriptor.get(instanceType);
+			Field[] instanceFields = descriptor.getFields();
 			Object storedInstance = cache.get(instanceType, rowId);
-			if(storedInstance == null) storedInstance = fetchToCache(instanceType, rowId);
+			if(storedInstance == null) storedInstance = fetchToCache(instanceType, rowId, null, false);
 			if(storedInstance != null){
-				for(Field field : instanceFields){
-					switch (DataUtil.getFieldTypeId(field)) {
+				for(int i=0; i<instanceFields.length; i++){
+					Field field = instanceFields[i];
+					switch (descriptor.getFieldTypeId(i)) {
 					case DataUtil.FIELD_TYPE_INT:
 					case DataUtil.FIELD_TYPE_DOUBLE:
 					case DataUtil.FIELD_TYPE_FLOAT:
@@ -263,9 +520,16 @@ public class PersistenceContext {
 						break;
 					case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
 						try {
-							if(field.get(storedInstance) != null) {
+							Object reference = field.get(storedInstance);
+							if(reference instanceof LazyReference){
+								LazyReference<?> lazyReference = (LazyReference<?>) reference;
+								if(!lazyReference.isNull()){
+									previouslyDeletedObjects.put(storedInstance);
+									delete(descriptor.getReferencedClass(i), lazyReference.getId(), previouslyDeletedObjects);
+								}
+							}else if(reference != null) {
 								previouslyDeletedObjects.put(storedInstance);
-								delete(field.getType(), DataUtil.getId(field.get(storedInstance)), previouslyDeletedObjects);
+								delete(descriptor.getReferencedClass(i), DataUtil.getId(reference), previouslyDeletedObjects);
 							}
 						} catch (IllegalAccessException e) {
 							throw new InaccessableObjectException();
@@ -274,12 +538,12 @@ public class PersistenceContext {
 					case DataUtil.FIELD_TYPE_COLLECTION:
 						try{
 							if(field.get(storedInstance) != null){
-								Class<?> containedType = DataUtil.getStoredClassOfCollection(field);
+								Class<?> containedType = descriptor.getStoredClassOfCollection(i);
 								previouslyDeletedObjects.put(storedInstance);
 								for(Object containedObject : (Collection<?>)field.get(storedInstance)){
 									int containedObjId = DataUtil.getId(containedObject);
 									delete(containedType, containedObjId, previouslyDeletedObjects);
-									pendingDirectivesQueue.offer(new DeleteReferenceDirective(instanceType, field.getName(), rowId, containedObjId));
+									queue(new DeleteReferenceDirective(instanceType, field.getName(), rowId, containedObjId));
 								}
 							}
 						} catch (IllegalAccessException e) {
@@ -289,7 +553,7 @@ public class PersistenceContext {
 					}
 				}
 				cache.remove(instanceType, rowId);	
-				pendingDirectivesQueue.offer(new DeleteDirective(instanceType, rowId));
+				queue(new DeleteDirective(instanceType, rowId));
 			}
 		}
 	}
@@ -301,9 +565,37 @@ public class PersistenceContext {
 	 * @return a copy of the Object that was cached
 	 */
 	public <T> T fetchToCache(Class<T> cls, int rowId){
-		T obj = pm.fetch(cls, rowId);
-		if(obj != null) cache.put(obj);
-		return DataUtil.copy(obj);
+		return fetchToCache(cls, rowId, null);
+	}
+
+	/**
+	 * Fetches an object from the PersistenceManager based on its Class and id number, loading the Fields named by a FetchPlan lazily,
+	 * and stores it to the cache.
+	 * @param cls the Class of the Object to be cached
+	 * @param rowId the id number of the Object to be cached
+	 * @param fetchPlan the FetchPlan, or null to use the default for each Field
+	 * @return a copy of the Object that was cached, which is its shared snapshot if shared reads are enabled
+	 */
+	public <T> T fetchToCache(Class<T> cls, int rowId, FetchPlan fetchPlan){
+		return fetchToCache(cls, rowId, fetchPlan, sharedReads);
+	}
+
+	/**
+	 * Fetches an object (see fetchToCache(Class, int, FetchPlan)), choosing whether the returned copy becomes the snapshot shared
+	 * by later reads. Copies handed to lazily loaded fields are never shared, since the object holding them may be a private copy.
+	 * @param cls the Class of the Object to be cached
+	 * @param rowId the id number of the Object to be cached
+	 * @param fetchPlan the FetchPlan, or null to use the default for each Field
+	 * @param shared true if the copy becomes the cached Object's snapshot
+	 * @return a copy of the Object that was cached
+	 */
+	private <T> T fetchToCache(Class<T> cls, int rowId, FetchPlan fetchPlan, boolean shared){
+		T obj = pm.fetch(cls, rowId, fetchPlan);
+		if(obj == null) return null;
+		T copy = DataUtil.copy(obj);
+		cache.put(obj, shared ? copy : null);
+		cache.recordLoad();
+		return copy;
 	}
 	
 	/**
@@ -315,10 +607,88 @@ public class PersistenceContext {
 	 */
 	public <T> T fetchToCache(Class<T> cls, Cursor cursor){
 		T obj = pm.fetch(cls, cursor);
-		if(obj != null) cache.put(obj);
+		if(obj != null) {
+			cache.put(obj);
+			cache.recordLoad();
+		}
 		return DataUtil.copy(obj);
 	}
 
+	/**
+	 * Returns the Object at the current row of a Cursor. If the Object is cached it is taken from the cache, otherwise it is read
+	 * from the PersistenceManager without being stored to the cache, so that streaming through a large table does not fill the cache.
+	 * @param cls the Class of the Object
+	 * @param cursor the Cursor, positioned at the Object's row
+	 * @param fetchPlan the FetchPlan, or null to use the default for each Field
+	 * @return the Object (a copy or the shared snapshot of the cached Object if it was cached)
+	 */
+	public <T> T getOrFetch(Class<T> cls, Cursor cursor, FetchPlan fetchPlan){
+		int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
+		T object = getFromCache(cls, id);
+		if(object != null) return object;
+		return pm.fetch(cls, cursor, new int[]{cursor.getPosition()}, fetchPlan).get(0);
+	}
+
+	/**
+	 * Reads every row of a Cursor, taking the objects that are already cached from the cache and fetching the rest together from
+	 * the PersistenceManager (see PersistenceManager.fetch(Class, Cursor, int[])). Fetched objects are stored to the cache.
+	 * @param cls the Class of the Objects
+	 * @param cursor a Cursor over the table of the given Class
+	 * @return copies of the Objects in the order of the Cursor's rows
+	 */
+	public <T> ArrayList<T> fetchAllToCache(Class<T> cls, Cursor cursor){
+		return fetchAllToCache(cls, cursor, null);
+	}
+
+	/**
+	 * Reads every row of a Cursor (see fetchAllToCache(Class, Cursor)), loading the Fields named by a FetchPlan lazily.
+	 * @param cls the Class of the Objects
+	 * @param cursor a Cursor over the table of the given Class
+	 * @param fetchPlan the FetchPlan, or null to use the default for each Field
+	 * @return copies of the Objects in the order of the Cursor's rows, which are their shared snapshots if shared reads are enabled
+	 */
+	public <T> ArrayList<T> fetchAllToCache(Class<T> cls, Cursor cursor, FetchPlan fetchPlan){
+		return fetchAllToCache(cls, cursor, fetchPlan, sharedReads);
+	}
+
+	/**
+	 * Reads every row of a Cursor (see fetchAllToCache(Class, Cursor, FetchPlan)), choosing whether the returned copies are the
+	 * snapshots shared by the cache.
+	 * @param cls the Class of the Objects
+	 * @param cursor a Cursor over the table of the given Class
+	 * @param fetchPlan the FetchPlan, or null to use the default for each Field
+	 * @param shared true to return the shared snapshots
+	 * @return copies of the Objects in the order of the Cursor's rows
+	 */
+	private <T> ArrayList<T> fetchAllToCache(Class<T> cls, Cursor cursor, FetchPlan fetchPlan, boolean shared){
+		ArrayList<T> list = new ArrayList<T>();
+		if(!cursor.moveToFirst()) return list;
+		int idColumnIndex = cursor.getColumnIndex(DataUtil.getIdField(cls).getName());
+		ArrayList<Integer> uncachedPositions = new ArrayList<Integer>();
+		while(!cursor.isAfterLast()){
+			int id = cursor.getInt(idColumnIndex);
+			T object = shared ? cache.getSnapshot(cls, id) : getCopyFromCache(cls, id);
+			if(object == null) uncachedPositions.add(cursor.getPosition());
+			list.add(object);
+			cursor.moveToNext();
+		}
+		if(uncachedPositions.isEmpty()) return list;
+
+		int[] positions = new int[uncachedPositions.size()];
+		for(int i=0; i<positions.length; i++) positions[i] = uncachedPositions.get(i);
+		ArrayList<T> fetchedObjects = pm.fetch(cls, cursor, positions, fetchPlan);
+		int fetchedIndex = 0;
+		for(int i=0; i<list.size(); i++){
+			if(list.get(i) != null) continue;
+			T obj = fetchedObjects.get(fetchedIndex++);
+			T copy = DataUtil.copy(obj);
+			cache.put(obj, shared ? copy : null);
+			cache.recordLoad();
+			list.set(i, copy);
+		}
+		return list;
+	}
+
 	/**
 	 * Gets a copy of an Object that is in the cache based on its Class and id number.
 	 * @param cls the Class of the object
@@ -328,12 +698,306 @@ public class PersistenceContext {
 	public <T> T getCopyFromCache(Class<T> cls, int id){
 		return DataUtil.copy(cache.get(cls, id));
 	}
+
+	/**
+	 * Gets an Object that is in the cache based on its Class and id number, as a read returns it: the shared snapshot of the cached
+	 * Object if shared reads are enabled (see Cache.getSnapshot()), otherwise a copy.
+	 * @param cls the Class of the object
+	 * @param id the id number of the Object
+	 * @return the Object or null if it does not exist
+	 */
+	public <T> T getFromCache(Class<T> cls, int id){
+		if(sharedReads) return cache.getSnapshot(cls, id);
+		return getCopyFromCache(cls, id);
+	}
+
+	/**
+	 * Sets whether reads return shared snapshots of the cached Objects instead of private copies. A snapshot is copied from the
+	 * cached Object once and then returned by every read until the Object changes, so reading it again costs no copy. The cached
+	 * Object itself is never returned, so a snapshot that is modified, or passed to update(), never changes the cache.
+	 * @param sharedReads true to return shared snapshots
+	 */
+	public void setSharedReads(boolean sharedReads){
+		this.sharedReads = sharedReads;
+	}
+
 	
 	/**
-	 * Removes all Directives from the the pendingDirectivesQueue
+	 * Resolves a lazily loaded reference from the cache, or from the database if it is not cached.
+	 * @param type the Class of the object
+	 * @param id the id number of the object
+	 * @return a copy of the object, or null if it no longer exists
+	 */
+	@Override
+	public Object resolveReference(Class<?> type, int id){
+		Object obj = getCopyFromCache(type, id);
+		if(obj == null) obj = fetchToCache(type, id, null, false);
+		return obj;
+	}
+
+	/**
+	 * Resolves a lazily loaded collection. Contained objects that are cached are taken from the cache and the rest are fetched
+	 * together from the database.
+	 * @param parentType the Class of the object that holds the collection
+	 * @param fieldIndex the index of the collection Field in EntityDescriptor.getFields()
+	 * @param parentId the id number of the object that holds the collection
+	 * @param collection the collection the contained objects are added to
+	 */
+	@Override
+	public void resolveCollection(Class<?> parentType, int fieldIndex, int parentId, Collection<Object> collection){
+		EntityDescriptor descriptor = EntityDescriptor.get(parentType);
+		Class<?> containedType = descriptor.getStoredClassOfCollection(fieldIndex);
+		ArrayList<Integer> childIds = pm.fetchReferenceIds(descriptor.getReferenceTableName(fieldIndex), parentId);
+
+		SparseArray<Object> containedObjects = new SparseArray<Object>();
+		ArrayList<Integer> uncachedIds = new ArrayList<Integer>();
+		for(int childId : childIds){
+			Object containedObject = getCopyFromCache(containedType, childId);
+			if(containedObject == null) uncachedIds.add(childId);
+			else containedObjects.put(childId, containedObject);
+		}
+		for(Object containedObject : fetchAllToCache(containedType, uncachedIds)){
+			containedObjects.put(DataUtil.getId(containedObject), containedObject);
+		}
+
+		for(int childId : childIds){
+			Object containedObject = containedObjects.get(childId);
+			if(containedObject != null) collection.add(containedObject);
+		}
+	}
+
+	/**
+	 * Fetches the objects of a Class with the given id numbers into the cache, using one query for every
+	 * PersistenceManager.MAX_IDS_PER_QUERY id numbers. Id numbers that are not in the database are skipped.
+	 * @param cls the Class
+	 * @param rowIds the id numbers
+	 * @return the fetched objects, in the order the database returned them
+	 */
+	private <T> ArrayList<T> fetchAllToCache(Class<T> cls, List<Integer> rowIds){
+		ArrayList<T> fetchedObjects = new ArrayList<T>(rowIds.size());
+		for(int start=0; start<rowIds.size(); start+=PersistenceManager.MAX_IDS_PER_QUERY){
+			Cursor cursor = getCursorByIds(cls, rowIds, start);
+			fetchedObjects.addAll(fetchAllToCache(cls, cursor, null, false));
+			cursor.close();
+		}
+		return fetchedObjects;
+	}
+
+	/**
+	 * Returns a Cursor over the rows of a Class with up to PersistenceManager.MAX_IDS_PER_QUERY of the given id numbers.
+	 * @param cls the Class
+	 * @param rowIds the id numbers
+	 * @param start the index of the first id number to be queried
+	 * @return the Cursor
+	 */
+	private Cursor getCursorByIds(Class<?> cls, List<Integer> rowIds, int start){
+		StringBuilder idList = new StringBuilder();
+		for(int j=start; j<rowIds.size() && j<start+PersistenceManager.MAX_IDS_PER_QUERY; j++){
+			if(j != start) idList.append(", ");
+			idList.append(rowIds.get(j));
+		}
+		return pm.getCursor(cls, DataUtil.getIdField(cls).getName() + " IN (" + idList + ")");
+	}
+
+	/**
+	 * Sets the maximum number of objects that are kept in the cache.
+	 * @param capacity the maximum number of cached objects, or 0 for no limit
+	 */
+	public void setCacheCapacity(int capacity){
+		cache.setCapacity(capacity);
+	}
+
+	/**
+	 * Sets the maximum number of objects of a given class that are kept in the cache.
+	 * @param cls the class
+	 * @param capacity the maximum number of cached objects of the class, or 0 for no limit
+	 */
+	public void setCacheCapacity(Class<?> cls, int capacity){
+		cache.setCapacity(cls, capacity);
+	}
+
+	/**
+	 * Returns a snapshot of the cache's hit, miss, eviction and load counts.
+	 * @return the CacheStats
+	 */
+	public CacheStats getCacheStats(){
+		return cache.getStats();
+	}
+
+	/**
+	 * Commits the pending Directives to the database (see PersistenceManager.commit(Queue)). The Directives are first moved out of
+	 * the pendingDirectivesQueue, so other threads may keep recording changes while they are written. If the commit fails, the
+	 * Directives that were not written are put back in front of any recorded since.
+	 * @return the number of rows that were written to the database
+	 */
+	public int commit(){
+		return commit(true);
+	}
+
+	/**
+	 * Commits the pending Directives to the database (see commit()), choosing whether the commit must reach storage before it returns
+	 * (see PersistenceManager.commit(Queue, boolean)). The cached objects the Directives were pinned for are unpinned once they have
+	 * been written; Directives that were put back pin their objects again.
+	 * @param synced true if the commit must be synced to storage
+	 * @return the number of rows that were written to the database
+	 */
+	public int commit(boolean synced){
+		synchronized(commitLock){
+			if(pendingDirectivesQueue.isEmpty()) return 0;
+			Queue<Directive> directives = new LinkedList<Directive>();
+			synchronized(changeLock){
+				Directive directive;
+				while((directive = pendingDirectivesQueue.poll()) != null) directives.offer(directive);
+				resetPendingCounts();
+			}
+			//the PersistenceManager optimizes the queue in place, so the Directives that pinned objects are kept here
+			List<Directive> drainedDirectives = new ArrayList<Directive>(directives);
+			try{
+				return pm.commit(directives, synced);
+			}finally{
+				synchronized(changeLock){
+					if(!directives.isEmpty()){
+						Directive directive;
+						while((directive = pendingDirectivesQueue.poll()) != null){
+							directives.offer(directive);
+							unpin(directive);
+						}
+						resetPendingCounts();
+						for(Directive restoredDirective : directives) queue(restoredDirective);
+					}
+					for(Directive drainedDirective : drainedDirectives) unpin(drainedDirective);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of Directives waiting to be committed.
+	 * @return the number of pending Directives
+	 */
+	public int getPendingCount(){
+		return pendingCount;
+	}
+
+	/**
+	 * Returns an estimate of the number of bytes of values held by the Directives waiting to be committed.
+	 * @return the estimated size of the pending Directives
+	 */
+	public long getPendingBytes(){
+		return pendingBytes;
+	}
+
+	/**
+	 * Returns the time the oldest Directive waiting to be committed was queued, as given by System.currentTimeMillis().
+	 * @return the time, or 0 if no Directive is pending
+	 */
+	public long getOldestPendingTime(){
+		return oldestPendingTime;
+	}
+
+	/**
+	 * Adds a Directive to the pendingDirectivesQueue, counts it and pins the cached object it changes (see Cache.pin()), so that the
+	 * object is not evicted and later compared against the outdated state in the database. The change count of the Class the
+	 * Directive acts on is raised (see cachePrefetched()). Must be called while holding the changeLock.
+	 * @param directive the Directive
+	 */
+	private void queue(Directive directive){
+		Class<?> type = PersistenceManager.getType(directive);
+		changeCounts.put(type, getChangeCount(type) + 1);
+		pendingDirectivesQueue.offer(directive);
+		if(pendingCount == 0) oldestPendingTime = System.currentTimeMillis();
+		pendingCount++;
+		pendingBytes += estimateSize(directive);
+		pin(directive);
+	}
+
+	/**
+	 * Pins the cached object a Directive changes. A DeleteDirective pins nothing, its object has already been removed from the cache.
+	 * The object holding a collection is pinned for the Directives changing its references.
+	 * @param directive the Directive
+	 */
+	private void pin(Directive directive){
+		if(directive instanceof CreateDirective){
+			Object instance = ((CreateDirective) directive).getInstance();
+			cache.pin(instance.getClass(), DataUtil.getId(instance));
+		}else if(directive instanceof UpdateDirective){
+			cache.pin(((UpdateDirective) directive).getCls(), ((UpdateDirective) directive).getRowId());
+		}else if(directive instanceof CreateReferenceDirective){
+			cache.pin(((CreateReferenceDirective) directive).getParentType(), ((CreateReferenceDirective) directive).getParentId());
+		}else if(directive instanceof DeleteReferenceDirective){
+			cache.pin(((DeleteReferenceDirective) directive).getParentType(), ((DeleteReferenceDirective) directive).getParentId());
+		}
+	}
+
+	/**
+	 * Releases the pin taken by pin(Directive).
+	 * @param directive the Directive
+	 */
+	private void unpin(Directive directive){
+		if(directive instanceof CreateDirective){
+			Object instance = ((CreateDirective) directive).getInstance();
+			cache.unpin(instance.getClass(), DataUtil.getId(instance));
+		}else if(directive instanceof UpdateDirective){
+			cache.unpin(((UpdateDirective) directive).getCls(), ((UpdateDirective) directive).getRowId());
+		}else if(directive instanceof CreateReferenceDirective){
+			cache.unpin(((CreateReferenceDirective) directive).getParentType(), ((CreateReferenceDirective) directive).getParentId());
+		}else if(directive instanceof DeleteReferenceDirective){
+			cache.unpin(((DeleteReferenceDirective) directive).getParentType(), ((DeleteReferenceDirective) directive).getParentId());
+		}
+	}
+
+	/**
+	 * Resets the counts of the pending Directives after the pendingDirectivesQueue has been emptied. Must be called while holding the
+	 * changeLock.
+	 */
+	private void resetPendingCounts(){
+		pendingCount = 0;
+		pendingBytes = 0;
+		oldestPendingTime = 0;
+	}
+
+	/**
+	 * Estimates the number of bytes of values a Directive will write: 8 for each number and twice the length of each String.
+	 * @param directive the Directive
+	 * @return the estimated size
+	 */
+	private long estimateSize(Directive directive){
+		long size = 8;
+		if(directive instanceof CreateDirective){
+			Object instance = ((CreateDirective) directive).getInstance();
+			EntityDescriptor descriptor = EntityDescriptor.get(instance.getClass());
+			Field[] fields = descriptor.getFields();
+			for(int i=0; i<fields.length; i++){
+				if(descriptor.getFieldTypeId(i) == DataUtil.FIELD_TYPE_COLLECTION) continue;
+				if(descriptor.getFieldTypeId(i) != DataUtil.FIELD_TYPE_STRING){
+					size += 8;
+					continue;
+				}
+				try{
+					String value = (String) fields[i].get(instance);
+					if(value != null) size += 2 * value.length();
+				}catch(IllegalAccessException e){
+					throw new InaccessableObjectException();
+				}
+			}
+		}else if(directive instanceof UpdateDirective){
+			for(Object value : ((UpdateDirective) directive).getValues().values()){
+				if(value instanceof String) size += 2 * ((String) value).length();
+				else size += 8;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all Directives from the the pendingDirectivesQueue and unpins their objects
 	 */
 	public void clearPendingDirectivesQueue(){
-		pendingDirectivesQueue.clear();
+		synchronized(changeLock){
+			Directive directive;
+			while((directive = pendingDirectivesQueue.poll()) != null) unpin(directive);
+			resetPendingCounts();
+		}
 	}
 
 	/**
@@ -343,4 +1007,18 @@ public class PersistenceContext {
 	public Queue<Directive> getPendingDirectivesQueue(){
 		return pendingDirectivesQueue;
 	}
+
+	/**
+	 * A block of id numbers reserved for a Class.
+	 */
+	private static class IdBlock {
+
+		private final AtomicInteger nextId; //the next id number to hand out, may run past endId once the block is used up
+		private final int endId; //the first id number after the block
+
+		private IdBlock(int firstId, int endId){
+			this.nextId = new AtomicInteger(firstId);
+			this.endId = endId;
+		}
+	}
 }
@@ -3,23 +3,37 @@ package net.epsilonlabs.datamanagementefficient.library;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.epsilonlabs.datamanagementefficient.directive.CreateDirective;
 import net.epsilonlabs.datamanagementefficient.directive.CreateReferenceDirective;
 import net.epsilonlabs.datamanagementefficient.directive.DeleteDirective;
 import net.epsilonlabs.datamanagementefficient.directive.DeleteReferenceDirective;
+import net.epsilonlabs.datamanagementefficient.directive.Directive;
 import net.epsilonlabs.datamanagementefficient.directive.UpdateDirective;
+import net.epsilonlabs.datamanagementefficient.exception.IdNumbersExhaustedException;
 import net.epsilonlabs.datamanagementefficient.exception.InternalDatabaseException;
-import android.content.ContentValues;
+import net.epsilonlabs.datamanagementefficient.exception.MigrationCancelledException;
+import net.epsilonlabs.datamanagementefficient.user.FetchPlan;
+import net.epsilonlabs.datamanagementefficient.user.LazyReference;
+import net.epsilonlabs.datamanagementefficient.user.MigrationListener;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
 /**
  * The Persistence Manager class acts as DataManagement's direct liaison to the database. It handles all queries to the database.
@@ -31,10 +45,28 @@ public class PersistenceManager {
 	public static final int COLLECTION_EMPTY_VALUE = -1;
 	public static final String PARENT_REFERENCE_NAME = "PARENT";
 	public static final String CHILD_REFERENCE_NAME = "CHILD";
+	public static final int MAX_IDS_PER_QUERY = 500;
+	public static final String CATALOG_TABLE_NAME = "DataManagementCatalog";
+	public static final String SEQUENCE_TABLE_NAME = "DataManagementSequence";
+	public static final int ID_BLOCK_SIZE = 1000; //the number of id numbers reserved for a class at a time
+	public static final int UPGRADE_CHUNK_SIZE = 5000; //the number of rows copied per transaction when a table is rebuilt
+	public static final int SCHEMA_LAYOUT_VERSION = 2; //the version of the table layout, incremented whenever the library changes how classes are stored
 	private SQLHelper helper;
 	private SQLiteDatabase db;
+	private StatementCache statementCache;
 	private Set<Class<?>> upToDateClasses;
+	private Set<String> upToDateReferenceTables; //the reference tables that are confirmed to have the keyed layout
+	private ConcurrentHashMap<Object, Object> tableLocks; //holds a map of Classes and reference table names to the locks held while their tables are prepared
+	private MigrationRunner migrationRunner; //the runner preparing tables in the background, or null if none was started
+	private boolean withoutRowidSupported; //true if the SQLite library supports WITHOUT ROWID tables (3.8.2 and later)
+	private boolean dropColumnSupported; //true if the SQLite library supports ALTER TABLE DROP COLUMN (3.35.0 and later)
 	private int defaultUpgradeValue = -1;
+	private int commitChunkSize = 0;
+	private LazyResolver lazyResolver; //resolves lazily loaded references and collections, or null if lazy loading is unavailable
+	private int readConnections = 0; //the number of read-only connections opened alongside the writer in write-ahead logging mode, or 0 to use the writer for everything
+	private volatile ReadConnectionPool readPool; //the pool of read-only connections, or null if write-ahead logging is not in use
+	private ThreadLocal<ReadScope> readScopes = new ThreadLocal<ReadScope>(); //holds the read scope each thread is in, if any
+	private ThreadLocal<MigrationRunner> migrationScopes = new ThreadLocal<MigrationRunner>(); //holds the runner whose background thread is preparing a table, if any
 
 	/**
 	 * Constructor. Instantiates a new Set that will hold Classes that are confirmed to be up to date.
@@ -42,7 +74,9 @@ public class PersistenceManager {
 	 */
 	public PersistenceManager(Context context){
 		this.helper = new SQLHelper(context);
-		this.upToDateClasses = new HashSet<Class<?>>();
+		this.upToDateClasses = Collections.synchronizedSet(new HashSet<Class<?>>());
+		this.upToDateReferenceTables = Collections.synchronizedSet(new HashSet<String>());
+		this.tableLocks = new ConcurrentHashMap<Object, Object>();
 	}
 	
 	/**
@@ -50,15 +84,104 @@ public class PersistenceManager {
 	 */
 	public void open(){
 		db = helper.getWritableDatabase();
+		//write-ahead logging lets the read-only connections read while the writer commits (Android 3.0 and later)
+		if(readConnections > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && db.enableWriteAheadLogging()){
+			readPool = new ReadConnectionPool(db.getPath(), readConnections);
+		}
+		statementCache = new StatementCache(db);
+		withoutRowidSupported = isSQLiteVersionAtLeast(3, 8, 2);
+		dropColumnSupported = isSQLiteVersionAtLeast(3, 35, 0);
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + CATALOG_TABLE_NAME + "(TABLE_NAME " + DataUtil.TEXT_FIELD + " PRIMARY KEY, FINGERPRINT " + DataUtil.TEXT_FIELD
+				+ " NOT NULL, COLLECTIONS " + DataUtil.TEXT_FIELD + " NOT NULL);");
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + SEQUENCE_TABLE_NAME + "(TABLE_NAME " + DataUtil.TEXT_FIELD + " PRIMARY KEY, NEXT_ID " + DataUtil.INT_FIELD + " NOT NULL);");
 	}
 	
 	/**
 	 * Closes the database for reading and writing.
 	 */
 	public void close(){
+		if(migrationRunner != null){
+			migrationRunner.cancel();
+			migrationRunner = null;
+		}
+		if(readPool != null){
+			readPool.close();
+			readPool = null;
+		}
+		statementCache.clear();
 		db.close();
 	}
 	
+	/**
+	 * Applies a queue of Directives to the database inside a single transaction. The queue is first reduced by the DirectiveOptimizer. If a commit chunk size has been set, the queue is
+	 * instead applied in transactions of at most that many Directives. Directives are only removed from the queue once the transaction
+	 * that applied them has succeeded, so a failed commit leaves the remaining Directives in the queue and none of their changes in the database.
+	 * @param directives the queue of Directives to be applied
+	 * @return the number of rows that were written to the database
+	 */
+	public int commit(Queue<Directive> directives){
+		return commit(directives, true);
+	}
+
+	/**
+	 * Applies a queue of Directives to the database (see commit(Queue)). In write-ahead logging mode an unsynced commit returns as
+	 * soon as it is written to the log: it survives the application crashing, but it may be lost if the device loses power before the
+	 * log is next synced. Without write-ahead logging every commit is synced.
+	 * @param directives the queue of Directives to be applied
+	 * @param synced true if the commit must be synced to storage before this method returns
+	 * @return the number of rows that were written to the database
+	 */
+	public int commit(Queue<Directive> directives, boolean synced){
+		DirectiveOptimizer.optimize(directives);
+		//preparing a table may wait for a background migration of it, which cannot finish while this thread holds a transaction
+		for(Directive directive : directives) prepareTable(getType(directive));
+		if(readPool != null) db.execSQL("PRAGMA synchronous = " + (synced ? "FULL" : "NORMAL"));
+		int rowCount = 0;
+		while(!directives.isEmpty()){
+			int chunkSize = 0;
+			db.beginTransaction();
+			try{
+				for(Directive directive : directives){
+					if(commitChunkSize > 0 && chunkSize == commitChunkSize) break;
+					rowCount += execute(directive);
+					chunkSize++;
+				}
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+			for(int i=0; i<chunkSize; i++) directives.poll();
+		}
+		return rowCount;
+	}
+
+	/**
+	 * Returns the class whose table a Directive acts on. For reference Directives this is the class holding the collection.
+	 * @param directive the Directive
+	 * @return the class
+	 */
+	static Class<?> getType(Directive directive){
+		if(directive instanceof CreateDirective) return ((CreateDirective)directive).getInstance().getClass();
+		else if(directive instanceof UpdateDirective) return ((UpdateDirective)directive).getCls();
+		else if(directive instanceof DeleteDirective) return ((DeleteDirective)directive).getCls();
+		else if(directive instanceof CreateReferenceDirective) return ((CreateReferenceDirective)directive).getParentType();
+		return ((DeleteReferenceDirective)directive).getParentType();
+	}
+
+	/**
+	 * Applies a single Directive to the database.
+	 * @param directive the Directive to be applied
+	 * @return the number of rows that were written to the database
+	 */
+	private int execute(Directive directive){
+		if(directive instanceof CreateDirective) return create((CreateDirective)directive);
+		else if(directive instanceof DeleteDirective) return delete((DeleteDirective)directive);
+		else if(directive instanceof UpdateDirective) return update((UpdateDirective)directive);
+		else if(directive instanceof CreateReferenceDirective) return createReference((CreateReferenceDirective)directive);
+		else if(directive instanceof DeleteReferenceDirective) return deleteReference((DeleteReferenceDirective)directive);
+		return 0;
+	}
+
 	/**
 	 * Returns a Cursor with all columns from the database based on a given Class and a given SQL where clause.
 	 * @param cls the class
@@ -66,14 +189,35 @@ public class PersistenceManager {
 	 * @return a cursor with all columns
 	 */
 	public Cursor getCursor(Class<?> cls, String whereString){
-		if(!upToDateClasses.contains(cls)){
-			upToDateClasses.add(cls);
-			executeCreateIfNotExistsSQLStatement(DataUtil.getTableName(cls), createSQLStatementsFromFields(DataUtil.getFields(cls)));
-			performTableUpgrade(cls);
-		}
-		
+		return getCursor(cls, whereString, null);
+	}
+
+	/**
+	 * Returns a Cursor with all columns from the database based on a given Class and a given SQL where clause with bound arguments.
+	 * @param cls the class
+	 * @param whereString the SQL where clause, with a ? for each argument
+	 * @param whereArgs the arguments bound to the where clause, or null
+	 * @return a cursor with all columns
+	 */
+	public Cursor getCursor(Class<?> cls, String whereString, String[] whereArgs){
+		return getCursor(cls, whereString, whereArgs, null, null);
+	}
+
+	/**
+	 * Returns a Cursor with all columns from the database based on a given Class, a given SQL where clause with bound arguments, an
+	 * ordering and a limit.
+	 * @param cls the class
+	 * @param whereString the SQL where clause, with a ? for each argument, or null
+	 * @param whereArgs the arguments bound to the where clause, or null
+	 * @param orderBy the SQL ORDER BY clause (without "ORDER BY"), or null
+	 * @param limit the SQL LIMIT clause (without "LIMIT"), or null
+	 * @return a cursor with all columns
+	 */
+	public Cursor getCursor(Class<?> cls, String whereString, String[] whereArgs, String orderBy, String limit){
+		prepareTable(cls);
+
 		try{
-			Cursor cursor = db.query(DataUtil.getTableName(cls), null, whereString, null, null, null, null);
+			Cursor cursor = getReadDatabase().query(DataUtil.getTableName(cls), null, whereString, whereArgs, null, null, orderBy, limit);
 			return cursor;
 		}catch(SQLException e){
 			throw new InternalDatabaseException();
@@ -83,120 +227,115 @@ public class PersistenceManager {
 	/**
 	 * Creates an object in the database.
 	 * @param cd the CreateDirective that holds the data to be added to the database.
+	 * @return the number of rows written
 	 */
-	public void create(CreateDirective cd) {
-		try {
-			Object obj = cd.getInstance();
-			Class<?> type = obj.getClass();
-			String tableName = DataUtil.getTableName(type);
-			Field idField = DataUtil.getIdField(type);
-			Field[] instanceFields = DataUtil.getFields(type);
-
-			if(!upToDateClasses.contains(type)){
-				upToDateClasses.add(type);
-				executeCreateIfNotExistsSQLStatement(tableName, createSQLStatementsFromFields(DataUtil.getFields(type)));
-				performTableUpgrade(type);
-			}
+	public int create(CreateDirective cd) {
+		Object obj = cd.getInstance();
+		Class<?> type = obj.getClass();
+		EntityDescriptor descriptor = EntityDescriptor.get(type);
+		String tableName = descriptor.getTableName();
 
-			int rowId = (int) db.insert(tableName, idField.getName(), null);
-			ContentValues cv = new ContentValues();
-			for (Field field : instanceFields) {
-				switch (DataUtil.getFieldTypeId(field)) {
-				case DataUtil.FIELD_TYPE_INT:
-					cv.put(field.getName(), field.getInt(obj));
-					break;
-				case DataUtil.FIELD_TYPE_DOUBLE:
-					cv.put(field.getName(), field.getDouble(obj));
-					break;
-				case DataUtil.FIELD_TYPE_FLOAT:
-					cv.put(field.getName(), field.getFloat(obj));
-					break;
-				case DataUtil.FIELD_TYPE_LONG:
-					cv.put(field.getName(), field.getLong(obj));
-					break;
-				case DataUtil.FIELD_TYPE_STRING:
-					cv.put(field.getName(), (String) field.get(obj));
-					break;
-				case DataUtil.FIELD_TYPE_BOOLEAN:
-					if (field.getBoolean(obj)) cv.put(field.getName(), 1);
-					else cv.put(field.getName(), 0);
-					break;
-				case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
-					if(field.get(obj) == null) cv.put(field.getName() + "_ref", (Integer) null);
-					else cv.put(field.getName() + "_ref", DataUtil.getId(field.get(obj)));
-					break;
-				}
-			}
-			db.update(tableName, cv, "ROWID = " + String.valueOf(rowId), null);
-		} catch (IllegalAccessException e) {
-			throw new InternalDatabaseException();
+		prepareTable(type);
+
+		//the whole row, including the id assigned by the PersistenceContext, is written with a single insert
+		SQLiteStatement insertStatement = statementCache.get(tableName, descriptor.getInsertSQL());
+		descriptor.getMapper().bindColumns(obj, insertStatement);
+		//values of UpdateDirectives that were merged into this directive replace the instance's own values
+		for(Map.Entry<Field, Object> entry : cd.getValues().entrySet()){
+			int i = descriptor.indexOf(entry.getKey());
+			if(i == -1 || descriptor.getFieldTypeId(i) == DataUtil.FIELD_TYPE_COLLECTION) continue;
+			bindValue(insertStatement, descriptor.getParameterIndex(i), descriptor.getFieldTypeId(i), entry.getValue());
 		}
+		if(insertStatement.executeInsert() == -1) return 0;
+		return 1;
 	}
 
 	/**
 	 * Deletes an object from the database.
 	 * @param dd the DeleteDirective that holds the data to be deleted from the database.
+	 * @return the number of rows deleted
 	 */
-	public void delete(DeleteDirective dd) {
+	public int delete(DeleteDirective dd) {
 		Class<?> type = dd.getCls();
 		int rowId = dd.getRowId();
 		String tableName = DataUtil.getTableName(type);;
 		Field idField = DataUtil.getIdField(type);
 
-		if(!upToDateClasses.contains(type)){
-			upToDateClasses.add(type);
-			executeCreateIfNotExistsSQLStatement(tableName, createSQLStatementsFromFields(DataUtil.getFields(type)));
-			performTableUpgrade(type);
-		}
+		prepareTable(type);
 
-		db.delete(tableName, idField.getName() + " = " + rowId, null);
+		SQLiteStatement deleteStatement = statementCache.get(tableName, "DELETE FROM " + tableName + " WHERE " + idField.getName() + " = ?;");
+		deleteStatement.bindLong(1, rowId);
+		return statementCache.executeUpdateDelete(deleteStatement);
 	}
 
 	/**
 	 * Updates an object in the database.
 	 * @param ud the UpdateDirective that holds the data to be updated in the database.
+	 * @return the number of rows updated
 	 */
-	public void update(UpdateDirective ud) {
+	public int update(UpdateDirective ud) {
 		Class<?> type = ud.getCls();
 		Map<Field, Object> fieldValueMap = ud.getValues();
 		int rowId = ud.getRowId();
 		String tableName = DataUtil.getTableName(type);
 		Field idField = DataUtil.getIdField(type);
 
-		if(!upToDateClasses.contains(type)){
-			upToDateClasses.add(type);
-			executeCreateIfNotExistsSQLStatement(tableName, createSQLStatementsFromFields(DataUtil.getFields(type)));
-			performTableUpgrade(type);
+		prepareTable(type);
+
+		//fields are visited in declaration order so that the same set of updated fields always produces the same statement
+		EntityDescriptor descriptor = EntityDescriptor.get(type);
+		Field[] fields = descriptor.getFields();
+		String SQLUpdateStatement = "UPDATE " + tableName + " SET ";
+		LinkedList<Integer> columnIndexes = new LinkedList<Integer>();
+		for (int i = 0; i < fields.length; i++) {
+			if(!fieldValueMap.containsKey(fields[i]) || descriptor.getFieldTypeId(i) == DataUtil.FIELD_TYPE_COLLECTION) continue;
+			if(!columnIndexes.isEmpty()) SQLUpdateStatement += ", ";
+			SQLUpdateStatement += descriptor.getColumnName(i) + " = ?";
+			columnIndexes.add(i);
 		}
+		if(columnIndexes.isEmpty()) return 0;
+		SQLUpdateStatement += " WHERE " + idField.getName() + " = ?;";
 
-		ContentValues cv = new ContentValues();
-		for (Field field : fieldValueMap.keySet()) {
-			switch (DataUtil.getFieldTypeId(field)) {
-			case DataUtil.FIELD_TYPE_INT:
-				cv.put(field.getName(), (Integer)fieldValueMap.get(field));
-				break;
-			case DataUtil.FIELD_TYPE_DOUBLE:
-				cv.put(field.getName(), (Double)fieldValueMap.get(field));
-				break;
-			case DataUtil.FIELD_TYPE_FLOAT:
-				cv.put(field.getName(), (Float)fieldValueMap.get(field));
-				break;
-			case DataUtil.FIELD_TYPE_LONG:
-				cv.put(field.getName(), (Long)fieldValueMap.get(field));
-				break;
-			case DataUtil.FIELD_TYPE_STRING:
-				cv.put(field.getName(), (String)fieldValueMap.get(field));
-				break;
-			case DataUtil.FIELD_TYPE_BOOLEAN:
-				if ((Boolean)fieldValueMap.get(field)) cv.put(field.getName(), 1);
-				else cv.put(field.getName(), 0);
-				break;
-			case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
-				cv.put(field.getName() + "_ref", (Integer)fieldValueMap.get(field));
-				break;
-			}
+		SQLiteStatement updateStatement = statementCache.get(tableName, SQLUpdateStatement);
+		int index = 1;
+		for (int i : columnIndexes) {
+			bindValue(updateStatement, index++, descriptor.getFieldTypeId(i), fieldValueMap.get(fields[i]));
+		}
+		updateStatement.bindLong(index, rowId);
+		return statementCache.executeUpdateDelete(updateStatement);
+	}
+
+	/**
+	 * Binds a field value to a compiled statement based on the field's type. Non-primitive fields are expected to be given as the
+	 * Integer id of the referenced object.
+	 * @param statement the compiled statement
+	 * @param index the 1-based index of the parameter to bind
+	 * @param fieldTypeId the type id of the Field the value belongs to
+	 * @param value the value to bind, or null
+	 */
+	private void bindValue(SQLiteStatement statement, int index, int fieldTypeId, Object value){
+		if(value == null){
+			statement.bindNull(index);
+			return;
+		}
+		switch (fieldTypeId) {
+		case DataUtil.FIELD_TYPE_INT:
+		case DataUtil.FIELD_TYPE_LONG:
+		case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
+			statement.bindLong(index, ((Number) value).longValue());
+			break;
+		case DataUtil.FIELD_TYPE_DOUBLE:
+		case DataUtil.FIELD_TYPE_FLOAT:
+			statement.bindDouble(index, ((Number) value).doubleValue());
+			break;
+		case DataUtil.FIELD_TYPE_STRING:
+			statement.bindString(index, (String) value);
+			break;
+		case DataUtil.FIELD_TYPE_BOOLEAN:
+			if ((Boolean) value) statement.bindLong(index, 1);
+			else statement.bindLong(index, 0);
+			break;
 		}
-		db.update(tableName, cv, idField.getName() + " = " + String.valueOf(rowId), null);
 	}
 
 	/**
@@ -206,127 +345,332 @@ public class PersistenceManager {
 	 * @return the object from the database
 	 */
 	public <T> T fetch(Class<T> type, Cursor cursor){
-		return fetch(type, cursor, new Cache());
+		GraphLoader loader = new GraphLoader(null);
+		T obj = loader.readRow(type, cursor, descriptorColumnIndexes(type, cursor));
+		loader.load();
+		return obj;
 	}
 
 	/**
-	 * Helper method used by fetch(Class, Cursor) that recursively fetches an object of a given class and all contained objects within it from the database.
-	 * @param type the Class of the object to be retrieved
-	 * @param cursor the Cursor, positioned at the correct row, that represents the object to be fetched
-	 * @param cache a map of all objects that have already been retrieved so far
-	 * @return The object from the database
+	 * Fetches the objects at the given positions of a Cursor. All objects are loaded together, so the objects they contain are
+	 * read with one query per class and reference table for each level of the object graph rather than one query per object.
+	 * @param type the Class of the objects to be returned
+	 * @param cursor the Cursor over the table of the given Class
+	 * @param positions the positions of the rows to be fetched
+	 * @return the objects from the database, in the order of the given positions
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private <T> T fetch(Class<T> type, Cursor cursor, Cache cache){
-		Queue<Field> nonPrimitveFieldQueue = new LinkedList<Field>();
-		Queue<Field> nonPrimitveCollectionFieldQueue = new LinkedList<Field>();
+	public <T> ArrayList<T> fetch(Class<T> type, Cursor cursor, int[] positions){
+		return fetch(type, cursor, positions, null);
+	}
 
-		if(!upToDateClasses.contains(type)){
-			upToDateClasses.add(type);
-			executeCreateIfNotExistsSQLStatement(DataUtil.getTableName(type), createSQLStatementsFromFields(DataUtil.getFields(type)));
-			performTableUpgrade(type);
+	/**
+	 * Fetches the objects at the given positions of a Cursor, loading the Fields named by a FetchPlan lazily (see
+	 * fetch(Class, Cursor, int[])).
+	 * @param type the Class of the objects to be returned
+	 * @param cursor the Cursor over the table of the given Class
+	 * @param positions the positions of the rows to be fetched
+	 * @param fetchPlan the FetchPlan, or null to use the default for each Field
+	 * @return the objects from the database, in the order of the given positions
+	 */
+	public <T> ArrayList<T> fetch(Class<T> type, Cursor cursor, int[] positions, FetchPlan fetchPlan){
+		GraphLoader loader = new GraphLoader(fetchPlan);
+		int[] columnIndexes = descriptorColumnIndexes(type, cursor);
+		ArrayList<T> objects = new ArrayList<T>(positions.length);
+		for(int position : positions){
+			cursor.moveToPosition(position);
+			objects.add(loader.readRow(type, cursor, columnIndexes));
 		}
+		loader.load();
+		return objects;
+	}
 
-		try{
-			T newObj = type.newInstance();
-			Field idField = DataUtil.getIdField(type);
-			Field[] fields = DataUtil.getFields(type);
-
-			for(Field field: fields){
-				int columnNumber = cursor.getColumnIndex(field.getName());
-				switch(DataUtil.getFieldTypeId(field)){
-				case DataUtil.FIELD_TYPE_INT:
-					if(cursor.isNull(columnNumber)) field.setInt(newObj, defaultUpgradeValue);
-					else field.setInt(newObj, cursor.getInt(columnNumber));
-					break;
-				case DataUtil.FIELD_TYPE_DOUBLE:
-					if(cursor.isNull(columnNumber)) field.setDouble(newObj, defaultUpgradeValue);
-					else field.setDouble(newObj, cursor.getDouble(columnNumber));
-					break;
-				case DataUtil.FIELD_TYPE_FLOAT:
-					if(cursor.isNull(columnNumber)) field.setFloat(newObj, defaultUpgradeValue);
-					else field.setFloat(newObj, cursor.getFloat(columnNumber));
-					break;
-				case DataUtil.FIELD_TYPE_LONG:
-					if(cursor.isNull(columnNumber)) field.setLong(newObj, defaultUpgradeValue);
-					else field.setLong(newObj, cursor.getLong(columnNumber));
-					break;
-				case DataUtil.FIELD_TYPE_STRING:
-					field.set(newObj, cursor.getString(columnNumber));
-					break;
-				case DataUtil.FIELD_TYPE_BOOLEAN:
-					if(cursor.getInt(columnNumber) == 1) field.setBoolean(newObj, true);
-					else field.setBoolean(newObj, false);
-					break;
-				case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
-					nonPrimitveFieldQueue.offer(field);
-					break;
-				case DataUtil.FIELD_TYPE_COLLECTION:
-					nonPrimitveCollectionFieldQueue.offer(field);
-					break;
+	/**
+	 * Prepares the table of a given Class and returns the Cursor column index of each of its Fields.
+	 * @param type the Class
+	 * @param cursor a Cursor over the table of the Class
+	 * @return the column indexes, by Field index
+	 */
+	private int[] descriptorColumnIndexes(Class<?> type, Cursor cursor){
+		prepareTable(type);
+		return EntityDescriptor.get(type).getColumnIndexes(cursor);
+	}
+
+	/**
+	 * The GraphLoader reads an object graph from the database level by level. Each row that is read only has its own columns filled
+	 * in; the ids of the objects it references are collected by class and read together with IN (...) queries when the next level is
+	 * loaded, and collections are read with a single query per reference table and level. Objects reached more than once within the
+	 * graph are read once and shared. References are resolved once the whole graph has been read. Fields that are loaded lazily are
+	 * given a LazyReference or LazyArrayList instead and are not followed.
+	 */
+	private class GraphLoader {
+
+		private FetchPlan fetchPlan; //the FetchPlan of the query, or null
+		private Map<Class<?>, Map<Integer, Object>> loadedObjects = new HashMap<Class<?>, Map<Integer, Object>>(); //all objects read so far, by class and id number
+		private Map<Class<?>, Set<Integer>> requestedIds = new LinkedHashMap<Class<?>, Set<Integer>>(); //ids that are referenced but not yet read, by class
+		private List<Object> unexpandedObjects = new ArrayList<Object>(); //objects whose collections have not yet been read
+		private List<PendingReference> pendingReferences = new ArrayList<PendingReference>(); //non-primitive Fields waiting to be set
+		private List<PendingCollection> pendingCollections = new ArrayList<PendingCollection>(); //collection Fields waiting to be set
+
+		/**
+		 * Constructor.
+		 * @param fetchPlan the FetchPlan of the query, or null to use the default for each Field
+		 */
+		private GraphLoader(FetchPlan fetchPlan){
+			this.fetchPlan = fetchPlan;
+		}
+
+		/**
+		 * Returns true if the Field at a given index of a Class should be loaded lazily.
+		 * @param descriptor the descriptor of the Class
+		 * @param index the index of the Field
+		 * @return true if the Field is deferred
+		 */
+		private boolean isDeferred(EntityDescriptor descriptor, int index){
+			if(lazyResolver == null || !descriptor.canBeDeferred(index)) return false;
+			if(fetchPlan == null) return descriptor.isLazyByDefault(index);
+			return fetchPlan.isLazy(descriptor.getType(), descriptor.getFields()[index].getName(), descriptor.isLazyByDefault(index));
+		}
+
+		/**
+		 * Reads the columns of the row a Cursor is positioned at and records the objects it references.
+		 * @param type the Class of the object
+		 * @param cursor the Cursor, positioned at the row
+		 * @param columnIndexes the column index of each Field of the Class
+		 * @return the object, with its references not yet set
+		 */
+		@SuppressWarnings("unchecked")
+		private <T> T readRow(Class<T> type, Cursor cursor, int[] columnIndexes){
+			EntityDescriptor descriptor = EntityDescriptor.get(type);
+			EntityMapper<T> mapper = descriptor.getMapper();
+			T newObj = mapper.newInstance();
+			mapper.readColumns(newObj, cursor, columnIndexes, defaultUpgradeValue);
+
+			Map<Integer, Object> loadedClassObjects = loadedObjects.get(type);
+			if(loadedClassObjects == null){
+				loadedClassObjects = new HashMap<Integer, Object>();
+				loadedObjects.put(type, loadedClassObjects);
+			}
+			loadedClassObjects.put(mapper.getId(newObj), newObj);
+			unexpandedObjects.add(newObj);
+
+			Field[] fields = descriptor.getFields();
+			for(int i=0; i<fields.length; i++){
+				if(descriptor.getFieldTypeId(i) != DataUtil.FIELD_TYPE_NON_PRIMITIVE) continue;
+				int columnNumber = columnIndexes[i];
+				if(cursor.isNull(columnNumber)){
+					mapper.setReference(newObj, i, descriptor.isLazyReference(i) ? new LazyReference<Object>() : null);
+					continue;
+				}
+				int referenceId = cursor.getInt(columnNumber);
+				Class<?> referencedClass = descriptor.getReferencedClass(i);
+				if(isDeferred(descriptor, i)){
+					mapper.setReference(newObj, i, new LazyReference<Object>(lazyResolver, (Class<Object>) referencedClass, referenceId));
+					continue;
 				}
+				pendingReferences.add(new PendingReference(newObj, i, referencedClass, referenceId));
+				request(referencedClass, referenceId);
 			}
+			return newObj;
+		}
 
-			cache.put(newObj);
-
-			for(Field field : nonPrimitveFieldQueue){
-				if(cursor.isNull(cursor.getColumnIndex(field.getName() + "_ref"))){
-					field.set(newObj, null);
-				}else{
-					int nonPrimitiveReferenceId = cursor.getInt(cursor.getColumnIndex(field.getName() + "_ref"));
-					Object cachedObject = cache.get(field.getType(), nonPrimitiveReferenceId);
-					if(cachedObject != null){
-						field.set(newObj, DataUtil.copy(cachedObject));
-					}else{
-						String nonPrimitiveReferenceSQLStatement = DataUtil.getIdField(field.getType()).getName() + " = " + nonPrimitiveReferenceId;
-						Cursor nonPrimitiveReferenceCursor = db.query(DataUtil.getTableName(field.getType()), null, nonPrimitiveReferenceSQLStatement, null, null, null, null);
-						nonPrimitiveReferenceCursor.moveToFirst();
-						field.set(newObj, fetch(field.getType(), nonPrimitiveReferenceCursor, cache));
-						nonPrimitiveReferenceCursor.close();
-					}
+		/**
+		 * Loads the rest of the graph of all objects read so far and sets their references.
+		 */
+		private void load(){
+			while(!unexpandedObjects.isEmpty()){
+				List<Object> levelObjects = unexpandedObjects;
+				unexpandedObjects = new ArrayList<Object>();
+				readCollections(levelObjects);
+				readRequestedObjects();
+			}
+			resolveReferences();
+		}
+
+		/**
+		 * Marks an object as needed by the graph if it has not been read yet.
+		 * @param type the Class of the object
+		 * @param id the id number of the object
+		 */
+		private void request(Class<?> type, int id){
+			Map<Integer, Object> loadedClassObjects = loadedObjects.get(type);
+			if(loadedClassObjects != null && loadedClassObjects.containsKey(id)) return;
+			Set<Integer> ids = requestedIds.get(type);
+			if(ids == null){
+				ids = new LinkedHashSet<Integer>();
+				requestedIds.put(type, ids);
+			}
+			ids.add(id);
+		}
+
+		/**
+		 * Reads the reference tables of all collection Fields of the given objects, one query per reference table.
+		 * @param levelObjects the objects whose collections are to be read
+		 */
+		private void readCollections(List<Object> levelObjects){
+			Map<Class<?>, List<Object>> objectsByClass = new LinkedHashMap<Class<?>, List<Object>>();
+			for(Object obj : levelObjects){
+				List<Object> classObjects = objectsByClass.get(obj.getClass());
+				if(classObjects == null){
+					classObjects = new ArrayList<Object>();
+					objectsByClass.put(obj.getClass(), classObjects);
 				}
+				classObjects.add(obj);
 			}
 
-			for(Field field : nonPrimitveCollectionFieldQueue){
-				Class<?> containedClass = DataUtil.getStoredClassOfCollection(field);
-				int rowId = idField.getInt(newObj);
-				String containedObjTableName = DataUtil.getTableName(containedClass);
-				Field containedObjIdField = DataUtil.getIdField(containedClass);
-				String collectionReferenceTableName = DataUtil.getTableName(type) + "_" + field.getName();
-				String collectionReferenceSQLStatement = PARENT_REFERENCE_NAME + " = " + String.valueOf(rowId);
-				try{
-					Cursor collectionReferenceCursor = db.query(collectionReferenceTableName, new String[]{CHILD_REFERENCE_NAME}, collectionReferenceSQLStatement, null, null, null, null);
-					if(!collectionReferenceCursor.moveToFirst()){
-						field.set(newObj, null);
-					}else{
-						Collection newCollection = (Collection) field.getType().newInstance();
-						while(!collectionReferenceCursor.isAfterLast()){
-							int containedObjId = collectionReferenceCursor.getInt(collectionReferenceCursor.getColumnIndex(CHILD_REFERENCE_NAME));
-							if(containedObjId != COLLECTION_EMPTY_VALUE){
-								Object cachedObject = cache.get(containedClass, containedObjId);
-								if(cachedObject != null){
-									newCollection.add(DataUtil.copy(cachedObject));
-								}else{
-									String containedObjSQLStatement = containedObjIdField.getName() + " = " + String.valueOf(containedObjId);
-									Cursor containedObjCursor = db.query(containedObjTableName, null, containedObjSQLStatement, null, null, null, null);
-									containedObjCursor.moveToFirst();
-									newCollection.add(fetch(containedClass, containedObjCursor, cache));
+			for(Map.Entry<Class<?>, List<Object>> entry : objectsByClass.entrySet()){
+				EntityDescriptor descriptor = EntityDescriptor.get(entry.getKey());
+				List<Object> classObjects = entry.getValue();
+				for(int i=0; i<descriptor.getFields().length; i++){
+					if(descriptor.getFieldTypeId(i) != DataUtil.FIELD_TYPE_COLLECTION) continue;
+					if(isDeferred(descriptor, i)){
+						for(Object obj : classObjects){
+							descriptor.getMapper().setReference(obj, i, new LazyArrayList<Object>(lazyResolver, descriptor.getType(), i, descriptor.getId(obj)));
+						}
+						continue;
+					}
+					Class<?> containedClass = descriptor.getStoredClassOfCollection(i);
+					Map<Integer, List<Integer>> childIdsByParent = new HashMap<Integer, List<Integer>>();
+					try{
+						for(int start=0; start<classObjects.size(); start+=MAX_IDS_PER_QUERY){
+							StringBuilder parentIds = new StringBuilder();
+							for(int j=start; j<classObjects.size() && j<start+MAX_IDS_PER_QUERY; j++){
+								if(j != start) parentIds.append(", ");
+								parentIds.append(descriptor.getId(classObjects.get(j)));
+							}
+							String collectionReferenceSQLStatement = PARENT_REFERENCE_NAME + " IN (" + parentIds + ")";
+							Cursor collectionReferenceCursor = getReadDatabase().query(descriptor.getReferenceTableName(i), new String[]{PARENT_REFERENCE_NAME, CHILD_REFERENCE_NAME}, collectionReferenceSQLStatement, null, null, null, PARENT_REFERENCE_NAME + ", " + CHILD_REFERENCE_NAME);
+							int parentColumnNumber = collectionReferenceCursor.getColumnIndex(PARENT_REFERENCE_NAME);
+							int childColumnNumber = collectionReferenceCursor.getColumnIndex(CHILD_REFERENCE_NAME);
+							while(collectionReferenceCursor.moveToNext()){
+								int parentId = collectionReferenceCursor.getInt(parentColumnNumber);
+								List<Integer> childIds = childIdsByParent.get(parentId);
+								if(childIds == null){
+									childIds = new ArrayList<Integer>();
+									childIdsByParent.put(parentId, childIds);
 								}
+								int childId = collectionReferenceCursor.getInt(childColumnNumber);
+								if(childId == COLLECTION_EMPTY_VALUE) continue;
+								childIds.add(childId);
+								request(containedClass, childId);
 							}
-							collectionReferenceCursor.moveToNext();
+							collectionReferenceCursor.close();
 						}
-						field.set(newObj, newCollection);
-						collectionReferenceCursor.close();
+					}catch(SQLException e){
+						//the reference table does not exist yet, so every collection is null
+						childIdsByParent.clear();
+					}
+					for(Object obj : classObjects){
+						List<Integer> childIds = childIdsByParent.get(descriptor.getId(obj));
+						//a collection without any reference rows was null when it was stored
+						if(childIds != null) pendingCollections.add(new PendingCollection(obj, i, containedClass, childIds));
 					}
-				}catch(SQLException e){
-					field.set(newObj, null);
 				}
 			}
-			return newObj;
-		}catch(IllegalAccessException e){
-			throw new InternalDatabaseException();
-		}catch(InstantiationException e){
-			throw new InternalDatabaseException();
+		}
+
+		/**
+		 * Reads all requested objects, one IN (...) query per class and batch of ids.
+		 */
+		private void readRequestedObjects(){
+			Map<Class<?>, Set<Integer>> levelIds = requestedIds;
+			requestedIds = new LinkedHashMap<Class<?>, Set<Integer>>();
+			for(Map.Entry<Class<?>, Set<Integer>> entry : levelIds.entrySet()){
+				Class<?> type = entry.getKey();
+				EntityDescriptor descriptor = EntityDescriptor.get(type);
+				prepareTable(type);
+				List<Integer> ids = new ArrayList<Integer>(entry.getValue());
+				for(int start=0; start<ids.size(); start+=MAX_IDS_PER_QUERY){
+					StringBuilder idList = new StringBuilder();
+					for(int j=start; j<ids.size() && j<start+MAX_IDS_PER_QUERY; j++){
+						if(j != start) idList.append(", ");
+						idList.append(ids.get(j));
+					}
+					String SQLSelectionStatement = descriptor.getIdField().getName() + " IN (" + idList + ")";
+					Cursor cursor = getReadDatabase().query(descriptor.getTableName(), null, SQLSelectionStatement, null, null, null, null);
+					int[] columnIndexes = descriptor.getColumnIndexes(cursor);
+					while(cursor.moveToNext()){
+						readRow(type, cursor, columnIndexes);
+					}
+					cursor.close();
+				}
+			}
+		}
+
+		/**
+		 * Sets all non-primitive and collection Fields of the objects in the graph. References to objects that no longer exist
+		 * are left null or left out of their collection.
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private void resolveReferences(){
+			for(PendingReference reference : pendingReferences){
+				EntityDescriptor descriptor = EntityDescriptor.get(reference.owner.getClass());
+				Object referencedObject = getLoadedObject(reference.type, reference.id);
+				if(descriptor.isLazyReference(reference.fieldIndex)) referencedObject = new LazyReference<Object>(referencedObject);
+				descriptor.getMapper().setReference(reference.owner, reference.fieldIndex, referencedObject);
+			}
+			for(PendingCollection pendingCollection : pendingCollections){
+				EntityDescriptor descriptor = EntityDescriptor.get(pendingCollection.owner.getClass());
+				try{
+					Collection newCollection = (Collection) descriptor.getFields()[pendingCollection.fieldIndex].getType().newInstance();
+					for(int childId : pendingCollection.childIds){
+						Object child = getLoadedObject(pendingCollection.containedType, childId);
+						if(child != null) newCollection.add(child);
+					}
+					descriptor.getMapper().setReference(pendingCollection.owner, pendingCollection.fieldIndex, newCollection);
+				}catch(IllegalAccessException e){
+					throw new InternalDatabaseException();
+				}catch(InstantiationException e){
+					throw new InternalDatabaseException();
+				}
+			}
+		}
+
+		/**
+		 * Returns an object that has been read by this loader.
+		 * @param type the Class of the object
+		 * @param id the id number of the object
+		 * @return the object, or null if it was not found in the database
+		 */
+		private Object getLoadedObject(Class<?> type, int id){
+			Map<Integer, Object> loadedClassObjects = loadedObjects.get(type);
+			if(loadedClassObjects == null) return null;
+			return loadedClassObjects.get(id);
+		}
+	}
+
+	/**
+	 * A non-primitive Field of a loaded object that references another object by id number.
+	 */
+	private static class PendingReference {
+
+		private final Object owner;
+		private final int fieldIndex;
+		private final Class<?> type;
+		private final int id;
+
+		private PendingReference(Object owner, int fieldIndex, Class<?> type, int id){
+			this.owner = owner;
+			this.fieldIndex = fieldIndex;
+			this.type = type;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * A collection Field of a loaded object along with the id numbers of the objects it contains.
+	 */
+	private static class PendingCollection {
+
+		private final Object owner;
+		private final int fieldIndex;
+		private final Class<?> containedType;
+		private final List<Integer> childIds;
+
+		private PendingCollection(Object owner, int fieldIndex, Class<?> containedType, List<Integer> childIds){
+			this.owner = owner;
+			this.fieldIndex = fieldIndex;
+			this.containedType = containedType;
+			this.childIds = childIds;
 		}
 	}
 
@@ -337,60 +681,370 @@ public class PersistenceManager {
 	 * @return the object from the database
 	 */
 	public <T> T fetch(Class<T> cls, int id){
-		if(!upToDateClasses.contains(cls)){
-			upToDateClasses.add(cls);
-			executeCreateIfNotExistsSQLStatement(DataUtil.getTableName(cls), createSQLStatementsFromFields(DataUtil.getFields(cls)));
-			performTableUpgrade(cls);
-		}
-		
+		return fetch(cls, id, null);
+	}
+
+	/**
+	 * Fetches an object from the database based on its Class and id number, loading the Fields named by a FetchPlan lazily.
+	 * @param cls the Class of the object to be returned
+	 * @param id the id number of the object to be fetched from the database
+	 * @param fetchPlan the FetchPlan, or null to use the default for each Field
+	 * @return the object from the database
+	 */
+	public <T> T fetch(Class<T> cls, int id, FetchPlan fetchPlan){
+		prepareTable(cls);
+
 		String tableName = DataUtil.getTableName(cls);
 		String SQLSelectionStatement = DataUtil.getIdField(cls).getName() + " = " + String.valueOf(id);
 		Cursor cursor = null;
 		try{
-			cursor = db.query(tableName, null, SQLSelectionStatement, null, null, null, null);
+			cursor = getReadDatabase().query(tableName, null, SQLSelectionStatement, null, null, null, null);
 		}catch(SQLException e){
 			return null;
 		}
-		if(!cursor.moveToFirst()) return null;
-		T object = fetch(cls, cursor);
+		if(!cursor.moveToFirst()){
+			cursor.close();
+			return null;
+		}
+		T object = fetch(cls, cursor, new int[]{cursor.getPosition()}, fetchPlan).get(0);
 		cursor.close();
-		return DataUtil.copy(object);
+		return object;
+	}
+
+	/**
+	 * Returns the id numbers of the objects in a stored collection, ordered by id number. The reference table is keyed on the parent
+	 * and child id numbers, so this is the order of the key and each id number is returned once.
+	 * @param referenceTableName the name of the reference table of the collection
+	 * @param parentId the id number of the object holding the collection
+	 * @return the id numbers of the contained objects
+	 */
+	public ArrayList<Integer> fetchReferenceIds(String referenceTableName, int parentId){
+		ArrayList<Integer> childIds = new ArrayList<Integer>();
+		try{
+			Cursor cursor = getReadDatabase().query(referenceTableName, new String[]{CHILD_REFERENCE_NAME}, PARENT_REFERENCE_NAME + " = " + parentId, null, null, null, CHILD_REFERENCE_NAME);
+			while(cursor.moveToNext()){
+				int childId = cursor.getInt(0);
+				if(childId != COLLECTION_EMPTY_VALUE) childIds.add(childId);
+			}
+			cursor.close();
+		}catch(SQLException e){
+			//the reference table does not exist yet, so the collection is empty
+		}
+		return childIds;
+	}
+
+	/**
+	 * Sets the LazyResolver given to lazily loaded references and collections. Lazy loading is disabled until one is set.
+	 * @param lazyResolver the LazyResolver
+	 */
+	public void setLazyResolver(LazyResolver lazyResolver){
+		this.lazyResolver = lazyResolver;
 	}
 
 	/**
 	 * Deletes a reference from a reference table.
 	 * @param drd the DeleteReferenceDirective that holds the data to be deleted from the database
+	 * @return the number of rows deleted
 	 */
-	public void deleteReference(DeleteReferenceDirective drd){
+	public int deleteReference(DeleteReferenceDirective drd){
 		String parentName = DataUtil.getTableName(drd.getParentType());
 		String childName = drd.getChildName();
 		int parentValue = drd.getParentId();
 		int childValue = drd.getChildId();
 		String tableName = parentName + "_" + childName;
 
-		executeCreateReferenceTableStatement(tableName);
+		String SQLDeleteStatement = "DELETE FROM " + tableName + " WHERE " + PARENT_REFERENCE_NAME + " = ? AND " + CHILD_REFERENCE_NAME + " = ?;";
+		prepareReferenceTable(tableName);
 
-		String SQLSelectionString = PARENT_REFERENCE_NAME + " = " + String.valueOf(parentValue) + " AND " + CHILD_REFERENCE_NAME + " = " + String.valueOf(childValue);
-		db.delete(tableName, SQLSelectionString, null);
+		SQLiteStatement deleteStatement = statementCache.get(tableName, SQLDeleteStatement);
+		deleteStatement.bindLong(1, parentValue);
+		deleteStatement.bindLong(2, childValue);
+		return statementCache.executeUpdateDelete(deleteStatement);
 	}
 
 	/**
 	 * Creates a reference in a reference table.
 	 * @param crd The CreateReferenceDirective that holds the data to be added to the database
+	 * @return the number of rows written, which is 0 if the reference was already stored
 	 */
-	public void createReference(CreateReferenceDirective crd){
+	public int createReference(CreateReferenceDirective crd){
 		String parentName = DataUtil.getTableName(crd.getParentType());
 		String childName = crd.getChildName();
 		int parentValue = crd.getParentId();
 		int childValue = crd.getChildId();
 		String tableName = parentName + "_" + childName;
 
-		executeCreateReferenceTableStatement(tableName);
+		//a reference that is already stored, such as a repeated empty collection marker, is ignored
+		String SQLInsertStatement = "INSERT OR IGNORE INTO " + tableName + " (" + PARENT_REFERENCE_NAME + ", " + CHILD_REFERENCE_NAME + ") VALUES (?, ?);";
+		prepareReferenceTable(tableName);
+
+		SQLiteStatement insertStatement = statementCache.get(tableName, SQLInsertStatement);
+		insertStatement.bindLong(1, parentValue);
+		insertStatement.bindLong(2, childValue);
+		return statementCache.executeUpdateDelete(insertStatement);
+	}
+
+	/**
+	 * Creates the tables of several classes if they do not exist yet and upgrades them to match the classes' current Fields. Classes
+	 * that have not changed are confirmed against the catalog in a single transaction; the tables of changed classes are then upgraded
+	 * one at a time. Calling this when the database is opened moves the work that would otherwise be done on the first use of each
+	 * class to a point of the caller's choosing.
+	 * @param classes the classes whose tables should be prepared
+	 */
+	public void register(Class<?>... classes){
+		ArrayList<Class<?>> changedClasses = new ArrayList<Class<?>>();
+		db.beginTransaction();
+		try{
+			for(Class<?> cls : classes){
+				if(!upToDateClasses.contains(cls) && !confirmTable(cls, readCatalogEntry(DataUtil.getTableName(cls)))) changedClasses.add(cls);
+			}
+			db.setTransactionSuccessful();
+		}finally{
+			db.endTransaction();
+		}
+		//upgrades commit their own transactions, so that long copies are split up and can be resumed
+		for(Class<?> cls : changedClasses) prepareTable(cls);
+	}
+
+	/**
+	 * Prepares the tables of several classes on a background thread (see MigrationRunner). Calls that use a class whose table is
+	 * still being prepared wait for that table only.
+	 * @param classes the classes whose tables should be prepared
+	 * @param listener the listener notified of the progress, or null
+	 */
+	public void startMigration(Class<?>[] classes, MigrationListener listener){
+		if(migrationRunner != null) migrationRunner.cancel();
+		migrationRunner = new MigrationRunner(this, classes, listener);
+		migrationRunner.start();
+	}
+
+	/**
+	 * Creates the table of a given class if it does not exist yet and upgrades it to match the class's current Fields.
+	 * @param cls the class whose table should be prepared
+	 */
+	public void prepare(Class<?> cls){
+		prepareTable(cls);
+	}
+
+	/**
+	 * Prepares the table of a given class on behalf of a MigrationRunner. If the runner is cancelled while the table is being rebuilt,
+	 * the rebuild stops after the chunk being copied and a MigrationCancelledException is thrown; the class is not marked as up to
+	 * date, and the rebuild resumes from the copied rows the next time the table is prepared. Calls from other threads are never cut
+	 * short this way.
+	 * @param cls the class whose table should be prepared
+	 * @param runner the runner preparing the table
+	 */
+	public void prepare(Class<?> cls, MigrationRunner runner){
+		migrationScopes.set(runner);
+		try{
+			prepareTable(cls);
+		}finally{
+			migrationScopes.remove();
+		}
+	}
+
+	/**
+	 * Returns the lock held while the table of a class or a reference table is prepared.
+	 * @param key the Class, or the name of the reference table
+	 * @return the lock
+	 */
+	private Object getTableLock(Object key){
+		Object lock = tableLocks.get(key);
+		if(lock == null){
+			Object newLock = new Object();
+			lock = tableLocks.putIfAbsent(key, newLock);
+			if(lock == null) lock = newLock;
+		}
+		return lock;
+	}
+
+	/**
+	 * Creates the table of a given class if it does not exist yet and upgrades it to match the class's current Fields. The schema
+	 * fingerprint of every prepared class is stored in the catalog table, so a class that has not changed since it was last prepared
+	 * is confirmed with a single keyed lookup. This only touches the database the first time it is called for a class; afterwards the
+	 * class is remembered in the upToDateClasses Set. A thread that calls this while another thread is preparing the same class waits
+	 * for it to finish; classes are prepared independently of each other.
+	 * @param cls the class whose table should be prepared
+	 */
+	private void prepareTable(Class<?> cls){
+		if(upToDateClasses.contains(cls)) return;
+		synchronized(getTableLock(cls)){
+			if(upToDateClasses.contains(cls)) return;
+			String tableName = DataUtil.getTableName(cls);
+			String[] catalogEntry = readCatalogEntry(tableName);
+			if(confirmTable(cls, catalogEntry)) return;
+
+			executeCreateIfNotExistsSQLStatement(tableName, createSQLStatementsFromFields(cls));
+			performTableUpgrade(cls, catalogEntry == null ? null : catalogEntry[1]);
+
+			EntityDescriptor descriptor = EntityDescriptor.get(cls);
+			db.beginTransaction();
+			try{
+				performIndexUpgrade(cls);
+				String collections = "";
+				for(int i=0; i<descriptor.getFields().length; i++){
+					if(descriptor.getFieldTypeId(i) != DataUtil.FIELD_TYPE_COLLECTION) continue;
+					prepareReferenceTable(descriptor.getReferenceTableName(i));
+					if(collections.length() != 0) collections += ",";
+					collections += descriptor.getFields()[i].getName();
+				}
+				db.execSQL("INSERT OR REPLACE INTO " + CATALOG_TABLE_NAME + " (TABLE_NAME, FINGERPRINT, COLLECTIONS) VALUES (?, ?, ?);", new Object[]{tableName, getSchemaFingerprint(cls), collections});
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+			upToDateClasses.add(cls);
+		}
+	}
+
+	/**
+	 * Marks a class and its reference tables as up to date if its catalog entry matches its current schema fingerprint.
+	 * @param cls the class
+	 * @param catalogEntry the class's catalog entry (see readCatalogEntry()), or null if it has none
+	 * @return true if the class is up to date
+	 */
+	private boolean confirmTable(Class<?> cls, String[] catalogEntry){
+		if(catalogEntry == null || !getSchemaFingerprint(cls).equals(catalogEntry[0])) return false;
+		EntityDescriptor descriptor = EntityDescriptor.get(cls);
+		for(int i=0; i<descriptor.getFields().length; i++){
+			if(descriptor.getFieldTypeId(i) == DataUtil.FIELD_TYPE_COLLECTION) upToDateReferenceTables.add(descriptor.getReferenceTableName(i));
+		}
+		upToDateClasses.add(cls);
+		return true;
+	}
+
+	/**
+	 * Reads the catalog entry of a table.
+	 * @param tableName the name of the table
+	 * @return the stored schema fingerprint and the comma separated collection names, or null if the table has no entry
+	 */
+	private String[] readCatalogEntry(String tableName){
+		String[] catalogEntry = null;
+		Cursor cursor = db.rawQuery("SELECT FINGERPRINT, COLLECTIONS FROM " + CATALOG_TABLE_NAME + " WHERE TABLE_NAME = ?", new String[]{tableName});
+		if(cursor.moveToFirst()) catalogEntry = new String[]{cursor.getString(0), cursor.getString(1)};
+		cursor.close();
+		return catalogEntry;
+	}
+
+	/**
+	 * Returns a String that describes everything about how a class is stored: the layout version, its columns and their types, its
+	 * collections and its indexes. Two versions of a class that are stored the same way have the same fingerprint.
+	 * @param cls the class
+	 * @return the schema fingerprint
+	 */
+	private String getSchemaFingerprint(Class<?> cls){
+		EntityDescriptor descriptor = EntityDescriptor.get(cls);
+		StringBuilder fingerprint = new StringBuilder().append(SCHEMA_LAYOUT_VERSION);
+		fingerprint.append(";").append(withoutRowidSupported);
+		for(String createString : createSQLStatementsFromFields(cls)) fingerprint.append(";").append(createString);
+		for(int i=0; i<descriptor.getFields().length; i++){
+			if(descriptor.getFieldTypeId(i) == DataUtil.FIELD_TYPE_COLLECTION) fingerprint.append(";collection ").append(descriptor.getFields()[i].getName());
+		}
+		for(String indexName : descriptor.getIndexSQL().keySet()) fingerprint.append(";index ").append(indexName);
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Creates a reference table if it does not exist yet, or converts it to the keyed layout if it was created by an earlier version.
+	 * This only touches the database the first time it is called for a table; afterwards the table is remembered in the
+	 * upToDateReferenceTables Set.
+	 * @param tableName the name of the reference table
+	 */
+	private void prepareReferenceTable(String tableName){
+		if(upToDateReferenceTables.contains(tableName)) return;
+		synchronized(getTableLock(tableName)){
+			if(upToDateReferenceTables.contains(tableName)) return;
+			prepareReferenceTableLocked(tableName);
+			upToDateReferenceTables.add(tableName);
+		}
+	}
+
+	/**
+	 * Helper method for prepareReferenceTable(String). Creates or converts the reference table while its lock is held.
+	 * @param tableName the name of the reference table
+	 */
+	private void prepareReferenceTableLocked(String tableName){
+
+		boolean exists = false;
+		boolean keyed = false;
+		Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+		int nameColumn = cursor.getColumnIndex("name");
+		int pkColumn = cursor.getColumnIndex("pk");
+		while(cursor.moveToNext()){
+			exists = true;
+			if(cursor.getString(nameColumn).equals(PARENT_REFERENCE_NAME) && cursor.getInt(pkColumn) > 0) keyed = true;
+		}
+		cursor.close();
+
+		if(!exists){
+			executeCreateReferenceTableStatement(tableName);
+		}else if(!keyed){
+			//the earlier layout had no key, so it may hold duplicate references and empty collection markers for collections that are no longer empty
+			statementCache.evict(tableName);
+			String backupTableName = tableName + "_backup";
+			db.beginTransaction();
+			try{
+				db.execSQL("DROP TABLE IF EXISTS " + backupTableName + ";");
+				db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + backupTableName + ";");
+				executeCreateReferenceTableStatement(tableName);
+				db.execSQL("INSERT OR IGNORE INTO " + tableName + " (" + PARENT_REFERENCE_NAME + ", " + CHILD_REFERENCE_NAME + ") SELECT "
+						+ PARENT_REFERENCE_NAME + ", " + CHILD_REFERENCE_NAME + " FROM " + backupTableName + " WHERE " + CHILD_REFERENCE_NAME + " <> "
+						+ COLLECTION_EMPTY_VALUE + " OR " + PARENT_REFERENCE_NAME + " NOT IN (SELECT " + PARENT_REFERENCE_NAME + " FROM " + backupTableName
+						+ " WHERE " + CHILD_REFERENCE_NAME + " <> " + COLLECTION_EMPTY_VALUE + ");");
+				db.execSQL("DROP TABLE " + backupTableName + ";");
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
+			}
+		}
+	}
 
-		ContentValues cv = new ContentValues();
-		cv.put(PARENT_REFERENCE_NAME, parentValue);
-		cv.put(CHILD_REFERENCE_NAME, childValue);
-		db.insert(tableName, null, cv);
+	/**
+	 * Returns true if the SQLite library used by the database is at least a given version.
+	 * @param major the major version
+	 * @param minor the minor version
+	 * @param patch the patch version
+	 * @return true if the library's version is the given version or later
+	 */
+	private boolean isSQLiteVersionAtLeast(int major, int minor, int patch){
+		Cursor cursor = db.rawQuery("SELECT sqlite_version()", null);
+		String version = cursor.moveToFirst() ? cursor.getString(0) : "";
+		cursor.close();
+		int[] required = new int[]{major, minor, patch};
+		String[] parts = version.split("\\.");
+		for(int i=0; i<required.length; i++){
+			int part;
+			try{
+				part = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+			}catch(NumberFormatException e){
+				return false;
+			}
+			if(part != required[i]) return part > required[i];
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the indexes declared on a given class that do not exist yet and drops the indexes this library created on its table
+	 * that are no longer declared. Indexes are dropped along with their table, so this must run after performTableUpgrade().
+	 * @param cls the class whose indexes should be upgraded
+	 */
+	private void performIndexUpgrade(Class<?> cls){
+		String tableName = DataUtil.getTableName(cls);
+		Map<String, String> indexSQL = EntityDescriptor.get(cls).getIndexSQL();
+
+		HashSet<String> existingIndexes = new HashSet<String>();
+		Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND tbl_name = ?", new String[]{tableName});
+		while(cursor.moveToNext()) existingIndexes.add(cursor.getString(0));
+		cursor.close();
+
+		for(String indexName : existingIndexes){
+			boolean managed = indexName.startsWith(EntityDescriptor.INDEX_PREFIX + tableName + "_") || indexName.startsWith(EntityDescriptor.UNIQUE_INDEX_PREFIX + tableName + "_");
+			if(managed && !indexSQL.containsKey(indexName)) db.execSQL("DROP INDEX " + indexName + ";");
+		}
+		for(Map.Entry<String, String> index : indexSQL.entrySet()){
+			if(!existingIndexes.contains(index.getKey())) db.execSQL(index.getValue());
+		}
 	}
 
 	/**
@@ -398,95 +1052,246 @@ public class PersistenceManager {
 	 * once per instantiation of a PersistenceManager  per class. Classes that have already been confirmed to be up to date
 	 * are stored in upToDateClasses Set.
 	 * @param cls the class of the table to be upgraded
+	 * @param storedCollections the comma separated names of the collection Fields recorded in the catalog, or null if the class has
+	 * no catalog entry, in which case the collection tables are found by name
 	 */
-	private void performTableUpgrade(Class<?> cls){
-		HashSet<String> existingNonCollectionFieldList = new HashSet<String>();
-		HashSet<String> newNonCollectionFieldList = new HashSet<String>();
+	private void performTableUpgrade(Class<?> cls, String storedCollections){
+		String tableName = DataUtil.getTableName(cls);
 		HashSet<String> existingCollectionFieldList = new HashSet<String>();
+		HashSet<String> newNonCollectionFieldList = new HashSet<String>();
 		HashSet<String> newCollectionFieldList = new HashSet<String>();
+		String idColumnName = DataUtil.getIdField(cls).getName();
 
-		Cursor cursor = db.rawQuery("PRAGMA table_info(" + DataUtil.getTableName(cls) + ")", null);
-		cursor.moveToFirst();
-		while(!cursor.isAfterLast()){
-			existingNonCollectionFieldList.add(cursor.getString(1));
-			cursor.moveToNext();
-		}
-		cursor.close();
+		Map<String, Boolean> existingColumns = getColumns(tableName);
+		Set<String> existingNonCollectionFieldList = existingColumns.keySet();
+		boolean idIsPrimaryKey = Boolean.TRUE.equals(existingColumns.get(idColumnName));
 
-		Cursor collectionReferenceCursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'", null);
-		collectionReferenceCursor.moveToFirst();
-		while (!collectionReferenceCursor.isAfterLast()){
-			String tableName = collectionReferenceCursor.getString(collectionReferenceCursor.getColumnIndex("name"));
-			if(tableName.startsWith(DataUtil.getTableName(cls) + "_")){
-				String[] nameStrings = tableName.split("_");
-				String collectionName = nameStrings[nameStrings.length-1];
-				existingCollectionFieldList.add(collectionName);
+		if(storedCollections != null){
+			for(String collectionName : storedCollections.split(",")){
+				if(collectionName.length() != 0) existingCollectionFieldList.add(collectionName);
 			}
-			collectionReferenceCursor.moveToNext();
+		}else{
+			Cursor collectionReferenceCursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'", null);
+			collectionReferenceCursor.moveToFirst();
+			while (!collectionReferenceCursor.isAfterLast()){
+				String referenceTableName = collectionReferenceCursor.getString(collectionReferenceCursor.getColumnIndex("name"));
+				if(referenceTableName.startsWith(tableName + "_") && !referenceTableName.equals(tableName + "_backup")){
+					String[] nameStrings = referenceTableName.split("_");
+					String collectionName = nameStrings[nameStrings.length-1];
+					existingCollectionFieldList.add(collectionName);
+				}
+				collectionReferenceCursor.moveToNext();
+			}
+			collectionReferenceCursor.close();
 		}
-		collectionReferenceCursor.close();
 
-		Field[] newFields = DataUtil.getFields(cls);
-		for(Field field : newFields){
-			switch(DataUtil.getFieldTypeId(field)){
-			case DataUtil.FIELD_TYPE_INT:
-			case DataUtil.FIELD_TYPE_DOUBLE:
-			case DataUtil.FIELD_TYPE_FLOAT:
-			case DataUtil.FIELD_TYPE_LONG:
-			case DataUtil.FIELD_TYPE_STRING:
-			case DataUtil.FIELD_TYPE_BOOLEAN:
-				newNonCollectionFieldList.add(field.getName());
-				break;
-			case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
-				newNonCollectionFieldList.add(field.getName() + "_ref");
-				break;
-			case DataUtil.FIELD_TYPE_COLLECTION:
-				newCollectionFieldList.add(field.getName());
-				break;
+		EntityDescriptor descriptor = EntityDescriptor.get(cls);
+		Field[] newFields = descriptor.getFields();
+		for(int i=0; i<newFields.length; i++){
+			if(descriptor.getFieldTypeId(i) == DataUtil.FIELD_TYPE_COLLECTION) newCollectionFieldList.add(newFields[i].getName());
+			else newNonCollectionFieldList.add(descriptor.getColumnName(i));
+		}
+
+		LinkedList<String> sharedNonCollectionColumns = new LinkedList<String>();
+		LinkedList<String> removedNonCollectionColumns = new LinkedList<String>();
+		for(String existingField : existingNonCollectionFieldList){
+			if(newNonCollectionFieldList.contains(existingField)) sharedNonCollectionColumns.add(existingField);
+			else removedNonCollectionColumns.add(existingField);
+		}
+		LinkedList<String> addedNonCollectionColumns = new LinkedList<String>();
+		for(int i=0; i<newFields.length; i++){
+			String columnName = descriptor.getColumnName(i);
+			if(columnName != null && !existingNonCollectionFieldList.contains(columnName)) addedNonCollectionColumns.add(columnName);
+		}
+
+		//tables created by earlier versions store the id in a plain column rather than the rowid, and can only be rebuilt
+		if(!idIsPrimaryKey || (!removedNonCollectionColumns.isEmpty() && !dropColumnSupported)){
+			rebuildTable(cls, sharedNonCollectionColumns);
+		}else if(!addedNonCollectionColumns.isEmpty() || !removedNonCollectionColumns.isEmpty()){
+			statementCache.evict(tableName);
+			db.beginTransaction();
+			try{
+				for(String addedColumn : addedNonCollectionColumns){
+					db.execSQL("ALTER TABLE " + tableName + " ADD COLUMN " + getAddedColumnDefinition(cls, addedColumn) + ";");
+				}
+				if(!removedNonCollectionColumns.isEmpty()){
+					dropIndexesOnColumns(tableName, removedNonCollectionColumns);
+					for(String removedColumn : removedNonCollectionColumns){
+						db.execSQL("ALTER TABLE " + tableName + " DROP COLUMN " + removedColumn + ";");
+					}
+				}
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
 			}
 		}
 
-		if(!existingNonCollectionFieldList.containsAll(newNonCollectionFieldList) || !newNonCollectionFieldList.containsAll(existingNonCollectionFieldList)){
-			LinkedList<String> sharedNonCollectionColumns = new LinkedList<String>();
-			for(String existingField : existingNonCollectionFieldList){
-				if(newNonCollectionFieldList.contains(existingField)) sharedNonCollectionColumns.add(existingField);
+		if(!newCollectionFieldList.containsAll(existingCollectionFieldList)){
+			for(String existingCollectionName : existingCollectionFieldList){
+				if(!newCollectionFieldList.contains(existingCollectionName)){
+					statementCache.evict(tableName + "_" + existingCollectionName);
+					upToDateReferenceTables.remove(tableName + "_" + existingCollectionName);
+					db.execSQL("DROP TABLE IF EXISTS " + tableName + "_" + existingCollectionName + ";");
+				}
 			}
+		}
+	}
 
-			String tableName = DataUtil.getTableName(cls);
-			executeCreateIfNotExistsSQLStatement(tableName + "_backup", createSQLStatementsFromFields(DataUtil.getFields(cls)));
+	/**
+	 * Rebuilds the table of a class with its current layout by copying the rows into a new table and replacing the old table with it.
+	 * The rows are copied in order of id number, UPGRADE_CHUNK_SIZE rows per transaction, so the database is never locked for long. A
+	 * rebuild that is interrupted resumes after the last copied row the next time the table is prepared.
+	 * @param cls the class whose table should be rebuilt
+	 * @param sharedColumns the columns that exist in both the old and the new layout
+	 */
+	private void rebuildTable(Class<?> cls, List<String> sharedColumns){
+		String tableName = DataUtil.getTableName(cls);
+		String backupTableName = tableName + "_backup";
+		String idColumnName = DataUtil.getIdField(cls).getName();
+		ArrayList<String> createStrings = createSQLStatementsFromFields(cls);
+
+		//a backup left by an interrupted rebuild can only be resumed if it was being built with the same layout
+		HashSet<String> newColumns = new HashSet<String>();
+		for(String createString : createStrings) newColumns.add(createString.substring(0, createString.indexOf(' ')));
+		Map<String, Boolean> backupColumns = getColumns(backupTableName);
+		if(!backupColumns.keySet().equals(newColumns) || !Boolean.TRUE.equals(backupColumns.get(idColumnName))){
+			db.execSQL("DROP TABLE IF EXISTS " + backupTableName + ";");
+		}
+		executeCreateIfNotExistsSQLStatement(backupTableName, createStrings);
+		//the old id column may not be indexed, and every chunk seeks to its first row by id
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + tableName + "_rebuild_index ON " + tableName + " (" + idColumnName + ");");
+
+		String SQLCopyFields = "";
+		for(int i=0; i<sharedColumns.size(); i++){
+			if(i != sharedColumns.size()-1) SQLCopyFields += sharedColumns.get(i) + ", ";
+			else SQLCopyFields += sharedColumns.get(i);
+		}
+		//ids are unique, so a row with a repeated id can only be a stale copy and the first one copied is kept
+		String SQLCopyStatement = "INSERT OR IGNORE INTO " + backupTableName + " (" + SQLCopyFields + ") SELECT " + SQLCopyFields + " FROM " + tableName
+				+ " WHERE " + idColumnName + " > ? ORDER BY " + idColumnName + " LIMIT " + UPGRADE_CHUNK_SIZE + ";";
+		String SQLMaxIdStatement = "SELECT MAX(" + idColumnName + ") FROM " + backupTableName;
 
-			String SQLCopyStatement = "INSERT INTO " + tableName + "_backup (";
-			String SQLCopyFields = "";
-			for(int i=0; i<sharedNonCollectionColumns.size(); i++){
-				if(i != sharedNonCollectionColumns.size()-1) SQLCopyFields += sharedNonCollectionColumns.get(i) + ", ";
-				else SQLCopyFields += sharedNonCollectionColumns.get(i);
+		Long lastCopiedId = fetchLong(SQLMaxIdStatement);
+		while(true){
+			Long copiedId;
+			db.beginTransaction();
+			try{
+				db.execSQL(SQLCopyStatement, new Object[]{lastCopiedId == null ? Long.MIN_VALUE : lastCopiedId});
+				copiedId = fetchLong(SQLMaxIdStatement);
+				db.setTransactionSuccessful();
+			}finally{
+				db.endTransaction();
 			}
-			SQLCopyStatement += SQLCopyFields + ") SELECT " + SQLCopyFields;
-			SQLCopyStatement += " FROM " + tableName + ";";
-			db.execSQL(SQLCopyStatement);			
+			if(copiedId == null || copiedId.equals(lastCopiedId)) break;
+			lastCopiedId = copiedId;
+			//every chunk is committed, so a cancelled background rebuild can stop here and be resumed later
+			MigrationRunner runner = migrationScopes.get();
+			if(runner != null && runner.isCancelled()) throw new MigrationCancelledException();
+		}
 
+		statementCache.evict(tableName);
+		db.beginTransaction();
+		try{
 			db.execSQL("DROP TABLE " + tableName + ";");
-			db.execSQL("ALTER TABLE " + tableName + "_backup " + "RENAME TO " + tableName + ";");
+			db.execSQL("ALTER TABLE " + backupTableName + " RENAME TO " + tableName + ";");
+			db.setTransactionSuccessful();
+		}finally{
+			db.endTransaction();
+		}
+	}
 
+	/**
+	 * Returns the SQL definition of a column that is added to an existing table. The column is added without a default, so existing
+	 * rows hold null in it; numerical fields read from a null column are given the default upgrade value when they are retrieved (see
+	 * setDefaultUpgradeValue()), so a value set after the upgrade still applies to them.
+	 * @param cls the class
+	 * @param columnName the name of the added column
+	 * @return the column definition
+	 */
+	private String getAddedColumnDefinition(Class<?> cls, String columnName){
+		for(String createString : createSQLStatementsFromFields(cls)){
+			if(createString.substring(0, createString.indexOf(' ')).equals(columnName)) return createString;
 		}
+		return null;
+	}
 
-		if(!newCollectionFieldList.containsAll(existingCollectionFieldList)){
-			String tableName = DataUtil.getTableName(cls);
-			for(String existingCollectionName : existingCollectionFieldList){
-				if(!newCollectionFieldList.contains(existingCollectionName)){
-					db.execSQL("DROP TABLE " + tableName + "_" + existingCollectionName + ";");
-				}
+	/**
+	 * Drops the indexes this library created on a table that include any of a set of columns. SQLite cannot drop an indexed column;
+	 * the indexes that are still declared are recreated by performIndexUpgrade().
+	 * @param tableName the name of the table
+	 * @param columnNames the names of the columns
+	 */
+	private void dropIndexesOnColumns(String tableName, List<String> columnNames){
+		ArrayList<String> indexNames = new ArrayList<String>();
+		Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND tbl_name = ?", new String[]{tableName});
+		while(cursor.moveToNext()){
+			String indexName = cursor.getString(0);
+			if(indexName.startsWith(EntityDescriptor.INDEX_PREFIX + tableName + "_") || indexName.startsWith(EntityDescriptor.UNIQUE_INDEX_PREFIX + tableName + "_")) indexNames.add(indexName);
+		}
+		cursor.close();
+
+		for(String indexName : indexNames){
+			boolean coversColumn = false;
+			Cursor indexCursor = db.rawQuery("PRAGMA index_info(" + indexName + ")", null);
+			int nameColumn = indexCursor.getColumnIndex("name");
+			while(indexCursor.moveToNext()){
+				if(columnNames.contains(indexCursor.getString(nameColumn))) coversColumn = true;
 			}
+			indexCursor.close();
+			if(coversColumn) db.execSQL("DROP INDEX " + indexName + ";");
 		}
 	}
 
 	/**
-	 * Creates a reference table from a table name, if it does not already exist.
+	 * Returns the columns of a table, in order, and whether each is part of its primary key.
+	 * @param tableName the name of the table
+	 * @return a map of column names to true for primary key columns, which is empty if the table does not exist
+	 */
+	private Map<String, Boolean> getColumns(String tableName){
+		Map<String, Boolean> columns = new LinkedHashMap<String, Boolean>();
+		Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+		int nameColumn = cursor.getColumnIndex("name");
+		int pkColumn = cursor.getColumnIndex("pk");
+		while(cursor.moveToNext()) columns.put(cursor.getString(nameColumn), cursor.getInt(pkColumn) > 0);
+		cursor.close();
+		return columns;
+	}
+
+	/**
+	 * Runs a query that returns a single number.
+	 * @param sql the query
+	 * @return the number, or null if the query returned no row or NULL
+	 */
+	private Long fetchLong(String sql){
+		return fetchLong(sql, null);
+	}
+
+	/**
+	 * Runs a query that returns a single number.
+	 * @param sql the query
+	 * @param selectionArgs the values bound to the ?s in the query, or null if it has none
+	 * @return the number, or null if the query returned no row or NULL
+	 */
+	private Long fetchLong(String sql, String[] selectionArgs){
+		Cursor cursor = db.rawQuery(sql, selectionArgs);
+		Long value = null;
+		if(cursor.moveToFirst() && !cursor.isNull(0)) value = cursor.getLong(0);
+		cursor.close();
+		return value;
+	}
+
+	/**
+	 * Creates a reference table from a table name, if it does not already exist. The table is keyed on (PARENT, CHILD), so the
+	 * references of a parent are found through the key and each reference is stored once, and it has an index on CHILD. Where the
+	 * SQLite library supports it the table is a WITHOUT ROWID table, so the key is the table itself rather than a separate index.
 	 * @param tableName the name of the table to be created
 	 */
 	private void executeCreateReferenceTableStatement(String tableName){
-		String createStatement = "CREATE TABLE IF NOT EXISTS " + tableName + "(" + PARENT_REFERENCE_NAME + " " + DataUtil.INT_FIELD + ", " + CHILD_REFERENCE_NAME + " " + DataUtil.INT_FIELD + ");";
-		db.execSQL(createStatement);
+		String createStatement = "CREATE TABLE IF NOT EXISTS " + tableName + "(" + PARENT_REFERENCE_NAME + " " + DataUtil.INT_FIELD + " NOT NULL, " + CHILD_REFERENCE_NAME + " "
+				+ DataUtil.INT_FIELD + " NOT NULL, PRIMARY KEY (" + PARENT_REFERENCE_NAME + ", " + CHILD_REFERENCE_NAME + "))";
+		if(withoutRowidSupported) createStatement += " WITHOUT ROWID";
+		db.execSQL(createStatement + ";");
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + tableName + "_" + CHILD_REFERENCE_NAME + "_index ON " + tableName + " (" + CHILD_REFERENCE_NAME + ");");
 	}
 
 	/**
@@ -504,18 +1309,22 @@ public class PersistenceManager {
 	}
 
 	/**
-	 * Creates an ArrayList of Strings from a Field[] which are the SQL representation of the Fields and their types.
-	 * @param fields a Field[] to be converted to SQL column name-type Strings
+	 * Creates an ArrayList of Strings from the Fields of a class which are the SQL representation of the Fields and their types. The
+	 * id Field is declared as the INTEGER PRIMARY KEY, which makes it the table's rowid, so rows are looked up by id through the table's
+	 * own B-tree.
+	 * @param cls the class whose Fields are to be converted to SQL column name-type Strings
 	 * @return an ArrayList of Strings representing the column names and types for a new table
 	 */
-	private ArrayList<String> createSQLStatementsFromFields(Field[] fields) {
+	private ArrayList<String> createSQLStatementsFromFields(Class<?> cls) {
 		ArrayList<String> createStrings = new ArrayList<String>();
-		for (Field field : fields) {
+		Field idField = DataUtil.getIdField(cls);
+		for (Field field : DataUtil.getFields(cls)) {
 			String createString = "";
 			switch (DataUtil.getFieldTypeId(field)) {
 			case DataUtil.FIELD_TYPE_INT:
 				createString += field.getName() + " ";
 				createString += DataUtil.INT_FIELD;
+				if(field.equals(idField)) createString += " PRIMARY KEY";
 				createStrings.add(createString);
 				break;
 			case DataUtil.FIELD_TYPE_DOUBLE:
@@ -561,15 +1370,11 @@ public class PersistenceManager {
 	 * @return the number of objects currently being stored in the database
 	 */
 	public <T> int size(Class<T> cls){
-		
-		if(!upToDateClasses.contains(cls)){
-			executeCreateIfNotExistsSQLStatement(DataUtil.getTableName(cls), createSQLStatementsFromFields(DataUtil.getFields(cls)));
-			performTableUpgrade(cls);
-		}
-		
+		prepareTable(cls);
+
 		Cursor c = null;
 		try{
-			c = db.query(DataUtil.getTableName(cls), new String[]{DataUtil.getIdField(cls).getName()}, null , null, null, null, null);
+			c = getReadDatabase().query(DataUtil.getTableName(cls), new String[]{DataUtil.getIdField(cls).getName()}, null , null, null, null, null);
 		}catch(SQLException e){
 			return 0;
 		}
@@ -583,7 +1388,16 @@ public class PersistenceManager {
 	 * @param recordName the name of the class to be deleted
 	 */
 	public void dropRecords(String recordName){
+		statementCache.evict(recordName);
 		db.execSQL("DROP TABLE " + recordName + ";");
+		db.execSQL("DELETE FROM " + CATALOG_TABLE_NAME + " WHERE TABLE_NAME = ?;", new Object[]{recordName});
+		db.execSQL("DELETE FROM " + SEQUENCE_TABLE_NAME + " WHERE TABLE_NAME = ?;", new Object[]{recordName});
+		synchronized(upToDateClasses){
+			Iterator<Class<?>> iterator = upToDateClasses.iterator();
+			while(iterator.hasNext()){
+				if(DataUtil.getTableName(iterator.next()).equals(recordName)) iterator.remove();
+			}
+		}
 	}
 
 	/**
@@ -597,26 +1411,109 @@ public class PersistenceManager {
 	}
 
 	/**
-	 * Gets the highest currently stored id of a given class stored in the database
-	 * @param instanceType the Class
-	 * @return the highest currently stored id number of all objects of the given class
+	 * Sets the number of read-only connections used alongside the writer connection. A number above 0 puts the database in
+	 * write-ahead logging mode, in which reads made between beginRead() and endRead() use one of these connections and see the
+	 * last completed commit, so they neither wait for nor stall a commit in progress. Takes effect the next time the database is
+	 * opened. Write-ahead logging requires Android 3.0; on earlier versions the writer connection is used for everything.
+	 * @param count the maximum number of read-only connections, or 0 to use the writer connection for everything
+	 */
+	public void setReadConnections(int count){
+		this.readConnections = count;
+	}
+
+	/**
+	 * Begins a read on the current thread. Until the matching endRead(), queries made by this thread use a read-only connection
+	 * from the pool if write-ahead logging is in use. Reads may be nested; only the outermost acquires a connection. Tables are
+	 * still created and upgraded on the writer connection.
+	 */
+	public void beginRead(){
+		ReadScope scope = readScopes.get();
+		if(scope == null){
+			scope = new ReadScope();
+			readScopes.set(scope);
+		}
+		if(scope.depth == 0){
+			ReadConnectionPool pool = readPool;
+			if(pool != null){
+				scope.connection = pool.acquire();
+				scope.pool = pool;
+			}
+		}
+		scope.depth++;
+	}
+
+	/**
+	 * Ends a read begun by beginRead(), returning the read-only connection to the pool once the outermost read ends.
 	 */
-	public int fetchMaxRowId(Class<?> instanceType){
-		
-		if(!upToDateClasses.contains(instanceType)){
-			executeCreateIfNotExistsSQLStatement(DataUtil.getTableName(instanceType), createSQLStatementsFromFields(DataUtil.getFields(instanceType)));
-			performTableUpgrade(instanceType);
+	public void endRead(){
+		ReadScope scope = readScopes.get();
+		if(scope == null || scope.depth == 0) throw new IllegalStateException("endRead() called without a matching beginRead()");
+		scope.depth--;
+		if(scope.depth == 0 && scope.connection != null){
+			scope.pool.release(scope.connection);
+			scope.connection = null;
+			scope.pool = null;
 		}
-		
-		int rowId;
+	}
+
+	/**
+	 * Returns the connection that queries made by the current thread should use: its pooled read-only connection if it is inside
+	 * beginRead() and write-ahead logging is in use, otherwise the writer connection.
+	 * @return the connection
+	 */
+	private SQLiteDatabase getReadDatabase(){
+		ReadScope scope = readScopes.get();
+		if(scope == null || scope.connection == null) return db;
+		return scope.connection;
+	}
+
+	/**
+	 * Sets the maximum number of Directives that commit(Queue) applies in a single transaction. Very large queues can be split
+	 * into several smaller transactions this way. A value of 0 or less applies the whole queue in one transaction.
+	 * @param chunkSize the maximum number of Directives per transaction
+	 */
+	public void setCommitChunkSize(int chunkSize){
+		this.commitChunkSize = chunkSize;
+	}
+
+	/**
+	 * Reserves a block of consecutive id numbers for a class in the sequence table, so that they can be handed out without using the
+	 * database again. A block always starts after the highest id number stored, which is a single lookup on the id column, so rows
+	 * written without the sequence table are never given a reserved id number. Reserved id numbers that are never used are skipped.
+	 * @param cls the class
+	 * @param count the number of id numbers to reserve
+	 * @return the first id number of the block
+	 * @throws IdNumbersExhaustedException if the end of the block would run past Integer.MAX_VALUE
+	 */
+	public int reserveIds(Class<?> cls, int count){
+		//preparing a table may wait for a background migration of it, which cannot finish while this thread holds a transaction
+		prepareTable(cls);
+		String tableName = DataUtil.getTableName(cls);
+		db.beginTransaction();
 		try{
-			Cursor cursor = db.rawQuery("SELECT MAX(" + DataUtil.getIdField(instanceType).getName() + ") FROM " + DataUtil.getTableName(instanceType), null);
-			if (!cursor.moveToFirst()) rowId = 1;
-			else rowId = cursor.getInt(0) + 1;
-			cursor.close();
+			Long nextId = fetchLong("SELECT NEXT_ID FROM " + SEQUENCE_TABLE_NAME + " WHERE TABLE_NAME = ?", new String[]{tableName});
+			Long maxId = fetchLong("SELECT MAX(" + DataUtil.getIdField(cls).getName() + ") FROM " + tableName);
+			long firstId = nextId == null ? 1 : nextId;
+			if(maxId != null && maxId >= firstId) firstId = maxId + 1;
+			//id numbers are ints, and callers compute the end of the block as firstId + count, so both must fit rather than wrap around
+			if(firstId + count > Integer.MAX_VALUE) throw new IdNumbersExhaustedException();
+			db.execSQL("INSERT OR REPLACE INTO " + SEQUENCE_TABLE_NAME + " (TABLE_NAME, NEXT_ID) VALUES (?, ?);", new Object[]{tableName, firstId + count});
+			db.setTransactionSuccessful();
+			return (int) firstId;
 		}catch(SQLException e){
-			rowId = 1;
+			throw new InternalDatabaseException();
+		}finally{
+			db.endTransaction();
 		}
-		return rowId;
+	}
+
+	/**
+	 * The read a thread is in: how deeply its calls to beginRead() are nested and the connection it holds.
+	 */
+	private static class ReadScope {
+
+		private int depth = 0;
+		private SQLiteDatabase connection; //the pooled connection held by the thread, or null if it reads from the writer connection
+		private ReadConnectionPool pool; //the pool the connection must be returned to
 	}
 }
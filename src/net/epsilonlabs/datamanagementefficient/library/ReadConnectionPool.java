@@ -0,0 +1,89 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.epsilonlabs.datamanagementefficient.exception.InternalDatabaseException;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The ReadConnectionPool holds read-only connections to a database that is in write-ahead logging mode. Each connection reads from the
+ * last commit that finished before its query started, so reads neither wait for the writer connection nor stall it. Connections are
+ * opened when they are first needed, up to a fixed number; a thread that asks for one while all of them are in use waits until one is
+ * released.
+ * @author Tom Caputi
+ *
+ */
+public class ReadConnectionPool {
+
+	private String path; //the path of the database file
+	private int maxConnections; //the maximum number of connections that may be open at once
+	private int openConnections = 0; //the number of connections opened so far, guarded by this pool
+	private LinkedBlockingQueue<SQLiteDatabase> idleConnections; //the open connections that are not in use
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor. No connections are opened until they are acquired.
+	 * @param path the path of the database file
+	 * @param maxConnections the maximum number of connections that may be open at once
+	 */
+	public ReadConnectionPool(String path, int maxConnections){
+		this.path = path;
+		this.maxConnections = maxConnections;
+		this.idleConnections = new LinkedBlockingQueue<SQLiteDatabase>();
+	}
+
+	/**
+	 * Returns a connection that is not in use by any other thread, opening a new one if the pool is not yet full and waiting for one
+	 * to be released otherwise. Every acquired connection must be released.
+	 * @return the read-only connection
+	 */
+	public SQLiteDatabase acquire(){
+		SQLiteDatabase connection = idleConnections.poll();
+		if(connection != null) return connection;
+		synchronized(this){
+			if(openConnections < maxConnections){
+				try{
+					connection = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+				}catch(SQLException e){
+					throw new InternalDatabaseException();
+				}
+				openConnections++;
+				return connection;
+			}
+		}
+		try{
+			return idleConnections.take();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InternalDatabaseException();
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool. If the pool has been closed the connection is closed instead.
+	 * @param connection the connection returned by acquire()
+	 */
+	public void release(SQLiteDatabase connection){
+		if(closed) connection.close();
+		else idleConnections.offer(connection);
+		//close() may have run between the check and the offer
+		if(closed) closeIdleConnections();
+	}
+
+	/**
+	 * Closes the idle connections. Connections still in use are closed as they are released.
+	 */
+	public void close(){
+		closed = true;
+		closeIdleConnections();
+	}
+
+	/**
+	 * Closes every connection that is waiting in the pool.
+	 */
+	private void closeIdleConnections(){
+		SQLiteDatabase connection;
+		while((connection = idleConnections.poll()) != null) connection.close();
+	}
+}
@@ -0,0 +1,188 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+
+import net.epsilonlabs.datamanagementefficient.exception.IdFieldIsInaccessibleException;
+import net.epsilonlabs.datamanagementefficient.exception.InaccessableObjectException;
+import net.epsilonlabs.datamanagementefficient.exception.InternalDatabaseException;
+import net.epsilonlabs.datamanagementefficient.user.LazyReference;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The EntityMapper used for storable classes that do not have a generated mapper. All Field access goes through reflection using
+ * the Fields held by the class's EntityDescriptor.
+ * @author Tom Caputi
+ *
+ * @param <T> the storable class
+ */
+public class ReflectiveEntityMapper<T> implements EntityMapper<T> {
+
+	private EntityDescriptor descriptor;
+	private Field[] fields;
+	private Constructor<T> constructor; //the empty constructor, already set to be accessible
+
+	/**
+	 * Constructor. Looks up the empty constructor of the described class.
+	 * @param descriptor the descriptor of the storable class
+	 */
+	@SuppressWarnings("unchecked")
+	public ReflectiveEntityMapper(EntityDescriptor descriptor){
+		this.descriptor = descriptor;
+		this.fields = descriptor.getFields();
+		try {
+			this.constructor = (Constructor<T>) descriptor.getType().getDeclaredConstructor();
+			this.constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			this.constructor = null;
+		}
+	}
+
+	@Override
+	public T newInstance() {
+		if(constructor == null) throw new InternalDatabaseException();
+		try {
+			return constructor.newInstance();
+		} catch (Exception e) {
+			throw new InternalDatabaseException();
+		}
+	}
+
+	@Override
+	public int getId(T instance) {
+		try {
+			return descriptor.getIdField().getInt(instance);
+		}catch (IllegalAccessException e) {
+			throw new IdFieldIsInaccessibleException();
+		}
+	}
+
+	@Override
+	public void setId(T instance, int id) {
+		try {
+			descriptor.getIdField().setInt(instance, id);
+		}catch (IllegalAccessException e) {
+			throw new IdFieldIsInaccessibleException();
+		}
+	}
+
+	@Override
+	public void readColumns(T instance, Cursor cursor, int[] columnIndexes, int defaultUpgradeValue) {
+		try{
+			for(int i=0; i<fields.length; i++){
+				Field field = fields[i];
+				int columnNumber = columnIndexes[i];
+				switch(descriptor.getFieldTypeId(i)){
+				case DataUtil.FIELD_TYPE_INT:
+					if(cursor.isNull(columnNumber)) field.setInt(instance, defaultUpgradeValue);
+					else field.setInt(instance, cursor.getInt(columnNumber));
+					break;
+				case DataUtil.FIELD_TYPE_DOUBLE:
+					if(cursor.isNull(columnNumber)) field.setDouble(instance, defaultUpgradeValue);
+					else field.setDouble(instance, cursor.getDouble(columnNumber));
+					break;
+				case DataUtil.FIELD_TYPE_FLOAT:
+					if(cursor.isNull(columnNumber)) field.setFloat(instance, defaultUpgradeValue);
+					else field.setFloat(instance, cursor.getFloat(columnNumber));
+					break;
+				case DataUtil.FIELD_TYPE_LONG:
+					if(cursor.isNull(columnNumber)) field.setLong(instance, defaultUpgradeValue);
+					else field.setLong(instance, cursor.getLong(columnNumber));
+					break;
+				case DataUtil.FIELD_TYPE_STRING:
+					field.set(instance, cursor.getString(columnNumber));
+					break;
+				case DataUtil.FIELD_TYPE_BOOLEAN:
+					if(cursor.getInt(columnNumber) == 1) field.setBoolean(instance, true);
+					else field.setBoolean(instance, false);
+					break;
+				}
+			}
+		}catch(IllegalAccessException e){
+			throw new InternalDatabaseException();
+		}
+	}
+
+	@Override
+	public void bindColumns(T instance, SQLiteStatement statement) {
+		try{
+			int index = 1;
+			for(int i=0; i<fields.length; i++){
+				Field field = fields[i];
+				switch(descriptor.getFieldTypeId(i)){
+				case DataUtil.FIELD_TYPE_INT:
+					statement.bindLong(index++, field.getInt(instance));
+					break;
+				case DataUtil.FIELD_TYPE_DOUBLE:
+					statement.bindDouble(index++, field.getDouble(instance));
+					break;
+				case DataUtil.FIELD_TYPE_FLOAT:
+					statement.bindDouble(index++, field.getFloat(instance));
+					break;
+				case DataUtil.FIELD_TYPE_LONG:
+					statement.bindLong(index++, field.getLong(instance));
+					break;
+				case DataUtil.FIELD_TYPE_STRING:
+					String value = (String) field.get(instance);
+					if(value == null) statement.bindNull(index++);
+					else statement.bindString(index++, value);
+					break;
+				case DataUtil.FIELD_TYPE_BOOLEAN:
+					if(field.getBoolean(instance)) statement.bindLong(index++, 1);
+					else statement.bindLong(index++, 0);
+					break;
+				case DataUtil.FIELD_TYPE_NON_PRIMITIVE:
+					Object reference = field.get(instance);
+					if(reference instanceof LazyReference){
+						LazyReference<?> lazyReference = (LazyReference<?>) reference;
+						if(lazyReference.isNull()) statement.bindNull(index++);
+						else statement.bindLong(index++, lazyReference.getId());
+					}else if(reference == null) statement.bindNull(index++);
+					else statement.bindLong(index++, DataUtil.getId(reference));
+					break;
+				}
+			}
+		}catch(IllegalAccessException e){
+			throw new InternalDatabaseException();
+		}
+	}
+
+	@Override
+	public void copyColumns(T source, T destination) {
+		try{
+			for(int i=0; i<fields.length; i++){
+				switch(descriptor.getFieldTypeId(i)){
+				case DataUtil.FIELD_TYPE_INT:
+				case DataUtil.FIELD_TYPE_DOUBLE:
+				case DataUtil.FIELD_TYPE_FLOAT:
+				case DataUtil.FIELD_TYPE_LONG:
+				case DataUtil.FIELD_TYPE_STRING:
+				case DataUtil.FIELD_TYPE_BOOLEAN:
+					fields[i].set(destination, fields[i].get(source));
+					break;
+				}
+			}
+		}catch(IllegalAccessException e){
+			throw new InaccessableObjectException();
+		}
+	}
+
+	@Override
+	public Object getReference(T instance, int fieldIndex) {
+		try {
+			return fields[fieldIndex].get(instance);
+		} catch (IllegalAccessException e) {
+			throw new InaccessableObjectException();
+		}
+	}
+
+	@Override
+	public void setReference(T instance, int fieldIndex, Object value) {
+		try {
+			fields[fieldIndex].set(instance, value);
+		} catch (IllegalAccessException e) {
+			throw new InaccessableObjectException();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package net.epsilonlabs.datamanagementefficient.library;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+/**
+ * The StatementCache holds compiled SQLiteStatements so that the SQL for inserts, updates, deletes and reference rows only has to be
+ * parsed once per table instead of once per row. Statements are stored by the table they act on and their SQL text and are reused
+ * across commits until the table's schema changes, at which point they must be evicted.
+ * @author Tom Caputi
+ *
+ */
+public class StatementCache {
+
+	private SQLiteDatabase db; //the database the statements are compiled against
+	private Map<String, Map<String, SQLiteStatement>> statements; //holds a map of table names to their compiled statements, stored by SQL text
+	private SQLiteStatement changesStatement; //used to count changed rows on platforms without SQLiteStatement.executeUpdateDelete()
+
+	/**
+	 * Constructor. Instantiates the statement map.
+	 * @param db the database the statements will be compiled against
+	 */
+	public StatementCache(SQLiteDatabase db){
+		this.db = db;
+		this.statements = new HashMap<String, Map<String, SQLiteStatement>>();
+	}
+
+	/**
+	 * Returns the compiled statement for the given table and SQL text, compiling it if it has not been used before. The statement's
+	 * bindings are cleared before it is returned.
+	 * @param tableName the name of the table the statement acts on
+	 * @param sql the SQL text of the statement
+	 * @return the compiled statement
+	 */
+	public synchronized SQLiteStatement get(String tableName, String sql){
+		Map<String, SQLiteStatement> tableStatements = statements.get(tableName);
+		if(tableStatements == null){
+			tableStatements = new HashMap<String, SQLiteStatement>();
+			statements.put(tableName, tableStatements);
+		}
+		SQLiteStatement statement = tableStatements.get(sql);
+		if(statement == null){
+			statement = db.compileStatement(sql);
+			tableStatements.put(sql, statement);
+		}else{
+			statement.clearBindings();
+		}
+		return statement;
+	}
+
+	/**
+	 * Returns true if a statement with the given SQL text has already been compiled for the given table.
+	 * @param tableName the name of the table the statement acts on
+	 * @param sql the SQL text of the statement
+	 * @return true if the statement is cached
+	 */
+	public synchronized boolean contains(String tableName, String sql){
+		Map<String, SQLiteStatement> tableStatements = statements.get(tableName);
+		return tableStatements != null && tableStatements.containsKey(sql);
+	}
+
+	/**
+	 * Executes an UPDATE or DELETE statement, or an INSERT whose row id is not needed, and returns the number of rows it changed.
+	 * @param statement the statement to be executed
+	 * @return the number of rows changed
+	 */
+	public synchronized int executeUpdateDelete(SQLiteStatement statement){
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) return statement.executeUpdateDelete();
+		statement.execute();
+		if(changesStatement == null) changesStatement = db.compileStatement("SELECT changes()");
+		return (int) changesStatement.simpleQueryForLong();
+	}
+
+	/**
+	 * Closes and removes all statements that act on the given table. This must be called whenever the table is altered or dropped.
+	 * @param tableName the name of the table
+	 */
+	public synchronized void evict(String tableName){
+		Map<String, SQLiteStatement> tableStatements = statements.remove(tableName);
+		if(tableStatements == null) return;
+		for(SQLiteStatement statement : tableStatements.values()){
+			statement.close();
+		}
+	}
+
+	/**
+	 * Closes and removes all cached statements.
+	 */
+	public synchronized void clear(){
+		for(Map<String, SQLiteStatement> tableStatements : statements.values()){
+			for(SQLiteStatement statement : tableStatements.values()){
+				statement.close();
+			}
+		}
+		statements.clear();
+		if(changesStatement != null) changesStatement.close();
+		changesStatement = null;
+	}
+}
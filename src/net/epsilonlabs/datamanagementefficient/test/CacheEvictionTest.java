@@ -0,0 +1,95 @@
+package net.epsilonlabs.datamanagementefficient.test;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+
+/**
+ * Checks that objects with uncommitted changes are not lost when the cache is full. The cache of DataSample is limited to a single
+ * object, so every other DataSample that is added while a change is pending would evict the changed object if it were not pinned.
+ */
+public class CacheEvictionTest extends DatabaseTest {
+
+	private ArrayList<Integer> fillerIds = new ArrayList<Integer>(); //the DataSamples added to fill the cache
+
+	public CacheEvictionTest(Context context){
+		super(context);
+	}
+
+	@Override
+	protected void runChecks(){
+		fillerIds.clear();
+		dm.open();
+		dm.setCacheCapacity(DataSample.class, 1);
+		try{
+			checkRevertedUpdate();
+			checkUncommittedAdd();
+		}finally{
+			int[] ids = new int[fillerIds.size()];
+			for(int i=0; i<ids.length; i++) ids[i] = fillerIds.get(i);
+			dm.deleteAll(DataSample.class, ids);
+			dm.commit();
+			dm.setCacheCapacity(DataSample.class, 0);
+			dm.close();
+		}
+	}
+
+	/**
+	 * Updates a stored object, fills the cache, reads the object back and reverts the update before committing.
+	 */
+	private void checkRevertedUpdate(){
+		DataSample sample = new DataSample();
+		sample.setNum1(1);
+		int id = dm.add(sample);
+		dm.commit();
+
+		sample = dm.get(DataSample.class, id);
+		sample.setNum1(2);
+		dm.update(sample);
+		fillCache();
+		sample = dm.get(DataSample.class, id);
+		if(sample.getNum1() != 2) fail("the pending update was not read back: num1 is " + sample.getNum1());
+		sample.setNum1(1);
+		dm.update(sample);
+		dm.commit();
+
+		fillCache();
+		dm.commit();
+		DataSample stored = dm.get(DataSample.class, id);
+		if(stored.getNum1() != 1) fail("the reverted update was lost: num1 is " + stored.getNum1());
+		dm.delete(DataSample.class, id);
+		dm.commit();
+	}
+
+	/**
+	 * Adds an object, fills the cache and updates the object before it has been committed.
+	 */
+	private void checkUncommittedAdd(){
+		DataSample sample = new DataSample();
+		sample.setNum1(1);
+		int id = dm.add(sample);
+		fillCache();
+		sample = dm.get(DataSample.class, id);
+		if(sample == null){
+			fail("the uncommitted object " + id + " was not read back");
+			return;
+		}
+		sample.setNum1(5);
+		dm.update(sample);
+		dm.commit();
+
+		fillCache();
+		dm.commit();
+		DataSample stored = dm.get(DataSample.class, id);
+		if(stored == null || stored.getNum1() != 5) fail("the update of the uncommitted object " + id + " was lost");
+		dm.delete(DataSample.class, id);
+		dm.commit();
+	}
+
+	/**
+	 * Adds enough DataSamples to push any object that is not pinned out of the cache.
+	 */
+	private void fillCache(){
+		for(int i=0; i<3; i++) fillerIds.add(dm.add(new DataSample()));
+	}
+}
@@ -0,0 +1,54 @@
+package net.epsilonlabs.datamanagementefficient.test;
+
+import android.content.Context;
+
+/**
+ * Checks that every collection field of an object survives copying, reading and updating. ContactBook has two collection fields, so
+ * a copy that only carried over the first of them would lose the blocked contacts.
+ */
+public class CollectionCopyTest extends DatabaseTest {
+
+	public CollectionCopyTest(Context context){
+		super(context);
+	}
+
+	@Override
+	protected void runChecks(){
+		dm.open();
+		try{
+			ContactBook book = new ContactBook();
+			book.getFavorites().add(new Contact("555-0100"));
+			book.getBlocked().add(new Contact("555-0199"));
+			book.getBlocked().add(new Contact("555-0198"));
+			checkSizes("copy", dm.copy(book), 1, 2);
+
+			int id = dm.add(book);
+			dm.commit();
+			ContactBook stored = dm.get(ContactBook.class, id);
+			checkSizes("read", stored, 1, 2);
+
+			stored.getBlocked().add(new Contact("555-0197"));
+			dm.update(stored);
+			dm.commit();
+			checkSizes("updated", dm.get(ContactBook.class, id), 1, 3);
+
+			dm.delete(ContactBook.class, id);
+			dm.commit();
+		}finally{
+			dm.close();
+		}
+	}
+
+	private void checkSizes(String state, ContactBook book, int favorites, int blocked){
+		if(book == null){
+			fail("the " + state + " ContactBook is missing");
+			return;
+		}
+		if(book.getFavorites() == null || book.getFavorites().size() != favorites){
+			fail("the " + state + " ContactBook has the wrong favorites: " + book.getFavorites());
+		}
+		if(book.getBlocked() == null || book.getBlocked().size() != blocked){
+			fail("the " + state + " ContactBook has the wrong blocked contacts: " + book.getBlocked());
+		}
+	}
+}
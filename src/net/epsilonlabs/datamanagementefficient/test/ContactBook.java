@@ -0,0 +1,28 @@
+package net.epsilonlabs.datamanagementefficient.test;
+
+import java.util.ArrayList;
+
+import net.epsilonlabs.datamanagementefficient.annotations.Id;
+
+public class ContactBook {
+
+	@Id
+	private int id;
+	private ArrayList<Contact> favorites = new ArrayList<Contact>();
+	private ArrayList<Contact> blocked = new ArrayList<Contact>();
+
+	public ContactBook(){
+	}
+
+	public ArrayList<Contact> getFavorites() {
+		return favorites;
+	}
+
+	public ArrayList<Contact> getBlocked() {
+		return blocked;
+	}
+
+	public int getId() {
+		return id;
+	}
+}
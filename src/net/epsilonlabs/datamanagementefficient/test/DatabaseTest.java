@@ -0,0 +1,61 @@
+package net.epsilonlabs.datamanagementefficient.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.epsilonlabs.datamanagementefficient.user.DataManager;
+import android.content.Context;
+
+/**
+ * The base of the tests run by TestActivity. A test works on the shared DataManager and records every failed check instead of stopping
+ * at the first one, so a single run reports everything that went wrong. The failures list is synchronized, so checks made on several
+ * threads can add to it directly.
+ */
+public abstract class DatabaseTest {
+
+	protected DataManager dm;
+	protected List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+	public DatabaseTest(Context context){
+		this.dm = DataManager.getInstance(context);
+	}
+
+	/**
+	 * Runs the checks. An exception thrown by the checks is recorded as a failure.
+	 * @return the exceptions and failed checks, empty if the run succeeded
+	 */
+	public List<Throwable> run(){
+		failures.clear();
+		try{
+			runChecks();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			failures.add(e);
+		}catch(Throwable t){
+			failures.add(t);
+		}
+		return failures;
+	}
+
+	/**
+	 * Returns the name the test is reported under.
+	 * @return the name
+	 */
+	public String getName(){
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * Records a failed check.
+	 * @param message the description of the failure
+	 */
+	protected void fail(String message){
+		failures.add(new AssertionError(message));
+	}
+
+	/**
+	 * Performs the checks of the test, opening and closing the DataManager as needed.
+	 */
+	protected abstract void runChecks() throws Exception;
+}
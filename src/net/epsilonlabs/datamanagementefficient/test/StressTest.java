@@ -0,0 +1,80 @@
+package net.epsilonlabs.datamanagementefficient.test;
+
+import java.util.ArrayList;
+
+import net.epsilonlabs.datamanagementefficient.user.Query;
+import android.content.Context;
+
+/**
+ * Checks that a DataManager shared by several threads keeps every thread's changes intact. Each thread works on DataSamples with its
+ * own num1 value, so a thread that cannot read back or find its own objects has lost changes to another thread.
+ */
+public class StressTest extends DatabaseTest {
+
+	private int threadCount;
+	private int iterations;
+
+	/**
+	 * Constructor.
+	 * @param context the Context of the shared DataManager
+	 * @param threadCount the number of threads
+	 * @param iterations the number of rounds each thread runs
+	 */
+	public StressTest(Context context, int threadCount, int iterations){
+		super(context);
+		this.threadCount = threadCount;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Runs several threads that each open the shared DataManager, mix adds, reads, queries, updates and deletes of DataSample objects,
+	 * and close it again, without any locking of their own. Every object a thread adds must be readable by that thread afterwards.
+	 */
+	@Override
+	protected void runChecks() throws InterruptedException {
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<threadCount; i++){
+			final int num1 = 1000 + i;
+			threads.add(new Thread(){
+				@Override
+				public void run() {
+					try{
+						for(int j=0; j<iterations; j++) runRound(num1);
+					}catch(Throwable t){
+						failures.add(t);
+					}
+				}
+			});
+		}
+		for(Thread thread : threads) thread.start();
+		for(Thread thread : threads) thread.join();
+	}
+
+	private void runRound(int num1){
+		dm.open();
+		try{
+			ArrayList<Integer> ids = new ArrayList<Integer>();
+			for(int i=0; i<10; i++){
+				DataSample sample = new DataSample();
+				sample.setNum1(num1);
+				ids.add(dm.add(sample));
+			}
+			for(int id : ids){
+				DataSample sample = dm.get(DataSample.class, id);
+				if(sample == null || sample.getNum1() != num1){
+					fail("object " + id + " was not read back");
+					continue;
+				}
+				sample.setNum3("updated");
+				dm.update(sample);
+			}
+			dm.getAll(DataSample.class);
+			ArrayList<DataSample> found = dm.find(new Query<DataSample>(DataSample.class).equalTo("num1", num1));
+			if(found.size() < ids.size()) fail("found " + found.size() + " of " + ids.size() + " objects");
+			for(int id : ids) dm.delete(DataSample.class, id);
+			dm.commit();
+		}finally{
+			dm.close();
+		}
+	}
+}
@@ -1,27 +1,65 @@
 package net.epsilonlabs.datamanagementefficient.test;
 
+import java.util.List;
+
 import net.epsilonlabs.datamanagementefficient.user.DataManager;
 import android.app.Activity;
 import android.os.Bundle;
+import android.util.Log;
 import android.widget.TextView;
 
+/**
+ * Runs the DatabaseTests on a background thread, so that slow checks cannot hold up the main thread, and shows each result as it
+ * arrives.
+ */
 public class TestActivity extends Activity {
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		TextView tv = new TextView(this);
+		final TextView tv = new TextView(this);
+		setContentView(tv);
 		
 //		for(int i=0; i<40; i++){
 //			TestThread tt = new TestThread(this);
 //			tt.run();
 //		}
 		
-		DataManager dm = DataManager.getInstance(this);
-		dm.open();
-		dm.getAll(DataSample.class);
-		dm.close();
-		
-		setContentView(tv);
+		final DatabaseTest[] tests = new DatabaseTest[]{
+				new CacheEvictionTest(this),
+				new CollectionCopyTest(this),
+				new StressTest(this, 8, 20)
+		};
+		new Thread(){
+			@Override
+			public void run() {
+				DataManager dm = DataManager.getInstance(TestActivity.this);
+				dm.open();
+				dm.getAll(DataSample.class);
+				dm.close();
+
+				for(final DatabaseTest test : tests){
+					final List<Throwable> failures = test.run();
+					runOnUiThread(new Runnable() {
+						@Override
+						public void run() {
+							report(tv, test.getName(), failures);
+						}
+					});
+				}
+			}
+		}.start();
+	}
+
+	private void report(TextView tv, String testName, List<Throwable> failures){
+		if(failures.isEmpty()){
+			tv.append(testName + " passed\n");
+			return;
+		}
+		tv.append(testName + " failed\n");
+		for(Throwable failure : failures){
+			tv.append("     " + failure + "\n");
+			Log.e("TestActivity", testName + " failed", failure);
+		}
 	}
 }
@@ -8,7 +8,6 @@ import android.content.Context;
 
 public class TestLib {
 
-    private static final Object LOCK = new Object();
     private static DataManager database;
     private static boolean initialized;
 
@@ -40,20 +39,18 @@ public class TestLib {
     private static String getClosestCode() {
         String code = null;
 
-        synchronized (LOCK) {
-            database.open();
-            ArrayList<LocationCache> rcdb = database.getAll(LocationCache.class);
+        database.open();
+        ArrayList<LocationCache> rcdb = database.getAll(LocationCache.class);
 
-            for (LocationCache lc : rcdb) {
-                // Some process here
-                code = lc.code;
-            }
-
-            try {
-                database.close();
-            } catch (DatabaseNotOpenExpection e) { }
+        for (LocationCache lc : rcdb) {
+            // Some process here
+            code = lc.code;
         }
 
+        try {
+            database.close();
+        } catch (DatabaseNotOpenExpection e) { }
+
         return code;
     }
 
@@ -64,11 +61,9 @@ public class TestLib {
         LocationCache lc = new LocationCache();
         lc.code = code;
 
-        synchronized (LOCK) {
-            database.open();
-            database.add(lc);
-            database.close();
-        }       
+        database.open();
+        database.add(lc);
+        database.close();
     }
 
 }
\ No newline at end of file
@@ -2,37 +2,55 @@ package net.epsilonlabs.datamanagementefficient.user;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.Queue;
-
-import net.epsilonlabs.datamanagementefficient.directive.CreateDirective;
-import net.epsilonlabs.datamanagementefficient.directive.CreateReferenceDirective;
-import net.epsilonlabs.datamanagementefficient.directive.DeleteDirective;
-import net.epsilonlabs.datamanagementefficient.directive.DeleteReferenceDirective;
-import net.epsilonlabs.datamanagementefficient.directive.Directive;
-import net.epsilonlabs.datamanagementefficient.directive.UpdateDirective;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import net.epsilonlabs.datamanagementefficient.exception.DatabaseNotOpenExpection;
-import net.epsilonlabs.datamanagementefficient.exception.FieldDoesNotExistException;
 import net.epsilonlabs.datamanagementefficient.exception.MisMatchedFieldValueTypeException;
+import net.epsilonlabs.datamanagementefficient.library.CacheStats;
 import net.epsilonlabs.datamanagementefficient.library.DataUtil;
-import net.epsilonlabs.datamanagementefficient.library.DatabaseAsyncTask;
+import net.epsilonlabs.datamanagementefficient.library.DatabaseExecutor;
 import net.epsilonlabs.datamanagementefficient.library.PersistenceContext;
 import net.epsilonlabs.datamanagementefficient.library.PersistenceManager;
 import android.content.Context;
 import android.database.Cursor;
 
+/**
+ * The AsyncDataManager gives access to the same features as DataManager without blocking the calling thread. Calls that change the
+ * database or the pending changes run one at a time on a writer thread, and calls that only read run on a pool of reader threads.
+ * Every call returns a DatabaseFuture, which can be waited for, cancelled before it starts or given a deadline, and the result is
+ * also passed to the call's DatabaseCallback, if one is given, on the main thread.
+ * <p>
+ * Calls are queued by priority (see withPriority(int)). Calls of the same priority start in the order they were made, and a read
+ * sees every write made before it at the same or a more urgent priority. Writes of different priorities may run in either order.
+ * Reads that query the database, such as getAll and find, first commit the pending changes on the writer thread.
+ * <p>
+ * Collections are stored as sets of references to the objects they contain. A stored collection is read back ordered by the id
+ * numbers of its objects rather than by their positions, and holds each object at most once; reordering a collection
+ * or adding an object to it twice is not stored.
+ * @author Tom Caputi
+ *
+ */
 public class AsyncDataManager {
 
+	public static final int PRIORITY_INTERACTIVE = 0; //for reads the user is waiting for
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_BACKGROUND = 2; //for bulk work that may wait behind everything else
 	private static AsyncDataManager instance;
 	private PersistenceContext pc = null;
 	private PersistenceManager pm = null;
-	private boolean isOpen = false;
+	private DatabaseExecutor executor; //runs the calls, shared by every priority
+	private AtomicBoolean isOpen; //shared by every priority
+	private int priority = PRIORITY_NORMAL; //the priority of the calls made through this AsyncDataManager
 
 	/**
 	 * Singleton instantiation method for getting a DataManager instance
 	 * @param context the context that is instantiating the DataManager object
 	 * @return a DataManager instance
 	 */
-	public static AsyncDataManager getInstance(Context context) {
+	public static synchronized AsyncDataManager getInstance(Context context) {
 		if (instance == null) instance = new AsyncDataManager(context);
 		return instance;
 	}
@@ -44,65 +62,140 @@ public class AsyncDataManager {
 	private AsyncDataManager(Context context){
 		pm = new PersistenceManager(context);
 		pc = new PersistenceContext(pm);
+		executor = new DatabaseExecutor(2);
+		isOpen = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Private constructor for use by the withPriority() method.
+	 * @param base the AsyncDataManager whose database and threads are shared
+	 * @param priority the priority of the calls
+	 */
+	private AsyncDataManager(AsyncDataManager base, int priority){
+		pm = base.pm;
+		pc = base.pc;
+		executor = base.executor;
+		isOpen = base.isOpen;
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns an AsyncDataManager that shares this one's database but queues its calls at a given priority. Calls of a more urgent
+	 * priority start before any queued calls of a less urgent one, so for example reads made at PRIORITY_INTERACTIVE are not held up
+	 * by a large number of writes made at PRIORITY_BACKGROUND. Calls already running are never interrupted.
+	 * @param priority PRIORITY_INTERACTIVE, PRIORITY_NORMAL or PRIORITY_BACKGROUND
+	 * @return the AsyncDataManager
+	 */
+	public AsyncDataManager withPriority(int priority){
+		if(priority < 0 || priority >= DatabaseExecutor.PRIORITY_LEVELS) throw new IllegalArgumentException("Invalid priority: " + priority);
+		return new AsyncDataManager(this, priority);
+	}
+
+	/**
+	 * Sets the number of threads that run reads. By default reads run on two threads. When read connections are used (see
+	 * setReadConnections(int)) there is no benefit in having more threads than connections.
+	 * @param count the number of reader threads
+	 */
+	public void setReadThreads(int count){
+		executor.setReadThreads(count);
 	}
 
 	/**
-	 * Opens DataManager for writing.
+	 * Opens DataManager for writing. The database is always opened at PRIORITY_INTERACTIVE, so that calls of any priority made after
+	 * this one find it open.
 	 */
-	public void open(DatabaseCallback<Void> listener){
-		DatabaseAsyncTask<Void> task = new DatabaseAsyncTask<Void>(listener) {
+	public DatabaseFuture<Void> open(DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
 			@Override
-			protected Void doInBackground(Void... params) {
+			public Void call() {
 				pm.open();
-				isOpen = true;
+				isOpen.set(true);
 				return null;
 			}
-		};
-		task.execute();
+		}, PRIORITY_INTERACTIVE, listener);
+	}
+
+	/**
+	 * Opens DataManager for writing and starts creating or upgrading the tables of several classes on a background thread. The
+	 * callback is called as soon as the database is open; a call that uses a class whose table is still being prepared waits for that
+	 * table only.
+	 * @param listener the callback notified once the database is open
+	 * @param migrationListener the listener notified of the progress of the tables on the main thread, or null
+	 * @param classes the storable classes
+	 */
+	public DatabaseFuture<Void> open(DatabaseCallback<Void> listener, final MigrationListener migrationListener, final Class<?>... classes){
+		return executor.submitWrite(new Callable<Void>() {
+			@Override
+			public Void call() {
+				pm.open();
+				isOpen.set(true);
+				pm.startMigration(classes, migrationListener);
+				return null;
+			}
+		}, PRIORITY_INTERACTIVE, listener);
 	}
 
 	/**
 	 * Closes DataManager. This method calls commit() finalizing any changes before closing.
 	 */
-	public void close(DatabaseCallback<Void> listener){
-		DatabaseAsyncTask<Void> task = new DatabaseAsyncTask<Void>(listener) {
+	public DatabaseFuture<Void> close(DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
 			@Override
-			protected Void doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
+			public Void call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
 				commit();
 				pm.close();
-				isOpen = false;
+				isOpen.set(false);
 				return null;
 			}
-		};
-		task.execute();
+		}, priority, listener);
 	}
 
 	/**
 	 * Commits all cached changes to the database.
 	 */
-	public void commit(DatabaseCallback<Void> listener){
-		DatabaseAsyncTask<Void> task = new DatabaseAsyncTask<Void>(listener) {
+	public DatabaseFuture<Void> commit(DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
 			@Override
-			protected Void doInBackground(Void... params) {
+			public Void call() {
 				commit();
 				return null;
 			}
-		};
-		task.execute();
+		}, priority, listener);
 	}
 	
-	private void commit(){
-		if(!isOpen) throw new DatabaseNotOpenExpection();
-		Queue<Directive> pendingDirectives = pc.getPendingDirectivesQueue();
-		for(Directive directive : pendingDirectives){
-			if(directive instanceof CreateDirective) pm.create((CreateDirective)directive);
-			else if(directive instanceof DeleteDirective) pm.delete((DeleteDirective)directive);
-			else if(directive instanceof UpdateDirective) pm.update((UpdateDirective)directive);
-			else if(directive instanceof CreateReferenceDirective) pm.createReference((CreateReferenceDirective)directive);
-			else if(directive instanceof DeleteReferenceDirective) pm.deleteReference((DeleteReferenceDirective)directive);
-		}
-		pc.clearPendingDirectivesQueue();
+	private int commit(){
+		if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+		return pc.commit();
+	}
+
+	/**
+	 * Queues a read that must see the pending changes, such as a query. The pending changes are committed on the writer thread at the
+	 * priority of this AsyncDataManager, and the read is only queued once that commit has finished (see
+	 * DatabaseExecutor.submitRead()). If the commit fails the read fails with the same exception.
+	 * @param callable the read
+	 * @param listener the callback that receives the result
+	 * @return the DatabaseFuture of the result
+	 */
+	private <T> DatabaseFuture<T> submitCommittedRead(final Callable<T> callable, DatabaseCallback<T> listener){
+		final DatabaseFuture<Integer> committed = executor.submitWrite(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return commit();
+			}
+		}, priority, null);
+		return executor.submitRead(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try{
+					committed.get();
+				}catch(ExecutionException e){
+					if(e.getCause() instanceof Error) throw (Error) e.getCause();
+					throw (Exception) e.getCause();
+				}
+				return callable.call();
+			}
+		}, priority, listener);
 	}
 
 	/**
@@ -110,16 +203,30 @@ public class AsyncDataManager {
 	 * @param obj the object to be stored.
 	 * @return the assigned id number
 	 */
-	public void add(final Object obj, DatabaseCallback<Integer> listener){
-		DatabaseAsyncTask<Integer> task = new DatabaseAsyncTask<Integer>(listener) {
+	public DatabaseFuture<Integer> add(final Object obj, DatabaseCallback<Integer> listener){
+		return executor.submitWrite(new Callable<Integer>() {
 			@Override
-			protected Integer doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
+			public Integer call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
 				pc.create(obj);
 				return DataUtil.getId(obj);
 			}
-		};
-		task.execute();
+		}, priority, listener);
+	}
+
+	/**
+	 * Adds several objects to the database at once (see DataManager.addAll(Collection)).
+	 * @param objs the objects to be stored
+	 * @return the assigned id numbers, in the order of the collection
+	 */
+	public DatabaseFuture<int[]> addAll(final Collection<?> objs, DatabaseCallback<int[]> listener){
+		return executor.submitWrite(new Callable<int[]>() {
+			@Override
+			public int[] call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				return pc.createAll(objs);
+			}
+		}, priority, listener);
 	}
 
 	/**
@@ -127,81 +234,135 @@ public class AsyncDataManager {
 	 * @param cls the class of the object
 	 * @param id the id number of the object
 	 */
-	public void delete(final Class<?> cls, final int id, DatabaseCallback<Void> listener){
-		DatabaseAsyncTask<Void> task = new DatabaseAsyncTask<Void>(listener) {
+	public DatabaseFuture<Void> delete(final Class<?> cls, final int id, DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
 			@Override
-			protected Void doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
+			public Void call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
 				pc.delete(cls, id);
 				return null;
 			}
-		};
-		task.execute();
+		}, priority, listener);
+	}
+
+	/**
+	 * Deletes several objects of a class from the database at once (see DataManager.deleteAll(Class, int[])).
+	 * @param cls the class of the objects
+	 * @param ids the id numbers of the objects
+	 */
+	public DatabaseFuture<Void> deleteAll(final Class<?> cls, final int[] ids, DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				pc.deleteAll(cls, ids);
+				return null;
+			}
+		}, priority, listener);
 	}
 
 	/**
 	 * Updates an object in the database with a matching Class and id number.
 	 * @param obj the object to be updated
 	 */
-	public <T> void update(final T obj, DatabaseCallback<Void> listener){
-		DatabaseAsyncTask<Void> task = new DatabaseAsyncTask<Void>(listener) {
+	public <T> DatabaseFuture<Void> update(final T obj, DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
 			@Override
-			protected Void doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
+			public Void call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
 				if(obj == null) throw new NullPointerException();
 				pc.update(obj);
 				return null;
 			}
-		};
-		task.execute();
+		}, priority, listener);
+	}
+
+	/**
+	 * Updates several objects in the database at once (see DataManager.updateAll(Collection)).
+	 * @param objs the objects to be updated
+	 */
+	public <T> DatabaseFuture<Void> updateAll(final Collection<T> objs, DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				for(T obj : objs){
+					if(obj == null) throw new NullPointerException();
+				}
+				pc.updateAll(objs);
+				return null;
+			}
+		}, priority, listener);
 	}
 
 	/**
 	 * Retrieves an object from the database.
 	 * @param cls the class of the object
 	 * @param id the id number of the object
-	 * @return
+	 * @param listener the callback that receives the object
+	 * @return the DatabaseFuture of the object
+	 */
+	public <T> DatabaseFuture<T> get(final Class<T> cls, final int id, DatabaseCallback<T> listener){
+		return get(cls, id, null, listener);
+	}
+
+	/**
+	 * Retrieves an object from the database, loading the fields named by a FetchPlan lazily. If the object is already cached, the
+	 * cached object is used as it is.
+	 * @param cls the class of the object
+	 * @param id the id number of the object
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @param listener the callback that receives the object
 	 */
-	public <T> void get(final Class<T> cls, final int id, DatabaseCallback<T> listener){
-		DatabaseAsyncTask<T> task = new DatabaseAsyncTask<T>(listener) {
+	public <T> DatabaseFuture<T> get(final Class<T> cls, final int id, final FetchPlan fetchPlan, DatabaseCallback<T> listener){
+		return executor.submitRead(new Callable<T>() {
 			@Override
-			protected T doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				T object = pc.getCopyFromCache(cls, id);
+			public T call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				T object = pc.getFromCache(cls, id);
 				if(object != null) return object;
-				return pc.fetchToCache(cls, id);
+				pm.beginRead();
+				try{
+					return pc.fetchToCache(cls, id, fetchPlan);
+				}finally{
+					pm.endRead();
+				}
 			}
-		};
-		task.execute();
+		}, priority, listener);
 	}
 
 	/**
 	 * Retrieves copies of all stored objects of a given class in an ArrayList.
 	 * @param cls the class
-	 * @return an ArrayList of all stored objects of a given class
+	 * @param listener the callback that receives the objects
+	 * @return the DatabaseFuture of an ArrayList of all stored objects of a given class
 	 */
-	public <T> void getAll(final Class<T> cls, DatabaseCallback<ArrayList<T>> listener){
-		DatabaseAsyncTask<ArrayList<T>> task = new DatabaseAsyncTask<ArrayList<T>>(listener) {
+	public <T> DatabaseFuture<ArrayList<T>> getAll(final Class<T> cls, DatabaseCallback<ArrayList<T>> listener){
+		return getAll(cls, null, listener);
+	}
+
+	/**
+	 * Retrieves copies of all stored objects of a given class in an ArrayList, loading the fields named by a FetchPlan lazily.
+	 * @param cls the class
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @param listener the callback that receives the objects
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> getAll(final Class<T> cls, final FetchPlan fetchPlan, DatabaseCallback<ArrayList<T>> listener){
+		return submitCommittedRead(new Callable<ArrayList<T>>() {
 			@Override
-			protected ArrayList<T> doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				commit();
-				ArrayList<T> list = new ArrayList<T>();
-				
-				Cursor cursor = pm.getCursor(cls, null);
-				if(!cursor.moveToFirst()) return list;
-				while(!cursor.isAfterLast()){
-					int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-					T object = pc.getCopyFromCache(cls, id);
-					if(object != null) list.add(object);
-					else list.add(pc.fetchToCache(cls, cursor));
-					cursor.moveToNext();
+			public ArrayList<T> call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				pm.beginRead();
+				try{
+					Cursor cursor = pm.getCursor(cls, null);
+					ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+					cursor.close();
+					return list;
+				}finally{
+					pm.endRead();
 				}
-				cursor.close();
-				return list;
 			}
-		};
-		task.execute();
+		}, listener);
 	}
 
 	/**
@@ -209,38 +370,11 @@ public class AsyncDataManager {
 	 * @param cls the class
 	 * @param fieldName the name of the field
 	 * @param value the value 
-	 * @return an ArrayList of all objects that match the search criteria
+	 * @param listener the callback that receives the objects
+	 * @return the DatabaseFuture of an ArrayList of all objects that match the search criteria
 	 */
-	public <T> void find(final Class<T> cls, final String fieldName, final int value, DatabaseCallback<ArrayList<T>> listener){
-		DatabaseAsyncTask<ArrayList<T>> task = new DatabaseAsyncTask<ArrayList<T>>(listener) {
-			@Override
-			protected ArrayList<T> doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				
-				Field field = null;
-				for(Field containedField : DataUtil.getFields(cls)){
-					if(containedField.getName().equals(fieldName)) field = containedField;
-				}
-				if(field == null) throw new FieldDoesNotExistException();
-				if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_INT) throw new MisMatchedFieldValueTypeException();
-
-				commit();
-				ArrayList<T> list = new ArrayList<T>();
-				String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-				Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-				if(!cursor.moveToFirst()) return list;
-				while(!cursor.isAfterLast()){
-					int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-					T object = pc.getCopyFromCache(cls, id);
-					if(object != null) list.add(object);
-					else list.add(pc.fetchToCache(cls, cursor));
-					cursor.moveToNext();
-				}
-				cursor.close();
-				return list;
-			}
-		};
-		task.execute();
+	public <T> DatabaseFuture<ArrayList<T>> find(Class<T> cls, String fieldName, int value, DatabaseCallback<ArrayList<T>> listener){
+		return find(new Query<T>(cls).equalTo(fieldName, value), listener);
 	}
 	
 	/**
@@ -248,38 +382,11 @@ public class AsyncDataManager {
 	 * @param cls the class
 	 * @param fieldName the name of the field
 	 * @param value the value 
-	 * @return an ArrayList of all objects that match the search criteria
+	 * @param listener the callback that receives the objects
+	 * @return the DatabaseFuture of an ArrayList of all objects that match the search criteria
 	 */
-	public <T> void find(final Class<T> cls, final String fieldName, final float value, DatabaseCallback<ArrayList<T>> listener){
-		DatabaseAsyncTask<ArrayList<T>> task = new DatabaseAsyncTask<ArrayList<T>>(listener) {
-			@Override
-			protected ArrayList<T> doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				
-				Field field = null;
-				for(Field containedField : DataUtil.getFields(cls)){
-					if(containedField.getName().equals(fieldName)) field = containedField;
-				}
-				if(field == null) throw new FieldDoesNotExistException();
-				if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_INT) throw new MisMatchedFieldValueTypeException();
-
-				commit();
-				ArrayList<T> list = new ArrayList<T>();
-				String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-				Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-				if(!cursor.moveToFirst()) return list;
-				while(!cursor.isAfterLast()){
-					int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-					T object = pc.getCopyFromCache(cls, id);
-					if(object != null) list.add(object);
-					else list.add(pc.fetchToCache(cls, cursor));
-					cursor.moveToNext();
-				}
-				cursor.close();
-				return list;
-			}
-		};
-		task.execute();
+	public <T> DatabaseFuture<ArrayList<T>> find(Class<T> cls, String fieldName, float value, DatabaseCallback<ArrayList<T>> listener){
+		return find(new Query<T>(cls).equalTo(fieldName, value), listener);
 	}
 	
 	/**
@@ -287,38 +394,11 @@ public class AsyncDataManager {
 	 * @param cls the class
 	 * @param fieldName the name of the field
 	 * @param value the value 
-	 * @return an ArrayList of all objects that match the search criteria
+	 * @param listener the callback that receives the objects
+	 * @return the DatabaseFuture of an ArrayList of all objects that match the search criteria
 	 */	
-	public <T> void find(final Class<T> cls, final String fieldName, final double value, DatabaseCallback<ArrayList<T>> listener){
-		DatabaseAsyncTask<ArrayList<T>> task = new DatabaseAsyncTask<ArrayList<T>>(listener) {
-			@Override
-			protected ArrayList<T> doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				
-				Field field = null;
-				for(Field containedField : DataUtil.getFields(cls)){
-					if(containedField.getName().equals(fieldName)) field = containedField;
-				}
-				if(field == null) throw new FieldDoesNotExistException();
-				if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_INT) throw new MisMatchedFieldValueTypeException();
-
-				commit();
-				ArrayList<T> list = new ArrayList<T>();
-				String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-				Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-				if(!cursor.moveToFirst()) return list;
-				while(!cursor.isAfterLast()){
-					int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-					T object = pc.getCopyFromCache(cls, id);
-					if(object != null) list.add(object);
-					else list.add(pc.fetchToCache(cls, cursor));
-					cursor.moveToNext();
-				}
-				cursor.close();
-				return list;
-			}
-		};
-		task.execute();
+	public <T> DatabaseFuture<ArrayList<T>> find(Class<T> cls, String fieldName, double value, DatabaseCallback<ArrayList<T>> listener){
+		return find(new Query<T>(cls).equalTo(fieldName, value), listener);
 	}
 	
 	/**
@@ -326,38 +406,11 @@ public class AsyncDataManager {
 	 * @param cls the class
 	 * @param fieldName the name of the field
 	 * @param value the value 
-	 * @return an ArrayList of all objects that match the search criteria
+	 * @param listener the callback that receives the objects
+	 * @return the DatabaseFuture of an ArrayList of all objects that match the search criteria
 	 */
-	public <T> void find(final Class<T> cls, final String fieldName, final long value, DatabaseCallback<ArrayList<T>> listener){
-		DatabaseAsyncTask<ArrayList<T>> task = new DatabaseAsyncTask<ArrayList<T>>(listener) {
-			@Override
-			protected ArrayList<T> doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				
-				Field field = null;
-				for(Field containedField : DataUtil.getFields(cls)){
-					if(containedField.getName().equals(fieldName)) field = containedField;
-				}
-				if(field == null) throw new FieldDoesNotExistException();
-				if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_INT) throw new MisMatchedFieldValueTypeException();
-
-				commit();
-				ArrayList<T> list = new ArrayList<T>();
-				String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-				Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-				if(!cursor.moveToFirst()) return list;
-				while(!cursor.isAfterLast()){
-					int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-					T object = pc.getCopyFromCache(cls, id);
-					if(object != null) list.add(object);
-					else list.add(pc.fetchToCache(cls, cursor));
-					cursor.moveToNext();
-				}
-				cursor.close();
-				return list;
-			}
-		};
-		task.execute();
+	public <T> DatabaseFuture<ArrayList<T>> find(Class<T> cls, String fieldName, long value, DatabaseCallback<ArrayList<T>> listener){
+		return find(new Query<T>(cls).equalTo(fieldName, value), listener);
 	}
 	
 	/**
@@ -365,77 +418,189 @@ public class AsyncDataManager {
 	 * @param cls the class
 	 * @param fieldName the name of the field
 	 * @param value the value 
-	 * @return an ArrayList of all objects that match the search criteria
+	 * @param listener the callback that receives the objects
+	 * @return the DatabaseFuture of an ArrayList of all objects that match the search criteria
 	 */	
-	public <T> void find(final Class<T> cls, final String fieldName, final String value, DatabaseCallback<ArrayList<T>> listener){
-		DatabaseAsyncTask<ArrayList<T>> task = new DatabaseAsyncTask<ArrayList<T>>(listener) {
+	public <T> DatabaseFuture<ArrayList<T>> find(Class<T> cls, String fieldName, String value, DatabaseCallback<ArrayList<T>> listener){
+		return find(new Query<T>(cls).equalTo(fieldName, value), listener);
+	}
+	
+	/**
+	 * Retrieves copies of all stored objects of a given class with a given value for a field with the given name in an ArrayList
+	 * @param cls the class
+	 * @param fieldName the name of the field
+	 * @param value the value 
+	 * @param listener the callback that receives the objects
+	 * @return the DatabaseFuture of an ArrayList of all objects that match the search criteria
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> find(Class<T> cls, String fieldName, boolean value, DatabaseCallback<ArrayList<T>> listener){
+		return find(new Query<T>(cls).equalTo(fieldName, value), listener);
+	}
+
+	/**
+	 * Retrieves copies of all stored objects that match a Query in an ArrayList.
+	 * @param query the Query
+	 * @param listener the callback that receives all objects that match the Query, in the order it specifies
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> find(final Query<T> query, DatabaseCallback<ArrayList<T>> listener){
+		return submitCommittedRead(new Callable<ArrayList<T>>() {
 			@Override
-			protected ArrayList<T> doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				
-				Field field = null;
-				for(Field containedField : DataUtil.getFields(cls)){
-					if(containedField.getName().equals(fieldName)) field = containedField;
+			public ArrayList<T> call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				String whereClause = query.getWhereClause();
+				pm.beginRead();
+				try{
+					Cursor cursor = pm.getCursor(query.getType(), whereClause, query.getWhereArgs(), query.getOrderBy(), query.getLimit());
+					ArrayList<T> list = pc.fetchAllToCache(query.getType(), cursor, query.getFetchPlan());
+					cursor.close();
+					return list;
+				}finally{
+					pm.endRead();
 				}
-				if(field == null) throw new FieldDoesNotExistException();
-				if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_INT) throw new MisMatchedFieldValueTypeException();
+			}
+		}, listener);
+	}
 
-				commit();
-				ArrayList<T> list = new ArrayList<T>();
-				String SQLWhereStatement = fieldName + " = " + value;
-				Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-				if(!cursor.moveToFirst()) return list;
-				while(!cursor.isAfterLast()){
-					int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-					T object = pc.getCopyFromCache(cls, id);
-					if(object != null) list.add(object);
-					else list.add(pc.fetchToCache(cls, cursor));
-					cursor.moveToNext();
+	/**
+	 * Retrieves one page of the stored objects of a given class, ordered by id number. Reading a page far into the table requires
+	 * SQLite to step over all of the rows before it; use getPageAfter() to page through large tables.
+	 * @param cls the class
+	 * @param offset the number of objects to skip
+	 * @param limit the maximum number of objects to return
+	 * @param listener the callback that receives at most limit objects
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> getPage(final Class<T> cls, final int offset, final int limit, DatabaseCallback<ArrayList<T>> listener){
+		return getPage(cls, offset, limit, null, listener);
+	}
+
+	/**
+	 * Retrieves one page of the stored objects of a given class (see getPage(Class, int, int, DatabaseCallback)), loading the fields
+	 * named by a FetchPlan lazily.
+	 * @param cls the class
+	 * @param offset the number of objects to skip
+	 * @param limit the maximum number of objects to return
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @param listener the callback that receives at most limit objects
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> getPage(final Class<T> cls, final int offset, final int limit, final FetchPlan fetchPlan, DatabaseCallback<ArrayList<T>> listener){
+		return submitCommittedRead(new Callable<ArrayList<T>>() {
+			@Override
+			public ArrayList<T> call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				pm.beginRead();
+				try{
+					String idFieldName = DataUtil.getIdField(cls).getName();
+					Cursor cursor = pm.getCursor(cls, null, null, idFieldName, offset + ", " + limit);
+					ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+					cursor.close();
+					return list;
+				}finally{
+					pm.endRead();
 				}
-				cursor.close();
-				return list;
 			}
-		};
-		task.execute();
+		}, listener);
 	}
-	
+
 	/**
-	 * Retrieves copies of all stored objects of a given class with a given value for a field with the given name in an ArrayList
+	 * Retrieves the stored objects of a given class that follow a given id number, ordered by id number. Passing the id number of the
+	 * last object of a page returns the next page. Every page costs the same to read regardless of its position in the table.
 	 * @param cls the class
-	 * @param fieldName the name of the field
-	 * @param value the value 
-	 * @return an ArrayList of all objects that match the search criteria
+	 * @param afterId the id number the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @param listener the callback that receives at most limit objects
 	 */
-	public <T> void find(final Class<T> cls, final String fieldName, final boolean value, DatabaseCallback<ArrayList<T>> listener){
-		DatabaseAsyncTask<ArrayList<T>> task = new DatabaseAsyncTask<ArrayList<T>>(listener) {
+	public <T> DatabaseFuture<ArrayList<T>> getPageAfter(final Class<T> cls, final int afterId, final int limit, DatabaseCallback<ArrayList<T>> listener){
+		return getPageAfter(cls, afterId, limit, null, listener);
+	}
+
+	/**
+	 * Retrieves the stored objects of a given class that follow a given id number (see getPageAfter(Class, int, int,
+	 * DatabaseCallback)), loading the fields named by a FetchPlan lazily.
+	 * @param cls the class
+	 * @param afterId the id number the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @param listener the callback that receives at most limit objects
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> getPageAfter(final Class<T> cls, final int afterId, final int limit, final FetchPlan fetchPlan, DatabaseCallback<ArrayList<T>> listener){
+		return submitCommittedRead(new Callable<ArrayList<T>>() {
 			@Override
-			protected ArrayList<T> doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				
-				Field field = null;
-				for(Field containedField : DataUtil.getFields(cls)){
-					if(containedField.getName().equals(fieldName)) field = containedField;
+			public ArrayList<T> call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				pm.beginRead();
+				try{
+					String idFieldName = DataUtil.getIdField(cls).getName();
+					Cursor cursor = pm.getCursor(cls, idFieldName + " > ?", new String[]{String.valueOf(afterId)}, idFieldName, String.valueOf(limit));
+					ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+					cursor.close();
+					return list;
+				}finally{
+					pm.endRead();
 				}
-				if(field == null) throw new FieldDoesNotExistException();
-				if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_INT) throw new MisMatchedFieldValueTypeException();
+			}
+		}, listener);
+	}
 
-				commit();
-				ArrayList<T> list = new ArrayList<T>();
-				String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-				Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-				if(!cursor.moveToFirst()) return list;
-				while(!cursor.isAfterLast()){
-					int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-					T object = pc.getCopyFromCache(cls, id);
-					if(object != null) list.add(object);
-					else list.add(pc.fetchToCache(cls, cursor));
-					cursor.moveToNext();
+	/**
+	 * Retrieves the stored objects of a given class that follow a given object when ordered by a field and then by id number. Passing
+	 * the field value and id number of the last object of a page returns the next page; pass null and 0 for the first page. Objects
+	 * whose field value is null come first, and a null value with a non-zero id number continues through them. Every page costs the
+	 * same to read regardless of its position if the field is indexed. The field must hold a single value; references and collections
+	 * throw a MisMatchedFieldValueTypeException.
+	 * @param cls the class
+	 * @param fieldName the name of the field the objects are ordered by
+	 * @param afterValue the field value of the object the page starts after, which may be null
+	 * @param afterId the id number of the object the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @param listener the callback that receives at most limit objects
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> getPageAfter(final Class<T> cls, final String fieldName, final Object afterValue, final int afterId, final int limit, DatabaseCallback<ArrayList<T>> listener){
+		return getPageAfter(cls, fieldName, afterValue, afterId, limit, null, listener);
+	}
+
+	/**
+	 * Retrieves the stored objects of a given class that follow a given object when ordered by a field and then by id number (see
+	 * getPageAfter(Class, String, Object, int, int, DatabaseCallback)), loading the fields named by a FetchPlan lazily.
+	 * @param cls the class
+	 * @param fieldName the name of the field the objects are ordered by
+	 * @param afterValue the field value of the object the page starts after, which may be null
+	 * @param afterId the id number of the object the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @param listener the callback that receives at most limit objects
+	 */
+	public <T> DatabaseFuture<ArrayList<T>> getPageAfter(final Class<T> cls, final String fieldName, final Object afterValue, final int afterId, final int limit, final FetchPlan fetchPlan, DatabaseCallback<ArrayList<T>> listener){
+		Field field = DataUtil.getField(cls, fieldName);
+		//a page can only be ordered by a field holding a single value, not by a reference or a collection
+		int fieldType = DataUtil.getFieldTypeId(field);
+		if(fieldType == DataUtil.FIELD_TYPE_NON_PRIMITIVE || fieldType == DataUtil.FIELD_TYPE_COLLECTION) throw new MisMatchedFieldValueTypeException();
+		final String columnName = DataUtil.getColumnName(cls, fieldName);
+		final String afterArg = afterValue == null ? null : DataUtil.toSQLArgument(field, afterValue);
+		return submitCommittedRead(new Callable<ArrayList<T>>() {
+			@Override
+			public ArrayList<T> call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				pm.beginRead();
+				try{
+					String idFieldName = DataUtil.getIdField(cls).getName();
+					String orderBy = columnName + ", " + idFieldName;
+					Cursor cursor;
+					if(afterArg == null){
+						//nulls sort first, so the page continues through the null values and then takes the rest
+						String whereString = "(" + columnName + " IS NULL AND " + idFieldName + " > ?) OR " + columnName + " IS NOT NULL";
+						cursor = pm.getCursor(cls, whereString, new String[]{String.valueOf(afterId)}, orderBy, String.valueOf(limit));
+					}else{
+						String whereString = columnName + " > ? OR (" + columnName + " = ? AND " + idFieldName + " > ?)";
+						cursor = pm.getCursor(cls, whereString, new String[]{afterArg, afterArg, String.valueOf(afterId)}, orderBy, String.valueOf(limit));
+					}
+					ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+					cursor.close();
+					return list;
+				}finally{
+					pm.endRead();
 				}
-				cursor.close();
-				return list;
 			}
-		};
-		task.execute();
+		}, listener);
 	}
 
 	/**
@@ -443,32 +608,52 @@ public class AsyncDataManager {
 	 * @param cls the class
 	 * @return the number of stored objects of the given class
 	 */
-	public <T> void size(final Class<T> cls, DatabaseCallback<Integer> listener){
-		DatabaseAsyncTask<Integer> task = new DatabaseAsyncTask<Integer>(listener) {
+	public <T> DatabaseFuture<Integer> size(final Class<T> cls, DatabaseCallback<Integer> listener){
+		return submitCommittedRead(new Callable<Integer>() {
 			@Override
-			protected Integer doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
-				commit();
-				return pm.size(cls);
+			public Integer call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				pm.beginRead();
+				try{
+					return pm.size(cls);
+				}finally{
+					pm.endRead();
+				}
+			}
+		}, listener);
+	}
+
+	/**
+	 * Creates or upgrades the tables of several classes in a single transaction. A table is otherwise created or upgraded the first
+	 * time its class is used, so calling this right after open() keeps that work out of later calls. Classes whose storage has not
+	 * changed since they were last registered or used are confirmed with a single lookup each.
+	 * @param listener the callback notified once every table is ready
+	 * @param classes the storable classes
+	 */
+	public DatabaseFuture<Void> register(DatabaseCallback<Void> listener, final Class<?>... classes){
+		return executor.submitWrite(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
+				pm.register(classes);
+				return null;
 			}
-		};
-		task.execute();
+		}, priority, listener);
 	}
 
 	/**
 	 * Drops all records of a given class from the database.
 	 * @param recordName the name of the class to be deleted
 	 */
-	public void dropRecords(final String recordName, DatabaseCallback<Void> listener){
-		DatabaseAsyncTask<Void> task = new DatabaseAsyncTask<Void>(listener) {
+	public DatabaseFuture<Void> dropRecords(final String recordName, DatabaseCallback<Void> listener){
+		return executor.submitWrite(new Callable<Void>() {
 			@Override
-			protected Void doInBackground(Void... params) {
-				if(!isOpen) throw new DatabaseNotOpenExpection();
+			public Void call() {
+				if(!isOpen.get()) throw new DatabaseNotOpenExpection();
 				pm.dropRecords(recordName);
 				return null;
 			}
-		};
-		task.execute();
+		}, priority, listener);
 	}
 
 	/**
@@ -478,15 +663,85 @@ public class AsyncDataManager {
 	 * @param value
 	 */
 	public void setDefaultUpgradeValue(int value){
-		if(!isOpen) throw new DatabaseNotOpenExpection();
+		if(!isOpen.get()) throw new DatabaseNotOpenExpection();
 		pm.setDefaultUpgradeValue(value);
 	}
 
+	/**
+	 * Sets the number of read-only database connections used alongside the single writer connection. A number above 0 puts the
+	 * database in write-ahead logging mode: get, getAll, find, getPage and size then read from one of these connections and see the
+	 * last completed commit, so long reads and large commits no longer wait for each other. Takes effect the next time
+	 * the database is opened. Requires Android 3.0; on earlier versions it has no effect.
+	 * @param count the maximum number of read-only connections, or 0 to use one connection for everything
+	 */
+	public void setReadConnections(int count){
+		pm.setReadConnections(count);
+	}
+
+	/**
+	 * Sets the maximum number of pending changes that are applied to the database in a single transaction when committing. By default
+	 * all pending changes are committed in one transaction. Splitting very large commits keeps each transaction small, but a failure
+	 * part way through will leave the already applied chunks in the database.
+	 * @param chunkSize the maximum number of changes per transaction, or 0 to commit everything in one transaction
+	 */
+	public void setCommitChunkSize(int chunkSize){
+		pm.setCommitChunkSize(chunkSize);
+	}
+
+	/**
+	 * Sets whether retrieved objects are shared snapshots instead of private copies. By default every get, getAll, find, getPage and
+	 * getPageAfter returns a private copy of each object, which costs a full copy of the object and everything it contains on every
+	 * read. With shared reads enabled, a cached object is copied once into a snapshot that every later read of it returns until the
+	 * object is changed. Snapshots are shared by all readers and should be treated as read-only: to change an object, modify a copy
+	 * made with copy(Object) and pass that to update(). The cache never holds a snapshot as its own state, so a snapshot that is
+	 * modified anyway cannot corrupt the cache or later reads of the changed object.
+	 * @param sharedReads true to return shared snapshots
+	 */
+	public void setSharedReads(boolean sharedReads){
+		pc.setSharedReads(sharedReads);
+	}
+
+	/**
+	 * Returns a copy of a stored object and all of the objects it contains, which may be safely modified and passed to update().
+	 * @param obj the object to be copied
+	 * @return the copy
+	 */
+	public <T> T copy(T obj){
+		return DataUtil.copy(obj);
+	}
+
+	/**
+	 * Sets the maximum number of objects that DataManagement keeps cached in memory. When the limit is exceeded the least recently
+	 * used objects are evicted and will be read from the database the next time they are needed. By default the cache has no limit
+	 * and objects are only removed when the garbage collector needs memory.
+	 * @param capacity the maximum number of cached objects, or 0 for no limit
+	 */
+	public void setCacheCapacity(int capacity){
+		pc.setCacheCapacity(capacity);
+	}
+
+	/**
+	 * Sets the maximum number of objects of a given class that DataManagement keeps cached in memory.
+	 * @param cls the class
+	 * @param capacity the maximum number of cached objects of the class, or 0 for no limit
+	 */
+	public void setCacheCapacity(Class<?> cls, int capacity){
+		pc.setCacheCapacity(cls, capacity);
+	}
+
+	/**
+	 * Returns the hit, miss, eviction and load counts of the object cache.
+	 * @return a snapshot of the cache statistics
+	 */
+	public CacheStats getCacheStats(){
+		return pc.getCacheStats();
+	}
+
 	/**
 	 * Returns true if the database is open.
 	 * @return true if database is open
 	 */
 	public boolean isOpen(){
-		return isOpen;
+		return isOpen.get();
 	}
 }
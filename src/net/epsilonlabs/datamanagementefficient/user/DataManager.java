@@ -2,18 +2,13 @@ package net.epsilonlabs.datamanagementefficient.user;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.Queue;
-
-import net.epsilonlabs.datamanagementefficient.directive.CreateDirective;
-import net.epsilonlabs.datamanagementefficient.directive.CreateReferenceDirective;
-import net.epsilonlabs.datamanagementefficient.directive.DeleteDirective;
-import net.epsilonlabs.datamanagementefficient.directive.DeleteReferenceDirective;
-import net.epsilonlabs.datamanagementefficient.directive.Directive;
-import net.epsilonlabs.datamanagementefficient.directive.UpdateDirective;
+import java.util.Collection;
+
 import net.epsilonlabs.datamanagementefficient.exception.DatabaseNotOpenExpection;
-import net.epsilonlabs.datamanagementefficient.exception.FieldDoesNotExistException;
 import net.epsilonlabs.datamanagementefficient.exception.MisMatchedFieldValueTypeException;
+import net.epsilonlabs.datamanagementefficient.library.CacheStats;
 import net.epsilonlabs.datamanagementefficient.library.DataUtil;
+import net.epsilonlabs.datamanagementefficient.library.GroupCommitter;
 import net.epsilonlabs.datamanagementefficient.library.PersistenceContext;
 import net.epsilonlabs.datamanagementefficient.library.PersistenceManager;
 import android.content.Context;
@@ -25,22 +20,38 @@ import android.database.Cursor;
  * They must have an int field marked with the @Id annotation and all fields of that class must be of primitive type, String type, or
  * another storable type. The field marked with the @Id annotation is managed entirely by the database and should never be manually set, although
  * it may be accessed to help differentiate objects.
+ * <p>
+ * A DataManager may be shared by several threads without any locking of their own. Each thread opens the DataManager before using it and
+ * closes it afterwards; the database stays open until the last thread has closed it.
+ * <p>
+ * Collections are stored as sets of references to the objects they contain. A stored collection is read back ordered by the id
+ * numbers of its objects rather than by their positions, and holds each object at most once; reordering a collection
+ * or adding an object to it twice is not stored.
  * @author Tom Caputi
  *
  */
 public class DataManager {
 
+	public static final int DURABILITY_DURABLE = 0; //commit(int) waits until the changes are written and synced to storage
+	public static final int DURABILITY_APPLIED = 1; //commit(int) waits until the changes are written, but not necessarily synced
+	public static final int DURABILITY_NONE = 2; //commit(int) returns at once and the changes are written in the background
 	private static DataManager instance;
 	private PersistenceContext pc = null;
 	private PersistenceManager pm = null;
-	private boolean isOpen = false;
+	private int openCount = 0; //the number of calls to open() not yet matched by a call to close(), guarded by this DataManager
+	private volatile boolean isOpen = false;
+	private volatile GroupCommitter groupCommitter; //commits pending changes in the background, or null if group commit is not running
+	private boolean groupCommitEnabled = false; //the following are guarded by this DataManager
+	private int groupCommitMaxDirectives;
+	private long groupCommitMaxBytes;
+	private long groupCommitMaxDelayMillis;
 
 	/**
 	 * Singleton instantiation method for getting a DataManager instance
 	 * @param context the context that is instantiating the DataManager object
 	 * @return a DataManager instance
 	 */
-	public static DataManager getInstance(Context context) {
+	public static synchronized DataManager getInstance(Context context) {
 		if (instance == null) instance = new DataManager(context);
 		return instance;
 	}
@@ -55,37 +66,119 @@ public class DataManager {
 	}
 
 	/**
-	 * Opens DataManager for writing.
+	 * Opens DataManager for writing. Every call must be matched by a call to close(); only the first opens the database.
 	 */
-	public void open(){
-		pm.open();
+	public synchronized void open(){
+		if(openCount == 0){
+			pm.open();
+			if(groupCommitEnabled) startGroupCommit();
+		}
+		openCount++;
 		isOpen = true;
 	}
 
 	/**
-	 * Closes DataManager. This method calls commit() finalizing any changes before closing.
+	 * Opens DataManager for writing and starts creating or upgrading the tables of several classes on a background thread. The
+	 * DataManager can be used immediately; a call that uses a class whose table is still being prepared waits for that table only.
+	 * @param listener the listener notified of the progress on the main thread, or null
+	 * @param classes the storable classes
+	 */
+	public synchronized void open(MigrationListener listener, Class<?>... classes){
+		open();
+		pm.startMigration(classes, listener);
+	}
+
+	/**
+	 * Closes DataManager. This method calls commit() finalizing any changes before closing. The database is only closed once every
+	 * call to open() has been matched by a call to close().
 	 */
-	public void close(){
+	public synchronized void close(){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
+		if(openCount == 1) stopGroupCommit();
 		commit();
-		pm.close();
-		isOpen = false;
+		openCount--;
+		if(openCount == 0){
+			pm.close();
+			isOpen = false;
+		}
+	}
+
+	/**
+	 * Commits all cached changes to the database. All pending changes are applied in a single transaction, so either all of them
+	 * are written or none of them are (see setCommitChunkSize(int) for splitting very large commits).
+	 * @return the number of rows written to the database
+	 */
+	public int commit(){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		return pc.commit();
 	}
 
 	/**
-	 * Commits all cached changes to the database.
+	 * Commits all cached changes to the database with a given durability. With group commit enabled (see enableGroupCommit()), the
+	 * changes are written by the background flush, and threads committing at the same time share a single transaction. Without it,
+	 * the changes are committed by this thread, and DURABILITY_NONE behaves like DURABILITY_APPLIED.
+	 * @param durability DURABILITY_DURABLE to wait until the changes are synced to storage, DURABILITY_APPLIED to wait until they are
+	 * written (in write-ahead logging mode they may then be lost if the device loses power, but not if the application crashes), or
+	 * DURABILITY_NONE to return at once
 	 */
-	public void commit(){
+	public void commit(int durability){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
-		Queue<Directive> pendingDirectives = pc.getPendingDirectivesQueue();
-		for(Directive directive : pendingDirectives){
-			if(directive instanceof CreateDirective) pm.create((CreateDirective)directive);
-			else if(directive instanceof DeleteDirective) pm.delete((DeleteDirective)directive);
-			else if(directive instanceof UpdateDirective) pm.update((UpdateDirective)directive);
-			else if(directive instanceof CreateReferenceDirective) pm.createReference((CreateReferenceDirective)directive);
-			else if(directive instanceof DeleteReferenceDirective) pm.deleteReference((DeleteReferenceDirective)directive);
+		GroupCommitter committer = groupCommitter;
+		if(committer == null) pc.commit(durability == DURABILITY_DURABLE);
+		else if(durability == DURABILITY_NONE) committer.requestFlush();
+		else committer.commit(durability == DURABILITY_DURABLE);
+	}
+
+	/**
+	 * Enables group commit. Pending changes are then committed on a background thread as soon as any of the limits is reached, so
+	 * neither committing after every change nor letting changes build up without limit is needed. Limits of 0 are not checked.
+	 * Group commit runs while the DataManager is open, and changes are still committed by close() and before every read.
+	 * @param maxChanges the number of pending changes that starts a commit
+	 * @param maxBytes the estimated size, in bytes, of the values of the pending changes that starts a commit
+	 * @param maxDelayMillis the time the oldest pending change may wait before a commit starts
+	 */
+	public synchronized void enableGroupCommit(int maxChanges, long maxBytes, long maxDelayMillis){
+		groupCommitEnabled = true;
+		groupCommitMaxDirectives = maxChanges;
+		groupCommitMaxBytes = maxBytes;
+		groupCommitMaxDelayMillis = maxDelayMillis;
+		if(isOpen){
+			stopGroupCommit();
+			startGroupCommit();
 		}
-		pc.clearPendingDirectivesQueue();
+	}
+
+	/**
+	 * Disables group commit. Pending changes are left to be committed by commit(), close() or the next read.
+	 */
+	public synchronized void disableGroupCommit(){
+		groupCommitEnabled = false;
+		stopGroupCommit();
+	}
+
+	/**
+	 * Starts the group commit thread with the current limits.
+	 */
+	private synchronized void startGroupCommit(){
+		groupCommitter = new GroupCommitter(pc, groupCommitMaxDirectives, groupCommitMaxBytes, groupCommitMaxDelayMillis);
+		groupCommitter.start();
+	}
+
+	/**
+	 * Stops the group commit thread, if it is running.
+	 */
+	private synchronized void stopGroupCommit(){
+		if(groupCommitter == null) return;
+		groupCommitter.stop();
+		groupCommitter = null;
+	}
+
+	/**
+	 * Lets the group commit thread know that changes have been queued.
+	 */
+	private void changed(){
+		GroupCommitter committer = groupCommitter;
+		if(committer != null) committer.changed();
 	}
 
 	/**
@@ -96,9 +189,24 @@ public class DataManager {
 	public int add(Object obj){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
 		pc.create(obj);
+		changed();
 		return DataUtil.getId(obj);
 	}
 
+	/**
+	 * Adds several objects to the database at once. This has the same effect as calling add(Object) on each of them, but records the
+	 * changes in one pass and assigns large numbers of new objects of a class their id numbers in a single block, which makes importing
+	 * many objects much faster.
+	 * @param objs the objects to be stored
+	 * @return the assigned id numbers, in the order of the collection
+	 */
+	public int[] addAll(Collection<?> objs){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		int[] ids = pc.createAll(objs);
+		changed();
+		return ids;
+	}
+
 	/**
 	 * Deletes an object from the database. 
 	 * @param cls the class of the object
@@ -107,6 +215,19 @@ public class DataManager {
 	public void delete(Class<?> cls, int id){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
 		pc.delete(cls, id);
+		changed();
+	}
+
+	/**
+	 * Deletes several objects of a class from the database at once. This has the same effect as calling delete(Class, int) for each
+	 * id number, but fetches the objects that are not cached with a few queries instead of one each.
+	 * @param cls the class of the objects
+	 * @param ids the id numbers of the objects
+	 */
+	public void deleteAll(Class<?> cls, int[] ids){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		pc.deleteAll(cls, ids);
+		changed();
 	}
 
 	/**
@@ -117,6 +238,21 @@ public class DataManager {
 		if(!isOpen) throw new DatabaseNotOpenExpection();
 		if(obj == null) throw new NullPointerException();
 		pc.update(obj);
+		changed();
+	}
+
+	/**
+	 * Updates several objects in the database at once. This has the same effect as calling update(Object) on each of them, but fetches
+	 * the stored states that are not cached with a few queries instead of one each.
+	 * @param objs the objects to be updated
+	 */
+	public <T> void updateAll(Collection<T> objs){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		for(T obj : objs){
+			if(obj == null) throw new NullPointerException();
+		}
+		pc.updateAll(objs);
+		changed();
 	}
 
 	/**
@@ -126,10 +262,27 @@ public class DataManager {
 	 * @return
 	 */
 	public <T> T get(Class<T> cls, int id){
+		return get(cls, id, null);
+	}
+
+	/**
+	 * Retrieves an object from the database, loading the fields named by a FetchPlan lazily. If the object is already cached, the
+	 * cached object is used as it is.
+	 * @param cls the class of the object
+	 * @param id the id number of the object
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @return the object
+	 */
+	public <T> T get(Class<T> cls, int id, FetchPlan fetchPlan){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
-		T object = pc.getCopyFromCache(cls, id);
+		T object = pc.getFromCache(cls, id);
 		if(object != null) return object;
-		return pc.fetchToCache(cls, id);
+		pm.beginRead();
+		try{
+			return pc.fetchToCache(cls, id, fetchPlan);
+		}finally{
+			pm.endRead();
+		}
 	}
 
 	/**
@@ -138,21 +291,27 @@ public class DataManager {
 	 * @return an ArrayList of all stored objects of a given class
 	 */
 	public <T> ArrayList<T> getAll(Class<T> cls){
+		return getAll(cls, null);
+	}
+
+	/**
+	 * Retrieves copies of all stored objects of a given class in an ArrayList, loading the fields named by a FetchPlan lazily.
+	 * @param cls the class
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @return an ArrayList of all stored objects of a given class
+	 */
+	public <T> ArrayList<T> getAll(Class<T> cls, FetchPlan fetchPlan){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
 		commit();
-		ArrayList<T> list = new ArrayList<T>();
-		
-		Cursor cursor = pm.getCursor(cls, null);
-		if(!cursor.moveToFirst()) return list;
-		while(!cursor.isAfterLast()){
-			int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-			T object = pc.getCopyFromCache(cls, id);
-			if(object != null) list.add(object);
-			else list.add(pc.fetchToCache(cls, cursor));
-			cursor.moveToNext();
+		pm.beginRead();
+		try{
+			Cursor cursor = pm.getCursor(cls, null);
+			ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+			cursor.close();
+			return list;
+		}finally{
+			pm.endRead();
 		}
-		cursor.close();
-		return list;
 	}
 
 	/**
@@ -163,29 +322,7 @@ public class DataManager {
 	 * @return an ArrayList of all objects that match the search criteria
 	 */
 	public <T> ArrayList<T> find(Class<T> cls, String fieldName, int value){
-		if(!isOpen) throw new DatabaseNotOpenExpection();
-		
-		Field field = null;
-		for(Field containedField : DataUtil.getFields(cls)){
-			if(containedField.getName().equals(fieldName)) field = containedField;
-		}
-		if(field == null) throw new FieldDoesNotExistException();
-		if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_INT) throw new MisMatchedFieldValueTypeException();
-
-		commit();
-		ArrayList<T> list = new ArrayList<T>();
-		String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-		Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-		if(!cursor.moveToFirst()) return list;
-		while(!cursor.isAfterLast()){
-			int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-			T object = pc.getCopyFromCache(cls, id);
-			if(object != null) list.add(object);
-			else list.add(pc.fetchToCache(cls, cursor));
-			cursor.moveToNext();
-		}
-		cursor.close();
-		return list;
+		return find(new Query<T>(cls).equalTo(fieldName, value));
 	}
 	
 	/**
@@ -196,29 +333,7 @@ public class DataManager {
 	 * @return an ArrayList of all objects that match the search criteria
 	 */
 	public <T> ArrayList<T> find(Class<T> cls, String fieldName, float value){
-		if(!isOpen) throw new DatabaseNotOpenExpection();
-		
-		Field field = null;
-		for(Field containedField : DataUtil.getFields(cls)){
-			if(containedField.getName().equals(fieldName)) field = containedField;
-		}
-		if(field == null) throw new FieldDoesNotExistException();
-		if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_FLOAT) throw new MisMatchedFieldValueTypeException();
-
-		commit();
-		ArrayList<T> list = new ArrayList<T>();
-		String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-		Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-		if(!cursor.moveToFirst()) return list;
-		while(!cursor.isAfterLast()){
-			int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-			T object = pc.getCopyFromCache(cls, id);
-			if(object != null) list.add(object);
-			else list.add(pc.fetchToCache(cls, cursor));
-			cursor.moveToNext();
-		}
-		cursor.close();
-		return list;
+		return find(new Query<T>(cls).equalTo(fieldName, value));
 	}
 	
 	/**
@@ -229,29 +344,7 @@ public class DataManager {
 	 * @return an ArrayList of all objects that match the search criteria
 	 */
 	public <T> ArrayList<T> find(Class<T> cls, String fieldName, double value){
-		if(!isOpen) throw new DatabaseNotOpenExpection();
-		
-		Field field = null;
-		for(Field containedField : DataUtil.getFields(cls)){
-			if(containedField.getName().equals(fieldName)) field = containedField;
-		}
-		if(field == null) throw new FieldDoesNotExistException();
-		if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_DOUBLE) throw new MisMatchedFieldValueTypeException();
-
-		commit();
-		ArrayList<T> list = new ArrayList<T>();
-		String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-		Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-		if(!cursor.moveToFirst()) return list;
-		while(!cursor.isAfterLast()){
-			int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-			T object = pc.getCopyFromCache(cls, id);
-			if(object != null) list.add(object);
-			else list.add(pc.fetchToCache(cls, cursor));
-			cursor.moveToNext();
-		}
-		cursor.close();
-		return list;
+		return find(new Query<T>(cls).equalTo(fieldName, value));
 	}
 	
 	/**
@@ -262,29 +355,7 @@ public class DataManager {
 	 * @return an ArrayList of all objects that match the search criteria
 	 */
 	public <T> ArrayList<T> find(Class<T> cls, String fieldName, long value){
-		if(!isOpen) throw new DatabaseNotOpenExpection();
-		
-		Field field = null;
-		for(Field containedField : DataUtil.getFields(cls)){
-			if(containedField.getName().equals(fieldName)) field = containedField;
-		}
-		if(field == null) throw new FieldDoesNotExistException();
-		if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_LONG) throw new MisMatchedFieldValueTypeException();
-
-		commit();
-		ArrayList<T> list = new ArrayList<T>();
-		String SQLWhereStatement = fieldName + " = " + String.valueOf(value);
-		Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-		if(!cursor.moveToFirst()) return list;
-		while(!cursor.isAfterLast()){
-			int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-			T object = pc.getCopyFromCache(cls, id);
-			if(object != null) list.add(object);
-			else list.add(pc.fetchToCache(cls, cursor));
-			cursor.moveToNext();
-		}
-		cursor.close();
-		return list;
+		return find(new Query<T>(cls).equalTo(fieldName, value));
 	}
 	
 	/**
@@ -295,29 +366,7 @@ public class DataManager {
 	 * @return an ArrayList of all objects that match the search criteria
 	 */
 	public <T> ArrayList<T> find(Class<T> cls, String fieldName, String value){
-		if(!isOpen) throw new DatabaseNotOpenExpection();
-		
-		Field field = null;
-		for(Field containedField : DataUtil.getFields(cls)){
-			if(containedField.getName().equals(fieldName)) field = containedField;
-		}
-		if(field == null) throw new FieldDoesNotExistException();
-		if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_STRING) throw new MisMatchedFieldValueTypeException();
-
-		commit();
-		ArrayList<T> list = new ArrayList<T>();
-		String SQLWhereStatement = fieldName + " = '" + String.valueOf(value) + "'";
-		Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-		if(!cursor.moveToFirst()) return list;
-		while(!cursor.isAfterLast()){
-			int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-			T object = pc.getCopyFromCache(cls, id);
-			if(object != null) list.add(object);
-			else list.add(pc.fetchToCache(cls, cursor));
-			cursor.moveToNext();
-		}
-		cursor.close();
-		return list;
+		return find(new Query<T>(cls).equalTo(fieldName, value));
 	}
 	
 	/**
@@ -328,31 +377,205 @@ public class DataManager {
 	 * @return an ArrayList of all objects that match the search criteria
 	 */
 	public <T> ArrayList<T> find(Class<T> cls, String fieldName, boolean value){
+		return find(new Query<T>(cls).equalTo(fieldName, value));
+	}
+
+	/**
+	 * Retrieves copies of all stored objects that match a Query in an ArrayList.
+	 * @param query the Query
+	 * @return an ArrayList of all objects that match the Query, in the order it specifies
+	 */
+	public <T> ArrayList<T> find(Query<T> query){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		String whereClause = query.getWhereClause();
+		commit();
+		pm.beginRead();
+		try{
+			Cursor cursor = pm.getCursor(query.getType(), whereClause, query.getWhereArgs(), query.getOrderBy(), query.getLimit());
+			ArrayList<T> list = pc.fetchAllToCache(query.getType(), cursor, query.getFetchPlan());
+			cursor.close();
+			return list;
+		}finally{
+			pm.endRead();
+		}
+	}
+
+	/**
+	 * Returns an iterator over all stored objects of a given class. Objects are read from the database one at a time as the iterator
+	 * advances, so memory use does not depend on the number of stored objects. The iterator must be closed if it is not read to the end.
+	 * @param cls the class
+	 * @return an ObjectIterator over all stored objects of the given class
+	 */
+	public <T> ObjectIterator<T> iterate(Class<T> cls){
+		return iterate(cls, (FetchPlan) null);
+	}
+
+	/**
+	 * Returns an iterator over all stored objects of a given class, loading the fields named by a FetchPlan lazily (see iterate(Class)).
+	 * @param cls the class
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @return an ObjectIterator over all stored objects of the given class
+	 */
+	public <T> ObjectIterator<T> iterate(Class<T> cls, FetchPlan fetchPlan){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		commit();
+		Cursor cursor = pm.getCursor(cls, null);
+		return new ObjectIterator<T>(cls, cursor, pc, fetchPlan);
+	}
+
+	/**
+	 * Returns an iterator over all stored objects of a given class with a given value for a field with the given name (see iterate(Class)).
+	 * The value must be an Integer, Float, Double, Long, String or Boolean matching the type of the field.
+	 * @param cls the class
+	 * @param fieldName the name of the field
+	 * @param value the value
+	 * @return an ObjectIterator over all objects that match the search criteria
+	 */
+	public <T> ObjectIterator<T> iterate(Class<T> cls, String fieldName, Object value){
+		return iterate(new Query<T>(cls).equalTo(fieldName, value));
+	}
+
+	/**
+	 * Returns an iterator over all stored objects that match a Query, in the order it specifies (see iterate(Class)).
+	 * @param query the Query
+	 * @return an ObjectIterator over all objects that match the Query
+	 */
+	public <T> ObjectIterator<T> iterate(Query<T> query){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		String whereClause = query.getWhereClause();
+		commit();
+		Cursor cursor = pm.getCursor(query.getType(), whereClause, query.getWhereArgs(), query.getOrderBy(), query.getLimit());
+		return new ObjectIterator<T>(query.getType(), cursor, pc, query.getFetchPlan());
+	}
+
+	/**
+	 * Retrieves one page of the stored objects of a given class, ordered by id number. Reading a page far into the table requires
+	 * SQLite to step over all of the rows before it; use getPageAfter() to page through large tables.
+	 * @param cls the class
+	 * @param offset the number of objects to skip
+	 * @param limit the maximum number of objects to return
+	 * @return an ArrayList of at most limit objects
+	 */
+	public <T> ArrayList<T> getPage(Class<T> cls, int offset, int limit){
+		return getPage(cls, offset, limit, null);
+	}
+
+	/**
+	 * Retrieves one page of the stored objects of a given class (see getPage(Class, int, int)), loading the fields named by a
+	 * FetchPlan lazily.
+	 * @param cls the class
+	 * @param offset the number of objects to skip
+	 * @param limit the maximum number of objects to return
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @return an ArrayList of at most limit objects
+	 */
+	public <T> ArrayList<T> getPage(Class<T> cls, int offset, int limit, FetchPlan fetchPlan){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		commit();
+		pm.beginRead();
+		try{
+			String idFieldName = DataUtil.getIdField(cls).getName();
+			Cursor cursor = pm.getCursor(cls, null, null, idFieldName, offset + ", " + limit);
+			ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+			cursor.close();
+			return list;
+		}finally{
+			pm.endRead();
+		}
+	}
+
+	/**
+	 * Retrieves the stored objects of a given class that follow a given id number, ordered by id number. Passing the id number of the
+	 * last object of a page returns the next page. Every page costs the same to read regardless of its position in the table.
+	 * @param cls the class
+	 * @param afterId the id number the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @return an ArrayList of at most limit objects
+	 */
+	public <T> ArrayList<T> getPageAfter(Class<T> cls, int afterId, int limit){
+		return getPageAfter(cls, afterId, limit, null);
+	}
+
+	/**
+	 * Retrieves the stored objects of a given class that follow a given id number (see getPageAfter(Class, int, int)), loading the
+	 * fields named by a FetchPlan lazily.
+	 * @param cls the class
+	 * @param afterId the id number the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @return an ArrayList of at most limit objects
+	 */
+	public <T> ArrayList<T> getPageAfter(Class<T> cls, int afterId, int limit, FetchPlan fetchPlan){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
-		
-		Field field = null;
-		for(Field containedField : DataUtil.getFields(cls)){
-			if(containedField.getName().equals(fieldName)) field = containedField;
+		commit();
+		pm.beginRead();
+		try{
+			String idFieldName = DataUtil.getIdField(cls).getName();
+			Cursor cursor = pm.getCursor(cls, idFieldName + " > ?", new String[]{String.valueOf(afterId)}, idFieldName, String.valueOf(limit));
+			ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+			cursor.close();
+			return list;
+		}finally{
+			pm.endRead();
 		}
-		if(field == null) throw new FieldDoesNotExistException();
-		if(DataUtil.getFieldTypeId(field) != DataUtil.FIELD_TYPE_BOOLEAN) throw new MisMatchedFieldValueTypeException();
+	}
+
+	/**
+	 * Retrieves the stored objects of a given class that follow a given object when ordered by a field and then by id number. Passing
+	 * the field value and id number of the last object of a page returns the next page; pass null and 0 for the first page. Objects
+	 * whose field value is null come first, and a null value with a non-zero id number continues through them. Every page costs the
+	 * same to read regardless of its position if the field is indexed. The field must hold a single value; references and collections
+	 * throw a MisMatchedFieldValueTypeException.
+	 * @param cls the class
+	 * @param fieldName the name of the field the objects are ordered by
+	 * @param afterValue the field value of the object the page starts after, which may be null
+	 * @param afterId the id number of the object the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @return an ArrayList of at most limit objects
+	 */
+	public <T> ArrayList<T> getPageAfter(Class<T> cls, String fieldName, Object afterValue, int afterId, int limit){
+		return getPageAfter(cls, fieldName, afterValue, afterId, limit, null);
+	}
 
+	/**
+	 * Retrieves the stored objects of a given class that follow a given object when ordered by a field and then by id number (see
+	 * getPageAfter(Class, String, Object, int, int)), loading the fields named by a FetchPlan lazily.
+	 * @param cls the class
+	 * @param fieldName the name of the field the objects are ordered by
+	 * @param afterValue the field value of the object the page starts after, which may be null
+	 * @param afterId the id number of the object the page starts after, or 0 for the first page
+	 * @param limit the maximum number of objects to return
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @return an ArrayList of at most limit objects
+	 */
+	public <T> ArrayList<T> getPageAfter(Class<T> cls, String fieldName, Object afterValue, int afterId, int limit, FetchPlan fetchPlan){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		Field field = DataUtil.getField(cls, fieldName);
+		//a page can only be ordered by a field holding a single value, not by a reference or a collection
+		int fieldType = DataUtil.getFieldTypeId(field);
+		if(fieldType == DataUtil.FIELD_TYPE_NON_PRIMITIVE || fieldType == DataUtil.FIELD_TYPE_COLLECTION) throw new MisMatchedFieldValueTypeException();
+		String columnName = DataUtil.getColumnName(cls, fieldName);
+		String afterArg = afterValue == null ? null : DataUtil.toSQLArgument(field, afterValue);
 		commit();
-		ArrayList<T> list = new ArrayList<T>();
-		String SQLWhereStatement = fieldName + " = ";
-		if(value) SQLWhereStatement += String.valueOf(1);
-		else SQLWhereStatement += String.valueOf(0);
-		Cursor cursor = pm.getCursor(cls, SQLWhereStatement);
-		if(!cursor.moveToFirst()) return list;
-		while(!cursor.isAfterLast()){
-			int id = cursor.getInt(cursor.getColumnIndex(DataUtil.getIdField(cls).getName()));
-			T object = pc.getCopyFromCache(cls, id);
-			if(object != null) list.add(object);
-			else list.add(pc.fetchToCache(cls, cursor));
-			cursor.moveToNext();
+		pm.beginRead();
+		try{
+			String idFieldName = DataUtil.getIdField(cls).getName();
+			String orderBy = columnName + ", " + idFieldName;
+			Cursor cursor;
+			if(afterArg == null){
+				//nulls sort first, so the page continues through the null values and then takes the rest
+				String whereString = "(" + columnName + " IS NULL AND " + idFieldName + " > ?) OR " + columnName + " IS NOT NULL";
+				cursor = pm.getCursor(cls, whereString, new String[]{String.valueOf(afterId)}, orderBy, String.valueOf(limit));
+			}else{
+				String whereString = columnName + " > ? OR (" + columnName + " = ? AND " + idFieldName + " > ?)";
+				cursor = pm.getCursor(cls, whereString, new String[]{afterArg, afterArg, String.valueOf(afterId)}, orderBy, String.valueOf(limit));
+			}
+			ArrayList<T> list = pc.fetchAllToCache(cls, cursor, fetchPlan);
+			cursor.close();
+			return list;
+		}finally{
+			pm.endRead();
 		}
-		cursor.close();
-		return list;
 	}
 
 	/**
@@ -363,7 +586,23 @@ public class DataManager {
 	public <T> int size(Class<T> cls){
 		if(!isOpen) throw new DatabaseNotOpenExpection();
 		commit();
-		return pm.size(cls);
+		pm.beginRead();
+		try{
+			return pm.size(cls);
+		}finally{
+			pm.endRead();
+		}
+	}
+
+	/**
+	 * Creates or upgrades the tables of several classes in a single transaction. A table is otherwise created or upgraded the first
+	 * time its class is used, so calling this right after open() keeps that work out of later calls. Classes whose storage has not
+	 * changed since they were last registered or used are confirmed with a single lookup each.
+	 * @param classes the storable classes
+	 */
+	public void register(Class<?>... classes){
+		if(!isOpen) throw new DatabaseNotOpenExpection();
+		pm.register(classes);
 	}
 
 	/**
@@ -386,6 +625,77 @@ public class DataManager {
 		pm.setDefaultUpgradeValue(value);
 	}
 
+	/**
+	 * Sets the number of read-only database connections used alongside the single writer connection. A number above 0 puts the
+	 * database in write-ahead logging mode: get, getAll, find, getPage and size then read from one of these connections and see the
+	 * last completed commit, so long reads and large commits no longer wait for each other. Takes effect the next time
+	 * the database is opened. Requires Android 3.0; on earlier versions it has no effect.
+	 * @param count the maximum number of read-only connections, or 0 to use one connection for everything
+	 */
+	public void setReadConnections(int count){
+		pm.setReadConnections(count);
+	}
+
+	/**
+	 * Sets the maximum number of pending changes that are applied to the database in a single transaction when committing. By default
+	 * all pending changes are committed in one transaction. Splitting very large commits keeps each transaction small, but a failure
+	 * part way through will leave the already applied chunks in the database.
+	 * @param chunkSize the maximum number of changes per transaction, or 0 to commit everything in one transaction
+	 */
+	public void setCommitChunkSize(int chunkSize){
+		pm.setCommitChunkSize(chunkSize);
+	}
+
+	/**
+	 * Sets whether retrieved objects are shared snapshots instead of private copies. By default every get, getAll, find, getPage and
+	 * getPageAfter returns a private copy of each object, which costs a full copy of the object and everything it contains on every
+	 * read. With shared reads enabled, a cached object is copied once into a snapshot that every later read of it returns until the
+	 * object is changed. Snapshots are shared by all readers and should be treated as read-only: to change an object, modify a copy
+	 * made with copy(Object) and pass that to update(). The cache never holds a snapshot as its own state, so a snapshot that is
+	 * modified anyway cannot corrupt the cache or later reads of the changed object.
+	 * @param sharedReads true to return shared snapshots
+	 */
+	public void setSharedReads(boolean sharedReads){
+		pc.setSharedReads(sharedReads);
+	}
+
+	/**
+	 * Returns a copy of a stored object and all of the objects it contains, which may be safely modified and passed to update().
+	 * @param obj the object to be copied
+	 * @return the copy
+	 */
+	public <T> T copy(T obj){
+		return DataUtil.copy(obj);
+	}
+
+	/**
+	 * Sets the maximum number of objects that DataManagement keeps cached in memory. When the limit is exceeded the least recently
+	 * used objects are evicted and will be read from the database the next time they are needed. Objects with changes that have not
+	 * been committed are never evicted, so the cache may hold more objects than the limit until the next commit. By default the cache
+	 * has no limit and objects are only removed when the garbage collector needs memory.
+	 * @param capacity the maximum number of cached objects, or 0 for no limit
+	 */
+	public void setCacheCapacity(int capacity){
+		pc.setCacheCapacity(capacity);
+	}
+
+	/**
+	 * Sets the maximum number of objects of a given class that DataManagement keeps cached in memory.
+	 * @param cls the class
+	 * @param capacity the maximum number of cached objects of the class, or 0 for no limit
+	 */
+	public void setCacheCapacity(Class<?> cls, int capacity){
+		pc.setCacheCapacity(cls, capacity);
+	}
+
+	/**
+	 * Returns the hit, miss, eviction and load counts of the object cache.
+	 * @return a snapshot of the cache statistics
+	 */
+	public CacheStats getCacheStats(){
+		return pc.getCacheStats();
+	}
+
 	/**
 	 * Returns true if the database is open.
 	 * @return true if database is open
@@ -0,0 +1,30 @@
+package net.epsilonlabs.datamanagementefficient.user;
+
+import java.util.concurrent.Future;
+
+/**
+ * A DatabaseFuture is the pending result of a call to AsyncDataManager. It may be waited for with get(), cancelled until it starts,
+ * given a deadline by which it must start, and given callbacks that receive the result on the main thread. If the call fails, get()
+ * throws an ExecutionException holding the exception it threw; callbacks are only notified of results.
+ * @author Tom Caputi
+ *
+ * @param <T> the type of the result
+ */
+public interface DatabaseFuture<T> extends Future<T> {
+
+	/**
+	 * Sets a deadline by which the call must have started. A call that is still waiting when its deadline passes is dropped, and get()
+	 * throws an ExecutionException holding a DeadlineExceededException. A call that has already started always runs to the end.
+	 * @param millis the time from now in which the call must start
+	 * @return this DatabaseFuture
+	 */
+	public DatabaseFuture<T> expireAfter(long millis);
+
+	/**
+	 * Adds a callback that receives the result on the main thread once the call has succeeded. A callback added after the call has
+	 * succeeded is notified straight away.
+	 * @param callback the callback
+	 * @return this DatabaseFuture
+	 */
+	public DatabaseFuture<T> addCallback(DatabaseCallback<T> callback);
+}
@@ -0,0 +1,74 @@
+package net.epsilonlabs.datamanagementefficient.user;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A FetchPlan overrides which reference and collection fields are loaded lazily for a single query. By default, collection fields
+ * marked with the @Lazy annotation and fields declared as LazyReference are loaded lazily and all others are loaded along with the
+ * object that holds them. Only collection fields declared as an ArrayList (or one of its supertypes) and LazyReference fields can be
+ * loaded lazily; other fields named as lazy are loaded normally.
+ * @author Tom Caputi
+ *
+ */
+public class FetchPlan {
+
+	private Map<Class<?>, Set<String>> lazyFields = new HashMap<Class<?>, Set<String>>(); //holds a map of Classes to the names of fields that are loaded lazily
+	private Map<Class<?>, Set<String>> eagerFields = new HashMap<Class<?>, Set<String>>(); //holds a map of Classes to the names of fields that are loaded immediately
+
+	/**
+	 * Marks fields of a class to be loaded lazily.
+	 * @param cls the class
+	 * @param fieldNames the names of the fields
+	 * @return this FetchPlan
+	 */
+	public FetchPlan lazy(Class<?> cls, String... fieldNames){
+		add(lazyFields, cls, fieldNames);
+		remove(eagerFields, cls, fieldNames);
+		return this;
+	}
+
+	/**
+	 * Marks fields of a class to be loaded along with the objects that hold them, even if they are marked with @Lazy.
+	 * @param cls the class
+	 * @param fieldNames the names of the fields
+	 * @return this FetchPlan
+	 */
+	public FetchPlan eager(Class<?> cls, String... fieldNames){
+		add(eagerFields, cls, fieldNames);
+		remove(lazyFields, cls, fieldNames);
+		return this;
+	}
+
+	/**
+	 * Returns whether a field should be loaded lazily under this plan.
+	 * @param cls the class holding the field
+	 * @param fieldName the name of the field
+	 * @param lazyByDefault whether the field is loaded lazily when the plan does not mention it
+	 * @return true if the field should be loaded lazily
+	 */
+	public boolean isLazy(Class<?> cls, String fieldName, boolean lazyByDefault){
+		Set<String> classLazyFields = lazyFields.get(cls);
+		if(classLazyFields != null && classLazyFields.contains(fieldName)) return true;
+		Set<String> classEagerFields = eagerFields.get(cls);
+		if(classEagerFields != null && classEagerFields.contains(fieldName)) return false;
+		return lazyByDefault;
+	}
+
+	private static void add(Map<Class<?>, Set<String>> fieldMap, Class<?> cls, String... fieldNames){
+		Set<String> classFields = fieldMap.get(cls);
+		if(classFields == null){
+			classFields = new HashSet<String>();
+			fieldMap.put(cls, classFields);
+		}
+		for(String fieldName : fieldNames) classFields.add(fieldName);
+	}
+
+	private static void remove(Map<Class<?>, Set<String>> fieldMap, Class<?> cls, String... fieldNames){
+		Set<String> classFields = fieldMap.get(cls);
+		if(classFields == null) return;
+		for(String fieldName : fieldNames) classFields.remove(fieldName);
+	}
+}
@@ -0,0 +1,118 @@
+package net.epsilonlabs.datamanagementefficient.user;
+
+import net.epsilonlabs.datamanagementefficient.library.DataUtil;
+import net.epsilonlabs.datamanagementefficient.library.LazyResolver;
+
+/**
+ * A LazyReference holds a reference to another storable object that is only read from the database the first time get() is called.
+ * Declare a field as LazyReference<OtherStorableClass> instead of OtherStorableClass to defer loading of the referenced object. It is
+ * stored exactly like a plain reference. The referenced object is loaded once even if several threads call get() at the same time.
+ * @author Tom Caputi
+ *
+ * @param <T> the class of the referenced object
+ */
+public class LazyReference<T> {
+
+	private T value;
+	private Class<T> type;
+	private int id;
+	private volatile LazyResolver resolver; //resolves the referenced object, or null once it has been loaded
+
+	/**
+	 * Constructor for an empty reference.
+	 */
+	public LazyReference(){
+	}
+
+	/**
+	 * Constructor for a reference to an object that is already loaded.
+	 * @param value the referenced object
+	 */
+	public LazyReference(T value){
+		this.value = value;
+	}
+
+	/**
+	 * Constructor for a deferred reference. This constructor is used by DataManagement when reading objects from the database.
+	 * @param resolver the LazyResolver that loads the referenced object
+	 * @param type the class of the referenced object
+	 * @param id the id number of the referenced object
+	 */
+	public LazyReference(LazyResolver resolver, Class<T> type, int id){
+		this.resolver = resolver;
+		this.type = type;
+		this.id = id;
+	}
+
+	/**
+	 * Returns the referenced object, loading it if it has not been loaded yet.
+	 * @return the referenced object or null
+	 */
+	public T get(){
+		if(resolver != null){
+			synchronized(this){
+				LazyResolver currentResolver = resolver;
+				if(currentResolver != null){
+					value = type.cast(currentResolver.resolveReference(type, id));
+					resolver = null;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Sets the referenced object.
+	 * @param value the referenced object or null
+	 */
+	public void set(T value){
+		synchronized(this){
+			this.value = value;
+			this.resolver = null;
+		}
+	}
+
+	/**
+	 * Returns true if the referenced object has been loaded.
+	 * @return true if the object is loaded
+	 */
+	public boolean isLoaded(){
+		return resolver == null;
+	}
+
+	/**
+	 * Returns true if the reference does not point to an object.
+	 * @return true if there is no referenced object
+	 */
+	public boolean isNull(){
+		return resolver == null && value == null;
+	}
+
+	/**
+	 * Returns the id number of the referenced object without loading it.
+	 * @return the id number, or 0 if there is no referenced object
+	 */
+	public int getId(){
+		if(resolver != null) return id;
+		if(value == null) return 0;
+		return DataUtil.getId(value);
+	}
+
+	/**
+	 * Returns a new, still deferred LazyReference to the same object, or null if the referenced object has already been loaded.
+	 * @return the deferred copy, or null
+	 */
+	public LazyReference<T> deferredCopy(){
+		LazyResolver currentResolver = resolver;
+		if(currentResolver == null) return null;
+		return new LazyReference<T>(currentResolver, type, id);
+	}
+
+	/**
+	 * Returns the referenced object if it has been loaded, without loading it.
+	 * @return the loaded object, or null
+	 */
+	public T peek(){
+		return value;
+	}
+}
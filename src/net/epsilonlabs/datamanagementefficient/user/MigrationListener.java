@@ -0,0 +1,33 @@
+package net.epsilonlabs.datamanagementefficient.user;
+
+/**
+ * A MigrationListener is notified, on the main thread, of the progress of the tables prepared in the background after
+ * DataManager.open(MigrationListener, Class...).
+ * @author Tom Caputi
+ *
+ */
+public interface MigrationListener {
+
+	/**
+	 * Called after the table of a class has been created, upgraded or confirmed to be up to date.
+	 * @param cls the class
+	 * @param elapsedMillis the time it took to prepare the table
+	 * @param completedCount the number of tables prepared so far
+	 * @param totalCount the number of tables to be prepared
+	 */
+	public void onTableMigrated(Class<?> cls, long elapsedMillis, int completedCount, int totalCount);
+
+	/**
+	 * Called if the table of a class could not be prepared. The remaining tables are still prepared, and the failed table is prepared
+	 * again the next time its class is used.
+	 * @param cls the class
+	 * @param e the exception thrown while preparing the table
+	 */
+	public void onMigrationFailed(Class<?> cls, RuntimeException e);
+
+	/**
+	 * Called once every table has been prepared or has failed.
+	 * @param elapsedMillis the time it took to prepare all tables
+	 */
+	public void onMigrationComplete(long elapsedMillis);
+}
@@ -0,0 +1,73 @@
+package net.epsilonlabs.datamanagementefficient.user;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.epsilonlabs.datamanagementefficient.library.PersistenceContext;
+import android.database.Cursor;
+
+/**
+ * An ObjectIterator reads stored objects one at a time from an open Cursor, so only the current object needs to be held in memory.
+ * Objects that are already cached are taken from the cache; all other objects are read from the database as they are reached and
+ * are not added to the cache. The underlying Cursor is closed once the last object has been read, or when close() is called. An
+ * iterator that is not read to the end must be closed.
+ * @author Tom Caputi
+ *
+ * @param <T> the class of the objects
+ */
+public class ObjectIterator<T> implements Iterator<T>, Closeable {
+
+	private Class<T> cls;
+	private Cursor cursor;
+	private PersistenceContext pc;
+	private FetchPlan fetchPlan;
+	private boolean hasNext;
+
+	/**
+	 * Constructor. Moves the Cursor to its first row.
+	 * @param cls the class of the objects
+	 * @param cursor a Cursor over the table of the given class
+	 * @param pc the PersistenceContext used to read the objects
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 */
+	public ObjectIterator(Class<T> cls, Cursor cursor, PersistenceContext pc, FetchPlan fetchPlan){
+		this.cls = cls;
+		this.cursor = cursor;
+		this.pc = pc;
+		this.fetchPlan = fetchPlan;
+		this.hasNext = cursor.moveToFirst();
+		if(!hasNext) close();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	@Override
+	public T next() {
+		if(!hasNext) throw new NoSuchElementException();
+		T object = pc.getOrFetch(cls, cursor, fetchPlan);
+		hasNext = cursor.moveToNext();
+		if(!hasNext) close();
+		return object;
+	}
+
+	/**
+	 * Not supported. Use DataManager.delete() to delete objects.
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Closes the underlying Cursor. No further objects can be read.
+	 */
+	@Override
+	public void close() {
+		hasNext = false;
+		if(!cursor.isClosed()) cursor.close();
+	}
+}
@@ -0,0 +1,354 @@
+package net.epsilonlabs.datamanagementefficient.user;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import net.epsilonlabs.datamanagementefficient.library.DataUtil;
+
+/**
+ * A Query describes which stored objects of a class should be retrieved, in what order and how many. Conditions are joined with AND
+ * unless or() is called before them, and may be grouped with beginGroup() and endGroup(). The Query is compiled to SQL in which every
+ * value is a bound argument, so queries that differ only in their values share the same SQL and the same compiled statement. Values
+ * must be an Integer, Double, Float, Long, String or Boolean matching the type of the field they are compared with.
+ * @author Tom Caputi
+ *
+ * @param <T> the class of the objects
+ */
+public class Query<T> {
+
+	private Class<T> cls;
+	private StringBuilder whereClause = new StringBuilder(); //the SQL where clause built so far, with a ? for each argument
+	private ArrayList<String> whereArgs = new ArrayList<String>(); //the arguments bound to the where clause, in order
+	private StringBuilder orderBy = new StringBuilder(); //the SQL ORDER BY clause built so far
+	private boolean nextIsOr = false; //true if the next condition is joined with OR
+	private boolean needsOperator = false; //false at the start of the clause and of each group
+	private int openGroups = 0; //the number of groups begun but not yet ended
+	private int limit = -1;
+	private int offset = 0;
+	private FetchPlan fetchPlan = null;
+
+	/**
+	 * Constructor. A Query without conditions matches every stored object of the class.
+	 * @param cls the class of the objects
+	 */
+	public Query(Class<T> cls){
+		this.cls = cls;
+	}
+
+	/**
+	 * Matches objects whose field is equal to a value.
+	 * @param fieldName the name of the field
+	 * @param value the value
+	 * @return this Query
+	 */
+	public Query<T> equalTo(String fieldName, Object value){
+		return addComparison(fieldName, " = ?", value);
+	}
+
+	/**
+	 * Matches objects whose field is not equal to a value.
+	 * @param fieldName the name of the field
+	 * @param value the value
+	 * @return this Query
+	 */
+	public Query<T> notEqualTo(String fieldName, Object value){
+		return addComparison(fieldName, " <> ?", value);
+	}
+
+	/**
+	 * Matches objects whose field is greater than a value.
+	 * @param fieldName the name of the field
+	 * @param value the value
+	 * @return this Query
+	 */
+	public Query<T> greaterThan(String fieldName, Object value){
+		return addComparison(fieldName, " > ?", value);
+	}
+
+	/**
+	 * Matches objects whose field is greater than or equal to a value.
+	 * @param fieldName the name of the field
+	 * @param value the value
+	 * @return this Query
+	 */
+	public Query<T> greaterThanOrEqualTo(String fieldName, Object value){
+		return addComparison(fieldName, " >= ?", value);
+	}
+
+	/**
+	 * Matches objects whose field is less than a value.
+	 * @param fieldName the name of the field
+	 * @param value the value
+	 * @return this Query
+	 */
+	public Query<T> lessThan(String fieldName, Object value){
+		return addComparison(fieldName, " < ?", value);
+	}
+
+	/**
+	 * Matches objects whose field is less than or equal to a value.
+	 * @param fieldName the name of the field
+	 * @param value the value
+	 * @return this Query
+	 */
+	public Query<T> lessThanOrEqualTo(String fieldName, Object value){
+		return addComparison(fieldName, " <= ?", value);
+	}
+
+	/**
+	 * Matches objects whose field lies between two values, inclusive.
+	 * @param fieldName the name of the field
+	 * @param low the lowest matching value
+	 * @param high the highest matching value
+	 * @return this Query
+	 */
+	public Query<T> between(String fieldName, Object low, Object high){
+		Field field = DataUtil.getField(cls, fieldName);
+		addCondition(getColumnName(fieldName) + " BETWEEN ? AND ?");
+		whereArgs.add(DataUtil.toSQLArgument(field, low));
+		whereArgs.add(DataUtil.toSQLArgument(field, high));
+		return this;
+	}
+
+	/**
+	 * Matches objects whose field is equal to any of a set of values. A set with no values matches no objects. SQLite limits a
+	 * statement to 999 arguments, so very large sets should be split across several queries.
+	 * @param fieldName the name of the field
+	 * @param values the values
+	 * @return this Query
+	 */
+	public Query<T> in(String fieldName, Object... values){
+		Field field = DataUtil.getField(cls, fieldName);
+		if(values.length == 0){
+			addCondition("0");
+			return this;
+		}
+		StringBuilder condition = new StringBuilder(getColumnName(fieldName)).append(" IN (");
+		for(int i=0; i<values.length; i++){
+			if(i != 0) condition.append(", ");
+			condition.append("?");
+		}
+		condition.append(")");
+		addCondition(condition.toString());
+		for(Object value : values) whereArgs.add(DataUtil.toSQLArgument(field, value));
+		return this;
+	}
+
+	/**
+	 * Matches objects whose field is null.
+	 * @param fieldName the name of the field
+	 * @return this Query
+	 */
+	public Query<T> isNull(String fieldName){
+		addCondition(getColumnName(fieldName) + " IS NULL");
+		return this;
+	}
+
+	/**
+	 * Matches objects whose field is not null.
+	 * @param fieldName the name of the field
+	 * @return this Query
+	 */
+	public Query<T> isNotNull(String fieldName){
+		addCondition(getColumnName(fieldName) + " IS NOT NULL");
+		return this;
+	}
+
+	/**
+	 * Joins the next condition or group with AND. This is the default.
+	 * @return this Query
+	 */
+	public Query<T> and(){
+		nextIsOr = false;
+		return this;
+	}
+
+	/**
+	 * Joins the next condition or group with OR.
+	 * @return this Query
+	 */
+	public Query<T> or(){
+		nextIsOr = true;
+		return this;
+	}
+
+	/**
+	 * Begins a group of conditions that is evaluated before being joined with the conditions around it.
+	 * @return this Query
+	 */
+	public Query<T> beginGroup(){
+		appendOperator();
+		whereClause.append("(");
+		needsOperator = false;
+		openGroups++;
+		return this;
+	}
+
+	/**
+	 * Ends the most recently begun group of conditions.
+	 * @return this Query
+	 */
+	public Query<T> endGroup(){
+		if(openGroups == 0) throw new IllegalStateException("endGroup() called without a matching beginGroup()");
+		whereClause.append(")");
+		needsOperator = true;
+		openGroups--;
+		return this;
+	}
+
+	/**
+	 * Orders the objects by a field, in ascending order. Successive calls order by each field in turn.
+	 * @param fieldName the name of the field
+	 * @return this Query
+	 */
+	public Query<T> orderBy(String fieldName){
+		return addOrder(fieldName, " ASC");
+	}
+
+	/**
+	 * Orders the objects by a field, in descending order. Successive calls order by each field in turn.
+	 * @param fieldName the name of the field
+	 * @return this Query
+	 */
+	public Query<T> orderByDescending(String fieldName){
+		return addOrder(fieldName, " DESC");
+	}
+
+	/**
+	 * Limits the number of objects retrieved.
+	 * @param limit the maximum number of objects
+	 * @return this Query
+	 */
+	public Query<T> limit(int limit){
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Skips a number of the matching objects. SQLite still steps over the skipped rows, so large offsets are slow (see
+	 * DataManager.getPageAfter()).
+	 * @param offset the number of objects to skip
+	 * @return this Query
+	 */
+	public Query<T> offset(int offset){
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Sets the FetchPlan used to load the retrieved objects.
+	 * @param fetchPlan the FetchPlan, or null to use the default for each field
+	 * @return this Query
+	 */
+	public Query<T> fetchPlan(FetchPlan fetchPlan){
+		this.fetchPlan = fetchPlan;
+		return this;
+	}
+
+	/**
+	 * Getter for the class of the objects
+	 * @return the class
+	 */
+	public Class<T> getType(){
+		return cls;
+	}
+
+	/**
+	 * Returns the SQL where clause of this Query, with a ? in place of each argument.
+	 * @return the where clause, or null if the Query has no conditions
+	 */
+	public String getWhereClause(){
+		if(openGroups != 0) throw new IllegalStateException("beginGroup() called without a matching endGroup()");
+		if(whereClause.length() == 0) return null;
+		return whereClause.toString();
+	}
+
+	/**
+	 * Returns the arguments bound to the where clause, in order.
+	 * @return the arguments, or null if the Query has no conditions
+	 */
+	public String[] getWhereArgs(){
+		if(whereArgs.isEmpty()) return null;
+		return whereArgs.toArray(new String[whereArgs.size()]);
+	}
+
+	/**
+	 * Returns the SQL ORDER BY clause of this Query (without "ORDER BY").
+	 * @return the ORDER BY clause, or null if the Query has no ordering
+	 */
+	public String getOrderBy(){
+		if(orderBy.length() == 0) return null;
+		return orderBy.toString();
+	}
+
+	/**
+	 * Returns the SQL LIMIT clause of this Query (without "LIMIT").
+	 * @return the LIMIT clause, or null if the Query has neither a limit nor an offset
+	 */
+	public String getLimit(){
+		if(offset > 0) return offset + ", " + limit;
+		if(limit >= 0) return String.valueOf(limit);
+		return null;
+	}
+
+	/**
+	 * Getter for the FetchPlan used to load the retrieved objects
+	 * @return the FetchPlan, or null to use the default for each field
+	 */
+	public FetchPlan getFetchPlan(){
+		return fetchPlan;
+	}
+
+	/**
+	 * Adds a condition comparing a field with a single bound value.
+	 * @param fieldName the name of the field
+	 * @param operator the SQL comparison, including the ? for the value
+	 * @param value the value
+	 * @return this Query
+	 */
+	private Query<T> addComparison(String fieldName, String operator, Object value){
+		String whereArg = DataUtil.toSQLArgument(DataUtil.getField(cls, fieldName), value);
+		addCondition(getColumnName(fieldName) + operator);
+		whereArgs.add(whereArg);
+		return this;
+	}
+
+	/**
+	 * Appends a condition to the where clause, joined with AND or OR as requested.
+	 * @param condition the SQL condition
+	 */
+	private void addCondition(String condition){
+		appendOperator();
+		whereClause.append(condition);
+		needsOperator = true;
+	}
+
+	/**
+	 * Appends the operator that joins the next condition or group to the previous one, if there is one.
+	 */
+	private void appendOperator(){
+		if(needsOperator) whereClause.append(nextIsOr ? " OR " : " AND ");
+		nextIsOr = false;
+	}
+
+	/**
+	 * Appends a field to the ORDER BY clause.
+	 * @param fieldName the name of the field
+	 * @param direction the SQL direction
+	 * @return this Query
+	 */
+	private Query<T> addOrder(String fieldName, String direction){
+		if(orderBy.length() != 0) orderBy.append(", ");
+		orderBy.append(getColumnName(fieldName)).append(direction);
+		return this;
+	}
+
+	/**
+	 * Returns the name of the column that stores a field.
+	 * @param fieldName the name of the field
+	 * @return the column name
+	 */
+	private String getColumnName(String fieldName){
+		return DataUtil.getColumnName(cls, fieldName);
+	}
+}